@@ -26,6 +26,14 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -63,6 +71,11 @@ import com.rabbitmq.client.DefaultConsumer;
 import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.ShutdownSignalException;
 
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import uk.bl.wap.util.OrderedCompletionTracker;
+
 /**
  * Temporary copy of
  * /heritrix-contrib/src/main/java/org/archive/crawler/frontier/AMQPUrlReceiver.java
@@ -176,6 +189,73 @@ public class AMQPUrlReceiver
      */
     private Integer prefetchCount = 1000;
 
+    public Integer getPrefetchCount() {
+        return prefetchCount;
+    }
+
+    public void setPrefetchCount(Integer prefetchCount) {
+        this.prefetchCount = prefetchCount;
+    }
+
+    private int numMessageHandlerThreads = 16;
+
+    public int getNumMessageHandlerThreads() {
+        return numMessageHandlerThreads;
+    }
+
+    /**
+     * The number of threads used to process deliveries in parallel, so the
+     * prefetched messages are not all handled one at a time on the consumer
+     * thread.
+     * 
+     * @param numMessageHandlerThreads
+     */
+    public void setNumMessageHandlerThreads(int numMessageHandlerThreads) {
+        this.numMessageHandlerThreads = numMessageHandlerThreads;
+    }
+
+    private int ackBatchSize = 100;
+
+    public int getAckBatchSize() {
+        return ackBatchSize;
+    }
+
+    /**
+     * Deliveries are acknowledged cumulatively, up to the last one before the
+     * oldest delivery still being handled. This sets how many deliveries can
+     * be finished before an acknowledgement is sent. Whatever is left is
+     * always acknowledged as soon as nothing is in flight. Should be well
+     * below the prefetchCount, or consumption will stall.
+     * 
+     * @param ackBatchSize
+     */
+    public void setAckBatchSize(int ackBatchSize) {
+        this.ackBatchSize = ackBatchSize;
+    }
+
+    private static final Gauge inFlightGauge = Gauge.build()
+            .name("amqp_crawl_inflight").labelNames("queue")
+            .help("AMQP crawl messages delivered but not yet acknowledged.")
+            .register();
+
+    private static final Histogram ackLatency = Histogram.build()
+            .name("amqp_crawl_ack_latency_seconds").labelNames("queue")
+            .buckets(0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30)
+            .help("Time from the delivery of an AMQP crawl message to its acknowledgement.")
+            .register();
+
+    private static final Counter ackCounter = Counter.build()
+            .name("amqp_crawl_acks_total").labelNames("queue")
+            .help("Cumulative acknowledgements sent for AMQP crawl messages.")
+            .register();
+
+    private static final Counter messageCounter = Counter.build()
+            .name("amqp_crawl_messages_total").labelNames("queue", "outcome")
+            .help("AMQP crawl messages handled, by outcome.").register();
+
+    // Long-lived pool of message handlers:
+    private transient ThreadPoolExecutor messageHandlerPool;
+
     private transient Lock lock = new ReentrantLock(true);
 
     private transient boolean pauseConsumer = false;
@@ -248,6 +328,7 @@ public class AMQPUrlReceiver
         try {
             // spawn off a thread to start up the amqp consumer, and try to restart it if it dies 
             if (!isRunning) {
+                startMessageHandlerPool();
                 starterRestarter = new StarterRestarter(AMQPUrlReceiver.class.getSimpleName() + "-starter-restarter");
                 try {
                     // try to synchronously start the consumer right now, so
@@ -278,6 +359,24 @@ public class AMQPUrlReceiver
             }
             starterRestarter = null;
 
+            // Finish off (and acknowledge) whatever has been delivered, while
+            // the channel is still open:
+            if (messageHandlerPool != null) {
+                messageHandlerPool.shutdown();
+                try {
+                    if (!messageHandlerPool.awaitTermination(60,
+                            TimeUnit.SECONDS)) {
+                        logger.warning(
+                                "Message handlers did not finish; unacknowledged messages will be redelivered.");
+                        messageHandlerPool.shutdownNow();
+                    }
+                } catch (InterruptedException e) {
+                    messageHandlerPool.shutdownNow();
+                    Thread.currentThread().interrupt();
+                }
+                messageHandlerPool = null;
+            }
+
             if (connection != null && connection.isOpen()) {
                 try {
                     connection.close();
@@ -293,6 +392,29 @@ public class AMQPUrlReceiver
         }
     }
 
+    private void startMessageHandlerPool() {
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+        ThreadFactory handlerThreadFactory = new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                return new Thread(r, AMQPUrlReceiver.class.getSimpleName()
+                        + "-handler-" + threadNumber.getAndIncrement());
+            }
+        };
+        // At most prefetchCount messages can be delivered but not yet
+        // acknowledged, so that bounds the queue. If there is no limit, the
+        // consumer thread runs the handler itself when the queue is full:
+        BlockingQueue<Runnable> queue;
+        if (prefetchCount != null && prefetchCount > 0) {
+            queue = new ArrayBlockingQueue<Runnable>(prefetchCount);
+        } else {
+            queue = new LinkedBlockingQueue<Runnable>(10000);
+        }
+        messageHandlerPool = new ThreadPoolExecutor(numMessageHandlerThreads,
+                numMessageHandlerThreads, 0L, TimeUnit.MILLISECONDS, queue,
+                handlerThreadFactory,
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
     transient protected Connection connection = null;
     transient protected Channel channel = null;
 
@@ -341,70 +463,198 @@ public class AMQPUrlReceiver
     protected static final Set<String> REQUEST_HEADER_BLACKLIST = new HashSet<String>(Arrays.asList(
             "accept-encoding", "upgrade-insecure-requests", "host", "connection"));
 
-    // XXX should we be using QueueingConsumer because of possible blocking in
-    // frontier.schedule()?
-    // "Note: all methods of this interface are invoked inside the Connection's
-    // thread. This means they a) should be non-blocking and generally do little
-    // work, b) must not call Channel or Connection methods, or a deadlock will
-    // ensue. One way of ensuring this is to use/subclass QueueingConsumer."
+    /**
+     * The acknowledgement state of a channel. Delivery tags are only unique
+     * within a channel, and a channel can outlive a consumer (e.g. when
+     * paused), so this is kept by channel.
+     */
+    private static class ChannelAcks {
+        // The tag before the first delivery seen on this channel, then the
+        // last tag acknowledged:
+        private long lastAcked;
+
+        // When each unacknowledged message was delivered, by delivery tag:
+        private final Map<Long, Long> deliveredAt = new ConcurrentHashMap<Long, Long>();
+
+        private ChannelAcks(long lastAcked) {
+            this.lastAcked = lastAcked;
+        }
+    }
+
+    // Which deliveries have been handled, by channel:
+    private final transient OrderedCompletionTracker<Channel> completions = new OrderedCompletionTracker<Channel>();
+
+    private final transient Map<Channel, ChannelAcks> channelAcks = new ConcurrentHashMap<Channel, ChannelAcks>();
+
+    // Called on the consumer thread, in delivery order:
+    private void delivered(Channel channel, long deliveryTag) {
+        ChannelAcks acks = channelAcks.get(channel);
+        if (acks == null) {
+            acks = new ChannelAcks(deliveryTag - 1);
+            channelAcks.put(channel, acks);
+        }
+        acks.deliveredAt.put(deliveryTag, System.nanoTime());
+        completions.register(channel, deliveryTag);
+        inFlightGauge.labels(queueName).inc();
+    }
+
+    /**
+     * Mark a delivery as handled, and acknowledge every delivery before the
+     * oldest one still in flight, once there are ackBatchSize of them or
+     * nothing is left in flight. Acknowledgements are serialised here, as a
+     * channel should not be used by several threads at once.
+     */
+    private void completed(Channel channel, long deliveryTag) {
+        completions.complete(channel, deliveryTag);
+        synchronized (channelAcks) {
+            ChannelAcks acks = channelAcks.get(channel);
+            if (acks == null) {
+                // The channel has gone, so this will be redelivered.
+                return;
+            }
+            // Everything before the safe position has been handled:
+            long upTo = completions.getSafePosition(channel) - 1;
+            if (upTo <= acks.lastAcked) {
+                return;
+            }
+            // Wait for a full batch, unless there is nothing else in flight
+            // (every unacknowledged delivery is up to upTo):
+            if (upTo - acks.lastAcked < ackBatchSize
+                    && upTo - acks.lastAcked < acks.deliveredAt.size()) {
+                return;
+            }
+            try {
+                logger.finest("Now ACKing up to delivery " + upTo);
+                channel.basicAck(upTo, true);
+                ackCounter.labels(queueName).inc();
+            } catch (IOException e) {
+                // Unacknowledged messages are redelivered on a new channel:
+                logger.log(Level.WARNING,
+                        "problem acknowledging AMQP deliveries up to " + upTo,
+                        e);
+                return;
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING,
+                        "problem acknowledging AMQP deliveries up to " + upTo,
+                        e);
+                return;
+            }
+            long now = System.nanoTime();
+            for (long tag = acks.lastAcked + 1; tag <= upTo; tag++) {
+                Long delivered = acks.deliveredAt.remove(tag);
+                if (delivered != null) {
+                    ackLatency.labels(queueName)
+                            .observe((now - delivered) / 1.0e9);
+                    inFlightGauge.labels(queueName).dec();
+                }
+            }
+            acks.lastAcked = upTo;
+        }
+    }
+
+    private void forgetChannel(Channel channel) {
+        synchronized (channelAcks) {
+            ChannelAcks acks = channelAcks.remove(channel);
+            if (acks != null) {
+                inFlightGauge.labels(queueName).dec(acks.deliveredAt.size());
+            }
+            completions.reset(channel);
+        }
+    }
+
+    /*
+     * Deliveries are handed to the messageHandlerPool rather than processed on
+     * the consumer thread, as scheduling can block. Delivery tags increase
+     * within a channel, so completions are tracked by tag and everything up to
+     * the oldest delivery still being handled is acknowledged in one go
+     * (basicAck with multiple=true).
+     */
     protected class UrlConsumer extends DefaultConsumer {
+
         public UrlConsumer(Channel channel) {
             super(channel);
         }
 
         @Override
         public void handleDelivery(String consumerTag, Envelope envelope,
-                BasicProperties properties, byte[] body) throws IOException {
+                BasicProperties properties, final byte[] body)
+                throws IOException {
+            final Channel channel = getChannel();
+            final long deliveryTag = envelope.getDeliveryTag();
+            delivered(channel, deliveryTag);
+
+            Runnable handler = new Runnable() {
+                public void run() {
+                    try {
+                        handleMessage(body);
+                    } finally {
+                        completed(channel, deliveryTag);
+                    }
+                }
+            };
+            ThreadPoolExecutor pool = messageHandlerPool;
+            if (pool == null || pool.isShutdown()) {
+                // Not running, so handle it here:
+                handler.run();
+            } else {
+                pool.execute(handler);
+            }
+        }
+
+        private void handleMessage(byte[] body) {
             String decodedBody;
             try {
                 decodedBody = new String(body, "UTF-8");
             } catch (UnsupportedEncodingException e) {
                 throw new RuntimeException(e); // can't happen
             }
-            logger.warning("Processing " + decodedBody);
-            JSONObject jo = new JSONObject(decodedBody);
+            logger.fine("Processing " + decodedBody);
 
-            if ("GET".equals(jo.getString("method"))) {
-                try {
-                    CrawlURI curi = makeCrawlUri(jo);
-                    KeyedProperties.clearAllOverrideContexts();
-                    if (curi.isSeed()) {
-                        candidates.getSeeds().addSeed(curi);
-                        // Also clear any quotas if a seed is marked as forced:
-                        if (curi.forceFetch()) {
-                            candidates.getFrontier().getGroup(curi)
-                                    .getSubstats().clear();
-                            final CrawlServer server = serverCache
-                                    .getServerFor(curi.getUURI());
-                            server.getSubstats().clear();
-                            final CrawlHost host = serverCache
-                                    .getHostFor(curi.getUURI());
-                            host.getSubstats().clear();
-                        }
-                    } else {
-                        candidates.runCandidateChain(curi, null);
+            try {
+                JSONObject jo = new JSONObject(decodedBody);
+                if (!"GET".equals(jo.getString("method"))) {
+                    logger.info("ignoring url with method other than GET - "
+                            + decodedBody);
+                    messageCounter.labels(queueName, "ignored").inc();
+                    return;
+                }
+                CrawlURI curi = makeCrawlUri(jo);
+                KeyedProperties.clearAllOverrideContexts();
+                if (curi.isSeed()) {
+                    candidates.getSeeds().addSeed(curi);
+                    // Also clear any quotas if a seed is marked as forced:
+                    if (curi.forceFetch()) {
+                        candidates.getFrontier().getGroup(curi).getSubstats()
+                                .clear();
+                        final CrawlServer server = serverCache
+                                .getServerFor(curi.getUURI());
+                        server.getSubstats().clear();
+                        final CrawlHost host = serverCache
+                                .getHostFor(curi.getUURI());
+                        host.getSubstats().clear();
                     }
-                    appCtx.publishEvent(new AMQPUrlReceivedEvent(AMQPUrlReceiver.this, curi));
-                } catch (URIException e) {
-                    logger.log(Level.WARNING,
-                            "problem creating CrawlURI from json received via AMQP "
-                                    + decodedBody, e);
-                } catch (JSONException e) {
-                    logger.log(Level.SEVERE,
-                            "problem creating CrawlURI from json received via AMQP "
-                                    + decodedBody, e);
-                } catch (Exception e) {
-                    logger.log(Level.SEVERE,
-                            "Unanticipated problem creating CrawlURI from json received via AMQP "
-                                    + decodedBody, e);
+                } else {
+                    candidates.runCandidateChain(curi, null);
                 }
-            } else {
-                logger.info("ignoring url with method other than GET - "
-                        + decodedBody);
+                appCtx.publishEvent(
+                        new AMQPUrlReceivedEvent(AMQPUrlReceiver.this, curi));
+                messageCounter.labels(queueName, "processed").inc();
+            } catch (URIException e) {
+                logger.log(Level.WARNING,
+                        "problem creating CrawlURI from json received via AMQP "
+                                + decodedBody, e);
+                messageCounter.labels(queueName, "error").inc();
+            } catch (JSONException e) {
+                logger.log(Level.SEVERE,
+                        "problem creating CrawlURI from json received via AMQP "
+                                + decodedBody, e);
+                messageCounter.labels(queueName, "error").inc();
+            } catch (Exception e) {
+                logger.log(Level.SEVERE,
+                        "Unanticipated problem creating CrawlURI from json received via AMQP "
+                                + decodedBody, e);
+                messageCounter.labels(queueName, "error").inc();
             }
-
-            logger.finest("Now ACKing: " + decodedBody);
-            this.getChannel().basicAck(envelope.getDeliveryTag(), false);
         }
 
         @Override
@@ -416,6 +666,8 @@ public class AMQPUrlReceiver
                 logger.info("amqp channel/connection shut down consumerTag=" + consumerTag);
             }
             AMQPUrlReceiver.this.consumerTag = null;
+            // Anything not yet acknowledged will be redelivered:
+            forgetChannel(getChannel());
         }
 
         // {
@@ -0,0 +1,277 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.frontier;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.httpclient.URIException;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.extractor.LinkContext;
+import org.archive.net.UURI;
+import org.archive.net.UURIFactory;
+
+import uk.bl.wap.modules.deciderules.RecentlySeenDecideRule;
+
+/**
+ * A crawl request, as passed between crawlers and scopers via Kafka.
+ *
+ * Instances can be re-used, via {@link #reset()}, and are filled in by the
+ * {@link CrawlRequestDecoder}.
+ *
+ * @see KafkaUrlReceiver for an example of the JSON form.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class CrawlRequest {
+
+    protected static final Set<String> REQUEST_HEADER_BLACKLIST = new HashSet<String>(
+            Arrays.asList("accept-encoding", "upgrade-insecure-requests",
+                    "host", "connection"));
+
+    private String url;
+    private String parentUrl;
+    private String pathFromSeed;
+    private String hop;
+    private String method;
+    private boolean seed;
+    private boolean forceFetch;
+    private Map<String, String> headers;
+    private List<String> sheets;
+    private Integer recrawlInterval;
+    private Object resetQuotas;
+    private final Map<String, Object> heritableData = new LinkedHashMap<String, Object>();
+
+    /**
+     * Clear all fields, so this instance can be used for another request.
+     */
+    public void reset() {
+        url = null;
+        parentUrl = null;
+        pathFromSeed = null;
+        hop = null;
+        method = null;
+        seed = false;
+        forceFetch = false;
+        headers = null;
+        sheets = null;
+        recrawlInterval = null;
+        resetQuotas = null;
+        heritableData.clear();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public String getParentUrl() {
+        return parentUrl;
+    }
+
+    public void setParentUrl(String parentUrl) {
+        this.parentUrl = parentUrl;
+    }
+
+    public String getPathFromSeed() {
+        return pathFromSeed;
+    }
+
+    public void setPathFromSeed(String pathFromSeed) {
+        this.pathFromSeed = pathFromSeed;
+    }
+
+    public String getHop() {
+        return hop;
+    }
+
+    public void setHop(String hop) {
+        this.hop = hop;
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    public void setMethod(String method) {
+        this.method = method;
+    }
+
+    public boolean isGet() {
+        return "GET".equals(method);
+    }
+
+    public boolean isSeed() {
+        return seed;
+    }
+
+    public void setSeed(boolean seed) {
+        this.seed = seed;
+    }
+
+    public boolean isForceFetch() {
+        return forceFetch;
+    }
+
+    public void setForceFetch(boolean forceFetch) {
+        this.forceFetch = forceFetch;
+    }
+
+    /**
+     *
+     * @return the HTTP headers, or null if none were specified.
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    public void addHeader(String name, String value) {
+        if (headers == null) {
+            headers = new HashMap<String, String>();
+        }
+        headers.put(name, value);
+    }
+
+    /**
+     *
+     * @return the sheets to associate with this URL, or null if none were
+     *         specified.
+     */
+    public List<String> getSheets() {
+        return sheets;
+    }
+
+    public void addSheet(String sheet) {
+        if (sheets == null) {
+            sheets = new LinkedList<String>();
+        }
+        sheets.add(sheet);
+    }
+
+    /**
+     *
+     * @return the recrawl interval in seconds, or null if none was specified.
+     */
+    public Integer getRecrawlInterval() {
+        return recrawlInterval;
+    }
+
+    public void setRecrawlInterval(Integer recrawlInterval) {
+        this.recrawlInterval = recrawlInterval;
+    }
+
+    /**
+     *
+     * @return the resetQuotas value, or null if none was specified.
+     */
+    public Object getResetQuotas() {
+        return resetQuotas;
+    }
+
+    public void setResetQuotas(Object resetQuotas) {
+        this.resetQuotas = resetQuotas;
+    }
+
+    /**
+     * Values are either scalars (String, Number or Boolean) or, for arrays, a
+     * Set of Strings.
+     *
+     * @return the heritable data from the parent URL.
+     */
+    public Map<String, Object> getHeritableData() {
+        return heritableData;
+    }
+
+    /**
+     * Fill in the details shared by a batch of requests, i.e. the parent URL,
+     * path from seed, heritable data and (if not already set) the method.
+     *
+     * @param parent
+     *            the shared details of the batch
+     */
+    public void inheritFrom(CrawlRequest parent) {
+        parentUrl = parent.parentUrl;
+        pathFromSeed = parent.pathFromSeed;
+        if (method == null) {
+            method = parent.method;
+        }
+        heritableData.putAll(parent.heritableData);
+    }
+
+    /**
+     * Make a CrawlURI from this request, including the heritable data, the
+     * custom HTTP headers, the recrawl interval and the seed and forceFetch
+     * flags.
+     *
+     * Sheet associations and scheduling priority are left to the caller.
+     *
+     * @return
+     * @throws URIException
+     */
+    public CrawlURI toCrawlURI() throws URIException {
+        UURI uuri = UURIFactory.getInstance(url);
+        String viaStr = parentUrl;
+        // Cope if we are passed an empty value by copying the URL:
+        if (viaStr == null || "".equals(viaStr))
+            viaStr = uuri.getURI();
+        UURI via = UURIFactory.getInstance(viaStr);
+
+        String hopPath = (pathFromSeed == null ? "" : pathFromSeed)
+                + (hop == null ? "" : hop);
+
+        CrawlURI curi = new CrawlURI(uuri, hopPath, via,
+                LinkContext.INFERRED_MISC);
+
+        // Set the heritable data from the parent URL:
+        for (Map.Entry<String, Object> entry : heritableData.entrySet()) {
+            curi.getData().put(entry.getKey(), entry.getValue());
+        }
+
+        // Set the http headers from the crawl request:
+        if (headers != null) {
+            Map<String, String> customHttpRequestHeaders = new HashMap<String, String>();
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                String k = header.getKey();
+                if (!k.startsWith(":")
+                        && !REQUEST_HEADER_BLACKLIST.contains(k)) {
+                    customHttpRequestHeaders.put(k, header.getValue());
+                }
+            }
+            curi.getData().put("customHttpRequestHeaders",
+                    customHttpRequestHeaders);
+        }
+
+        // Set up recrawl interval, if specified:
+        if (recrawlInterval != null) {
+            curi.getData().put(RecentlySeenDecideRule.RECRAWL_INTERVAL,
+                    recrawlInterval.intValue());
+        }
+
+        // Set seed and forceFetch status:
+        curi.setForceFetch(forceFetch);
+        curi.setSeed(seed);
+
+        return curi;
+    }
+
+    @Override
+    public String toString() {
+        return "CrawlRequest [url=" + url + ", parentUrl=" + parentUrl
+                + ", pathFromSeed=" + pathFromSeed + ", hop=" + hop
+                + ", method=" + method + ", isSeed=" + seed + ", forceFetch="
+                + forceFetch + ", sheets=" + sheets + ", recrawlInterval="
+                + recrawlInterval + ", heritableData=" + heritableData + "]";
+    }
+
+}
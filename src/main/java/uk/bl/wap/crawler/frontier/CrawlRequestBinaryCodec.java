@@ -0,0 +1,641 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.frontier;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+
+/**
+ * A compact binary encoding of {@link CrawlRequest}s, which can be used on the
+ * same Kafka topics as the JSON form.
+ *
+ * Messages start with a magic byte that can never start a JSON message,
+ * followed by a version byte and a flags byte. If the LZ4 flag is set, this
+ * header is followed by the uncompressed body length (as a varint) and the LZ4
+ * block, otherwise by the body itself.
+ *
+ * The body holds the fields of the request in a fixed order. Strings are
+ * varint length-prefixed UTF-8 (with the length offset by one so zero can mean
+ * null), and the keys of the heritable data (along with the members of any
+ * sets of strings in it, which are usually the same keys) are written once to
+ * a dictionary and then referred to by index.
+ *
+ * Batches of requests that share a parent URL (e.g. the outlinks of one page)
+ * can be encoded together using {@link #encodeBatch(CrawlRequest, List,
+ * boolean)}. These use version 2, so older decoders reject them rather than
+ * misreading them, and hold the parent's details once, followed by the URL,
+ * hop, flags and headers of each request. Use {@link #decodeAll(byte[],
+ * List)} to decode either kind of message.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class CrawlRequestBinaryCodec {
+
+    /** First byte of all binary messages. JSON messages start with '{'. */
+    public static final byte MAGIC = (byte) 0xC7;
+
+    public static final byte VERSION = 1;
+
+    public static final byte BATCH_VERSION = 2;
+
+    private static final int FLAG_LZ4 = 1;
+
+    // Bodies smaller than this are not worth compressing:
+    private static final int MIN_COMPRESS_LENGTH = 256;
+
+    // LZ4 cannot compress by more than this, so a larger claimed body length
+    // means the message is corrupt:
+    private static final int MAX_LZ4_RATIO = 255;
+
+    // The largest body we will decompress, far beyond any real message:
+    private static final int MAX_BODY_LENGTH = 64 * 1024 * 1024;
+
+    // Request flags:
+    private static final int SEED = 1;
+    private static final int FORCE_FETCH = 2;
+    private static final int RECRAWL_INTERVAL = 4;
+
+    // Value types, for resetQuotas and the heritable data:
+    private static final int TYPE_NULL = 0;
+    private static final int TYPE_STRING = 1;
+    private static final int TYPE_LONG = 2;
+    private static final int TYPE_DOUBLE = 3;
+    private static final int TYPE_TRUE = 4;
+    private static final int TYPE_FALSE = 5;
+    private static final int TYPE_STRING_SET = 6;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final LZ4Factory lz4 = LZ4Factory.fastestInstance();
+
+    // Heritable keys are repeated on very many requests, so share them:
+    private static final Interner<String> keys = Interners.newWeakInterner();
+
+    /**
+     *
+     * @param data
+     * @return true if this message uses the binary encoding.
+     */
+    public static boolean isBinary(byte[] data) {
+        return data != null && data.length > 0 && data[0] == MAGIC;
+    }
+
+    /**
+     *
+     * @param data
+     * @return true if this message is a binary batch of requests.
+     */
+    public static boolean isBatch(byte[] data) {
+        return isBinary(data) && data.length > 1 && data[1] == BATCH_VERSION;
+    }
+
+    /**
+     * Encode a request.
+     *
+     * @param request
+     * @param compress
+     *            whether to LZ4 compress the body (only done when the body is
+     *            large enough to benefit).
+     * @return the encoded message.
+     */
+    public static byte[] encode(CrawlRequest request, boolean compress) {
+        Writer body = new Writer(256);
+        body.writeString(request.getUrl());
+        body.writeString(request.getParentUrl());
+        body.writeString(request.getPathFromSeed());
+        body.writeString(request.getHop());
+        body.writeString(request.getMethod());
+        writeFlags(body, request);
+        body.writeValue(request.getResetQuotas(), null);
+        writeHeaders(body, request.getHeaders());
+
+        List<String> sheets = request.getSheets();
+        if (sheets == null) {
+            body.writeVarInt(0);
+        } else {
+            body.writeVarInt(sheets.size());
+            for (String sheet : sheets) {
+                body.writeString(sheet);
+            }
+        }
+
+        writeHeritableData(body, request.getHeritableData());
+        return wrap(body, compress, VERSION);
+    }
+
+    /**
+     * Encode a batch of requests that share a parent URL. The parent URL, path
+     * from seed, method and heritable data are taken from the parent, and
+     * only the URL, hop, seed and forceFetch flags, recrawl interval and
+     * headers of each request are kept.
+     *
+     * @param parent
+     * @param requests
+     * @param compress
+     *            whether to LZ4 compress the body (only done when the body is
+     *            large enough to benefit).
+     * @return the encoded message.
+     */
+    public static byte[] encodeBatch(CrawlRequest parent,
+            List<CrawlRequest> requests, boolean compress) {
+        Writer body = new Writer(256 + 64 * requests.size());
+        body.writeString(parent.getParentUrl());
+        body.writeString(parent.getPathFromSeed());
+        body.writeString(parent.getMethod());
+        writeHeritableData(body, parent.getHeritableData());
+        body.writeVarInt(requests.size());
+        for (CrawlRequest request : requests) {
+            body.writeString(request.getUrl());
+            body.writeString(request.getHop());
+            writeFlags(body, request);
+            writeHeaders(body, request.getHeaders());
+        }
+        return wrap(body, compress, BATCH_VERSION);
+    }
+
+    private static void writeFlags(Writer body, CrawlRequest request) {
+        int flags = 0;
+        if (request.isSeed())
+            flags |= SEED;
+        if (request.isForceFetch())
+            flags |= FORCE_FETCH;
+        if (request.getRecrawlInterval() != null)
+            flags |= RECRAWL_INTERVAL;
+        body.writeByte(flags);
+        if (request.getRecrawlInterval() != null) {
+            body.writeSignedVarLong(request.getRecrawlInterval());
+        }
+    }
+
+    private static void writeHeaders(Writer body,
+            Map<String, String> headers) {
+        if (headers == null) {
+            body.writeVarInt(0);
+        } else {
+            body.writeVarInt(headers.size());
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                body.writeString(header.getKey());
+                body.writeString(header.getValue());
+            }
+        }
+    }
+
+    private static void writeHeritableData(Writer body,
+            Map<String, Object> heritableData) {
+        // Build the dictionary of heritable keys, and of strings in sets:
+        Map<String, Integer> dictionary = new HashMap<String, Integer>();
+        List<String> entries = new ArrayList<String>();
+        for (Map.Entry<String, Object> e : heritableData.entrySet()) {
+            addToDictionary(e.getKey(), dictionary, entries);
+            if (e.getValue() instanceof Collection) {
+                for (Object member : (Collection<?>) e.getValue()) {
+                    addToDictionary(String.valueOf(member), dictionary,
+                            entries);
+                }
+            }
+        }
+        body.writeVarInt(entries.size());
+        for (String entry : entries) {
+            body.writeString(entry);
+        }
+        body.writeVarInt(heritableData.size());
+        for (Map.Entry<String, Object> e : heritableData.entrySet()) {
+            body.writeVarInt(dictionary.get(e.getKey()));
+            body.writeValue(e.getValue(), dictionary);
+        }
+    }
+
+    // Adds the header, only using the compressed form if it is smaller:
+    private static byte[] wrap(Writer body, boolean compress, byte version) {
+        byte[] compressed = null;
+        int compressedLength = 0;
+        if (compress && body.length() >= MIN_COMPRESS_LENGTH) {
+            LZ4Compressor compressor = lz4.fastCompressor();
+            compressed = new byte[compressor
+                    .maxCompressedLength(body.length())];
+            compressedLength = compressor.compress(body.buffer(), 0,
+                    body.length(), compressed, 0, compressed.length);
+        }
+        Writer out;
+        if (compressed != null && compressedLength < body.length()) {
+            out = new Writer(compressedLength + 8);
+            out.writeByte(MAGIC);
+            out.writeByte(version);
+            out.writeByte(FLAG_LZ4);
+            out.writeVarInt(body.length());
+            out.writeBytes(compressed, 0, compressedLength);
+        } else {
+            out = new Writer(body.length() + 3);
+            out.writeByte(MAGIC);
+            out.writeByte(version);
+            out.writeByte(0);
+            out.writeBytes(body.buffer(), 0, body.length());
+        }
+        return out.toByteArray();
+    }
+
+    private static void addToDictionary(String entry,
+            Map<String, Integer> dictionary, List<String> entries) {
+        if (!dictionary.containsKey(entry)) {
+            dictionary.put(entry, entries.size());
+            entries.add(entry);
+        }
+    }
+
+    /**
+     * Decode a binary message, as identified by {@link #isBinary(byte[])}.
+     *
+     * @param data
+     * @param request
+     *            the request to fill in (this is reset first)
+     * @return true if this is a GET request, false if it should be ignored.
+     * @throws IOException
+     *             if the message is malformed or of an unsupported version.
+     */
+    public static boolean decode(byte[] data, CrawlRequest request)
+            throws IOException {
+        request.reset();
+        Reader in = open(data, VERSION);
+
+        request.setUrl(in.readString());
+        request.setParentUrl(in.readString());
+        request.setPathFromSeed(in.readString());
+        request.setHop(in.readString());
+        request.setMethod(in.readString());
+        // Fail fast, we only handle GETs:
+        if (!request.isGet()) {
+            return false;
+        }
+        readFlags(in, request);
+        request.setResetQuotas(in.readValue(null));
+        readHeaders(in, request);
+
+        int numSheets = in.readCount();
+        for (int i = 0; i < numSheets; i++) {
+            request.addSheet(in.readString());
+        }
+
+        readHeritableData(in, request);
+        return true;
+    }
+
+    /**
+     * Decode a binary message holding either one request or a batch.
+     *
+     * @param data
+     * @param requests
+     *            the list to add the decoded GET requests to
+     * @return the number of requests added.
+     * @throws IOException
+     *             if the message is malformed or of an unsupported version.
+     */
+    public static int decodeAll(byte[] data, List<CrawlRequest> requests)
+            throws IOException {
+        if (!isBatch(data)) {
+            CrawlRequest request = new CrawlRequest();
+            if (!decode(data, request)) {
+                return 0;
+            }
+            requests.add(request);
+            return 1;
+        }
+        Reader in = open(data, BATCH_VERSION);
+        CrawlRequest parent = new CrawlRequest();
+        parent.setParentUrl(in.readString());
+        parent.setPathFromSeed(in.readString());
+        parent.setMethod(in.readString());
+        if (!parent.isGet()) {
+            return 0;
+        }
+        readHeritableData(in, parent);
+        int count = in.readCount();
+        List<CrawlRequest> batch = new ArrayList<CrawlRequest>(
+                Math.min(count, 1024));
+        for (int i = 0; i < count; i++) {
+            CrawlRequest request = new CrawlRequest();
+            request.setUrl(in.readString());
+            request.setHop(in.readString());
+            readFlags(in, request);
+            readHeaders(in, request);
+            request.inheritFrom(parent);
+            batch.add(request);
+        }
+        requests.addAll(batch);
+        return batch.size();
+    }
+
+    // Checks the header, and returns a reader for the (decompressed) body:
+    private static Reader open(byte[] data, int version) throws IOException {
+        if (!isBinary(data) || data.length < 3) {
+            throw new IOException("Not a binary crawl request message");
+        }
+        if (data[1] > version) {
+            throw new IOException(
+                    "Unsupported crawl request message version " + data[1]);
+        }
+        Reader in = new Reader(data, 3, data.length);
+        if ((data[2] & FLAG_LZ4) != 0) {
+            int length = in.readVarInt();
+            if (length > MAX_BODY_LENGTH || length > (long) (data.length
+                    - in.position()) * MAX_LZ4_RATIO) {
+                throw new IOException(
+                        "Implausible crawl request body length " + length);
+            }
+            byte[] body = new byte[length];
+            try {
+                int decompressed = lz4.safeDecompressor().decompress(data,
+                        in.position(), data.length - in.position(), body, 0,
+                        length);
+                if (decompressed != length) {
+                    throw new IOException(
+                            "Crawl request body length mismatch: expected "
+                                    + length + " but got " + decompressed);
+                }
+            } catch (LZ4Exception e) {
+                throw new IOException("Could not decompress crawl request", e);
+            }
+            in = new Reader(body, 0, length);
+        }
+        return in;
+    }
+
+    private static void readFlags(Reader in, CrawlRequest request)
+            throws IOException {
+        int flags = in.readByte();
+        request.setSeed((flags & SEED) != 0);
+        request.setForceFetch((flags & FORCE_FETCH) != 0);
+        if ((flags & RECRAWL_INTERVAL) != 0) {
+            request.setRecrawlInterval((int) in.readSignedVarLong());
+        }
+    }
+
+    private static void readHeaders(Reader in, CrawlRequest request)
+            throws IOException {
+        int numHeaders = in.readCount();
+        for (int i = 0; i < numHeaders; i++) {
+            request.addHeader(in.readString(), in.readString());
+        }
+    }
+
+    private static void readHeritableData(Reader in, CrawlRequest request)
+            throws IOException {
+        String[] dictionary = new String[in.readCount()];
+        for (int i = 0; i < dictionary.length; i++) {
+            dictionary[i] = keys.intern(in.readString());
+        }
+        int numHeritable = in.readCount();
+        for (int i = 0; i < numHeritable; i++) {
+            String key = in.lookup(dictionary);
+            request.getHeritableData().put(key, in.readValue(dictionary));
+        }
+    }
+
+    /**
+     * A simple growable output buffer.
+     */
+    private static class Writer {
+        private byte[] buf;
+        private int len = 0;
+
+        Writer(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        int length() {
+            return len;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, len);
+        }
+
+        private void ensure(int extra) {
+            if (len + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + extra));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[len++] = (byte) b;
+        }
+
+        void writeBytes(byte[] b, int off, int length) {
+            ensure(length);
+            System.arraycopy(b, off, buf, len, length);
+            len += length;
+        }
+
+        void writeVarInt(int v) {
+            writeVarLong(v & 0xFFFFFFFFL);
+        }
+
+        void writeVarLong(long v) {
+            ensure(10);
+            while ((v & ~0x7FL) != 0) {
+                buf[len++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte) v;
+        }
+
+        void writeSignedVarLong(long v) {
+            // ZigZag, so small negative numbers stay small:
+            writeVarLong((v << 1) ^ (v >> 63));
+        }
+
+        void writeString(String s) {
+            if (s == null) {
+                writeVarInt(0);
+            } else {
+                byte[] b = s.getBytes(UTF8);
+                writeVarInt(b.length + 1);
+                writeBytes(b, 0, b.length);
+            }
+        }
+
+        void writeValue(Object value, Map<String, Integer> dictionary) {
+            if (value == null) {
+                writeByte(TYPE_NULL);
+            } else if (value instanceof Boolean) {
+                writeByte(((Boolean) value) ? TYPE_TRUE : TYPE_FALSE);
+            } else if (value instanceof Long || value instanceof Integer
+                    || value instanceof Short || value instanceof Byte) {
+                writeByte(TYPE_LONG);
+                writeSignedVarLong(((Number) value).longValue());
+            } else if (value instanceof Number) {
+                writeByte(TYPE_DOUBLE);
+                long bits = Double
+                        .doubleToLongBits(((Number) value).doubleValue());
+                ensure(8);
+                for (int i = 56; i >= 0; i -= 8) {
+                    buf[len++] = (byte) (bits >>> i);
+                }
+            } else if (value instanceof Collection && dictionary != null) {
+                Collection<?> members = (Collection<?>) value;
+                writeByte(TYPE_STRING_SET);
+                writeVarInt(members.size());
+                for (Object member : members) {
+                    writeVarInt(dictionary.get(String.valueOf(member)));
+                }
+            } else {
+                writeByte(TYPE_STRING);
+                writeString(value.toString());
+            }
+        }
+    }
+
+    /**
+     * Reads from a buffer, checking bounds as it goes.
+     */
+    private static class Reader {
+        private final byte[] buf;
+        private int pos;
+        private final int limit;
+
+        Reader(byte[] buf, int pos, int limit) {
+            this.buf = buf;
+            this.pos = pos;
+            this.limit = limit;
+        }
+
+        int position() {
+            return pos;
+        }
+
+        int readByte() throws IOException {
+            if (pos >= limit) {
+                throw new IOException("Truncated crawl request message");
+            }
+            return buf[pos++] & 0xFF;
+        }
+
+        long readVarLong() throws IOException {
+            long v = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = readByte();
+                v |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return v;
+                }
+            }
+            throw new IOException("Malformed varint in crawl request message");
+        }
+
+        int readVarInt() throws IOException {
+            long v = readVarLong();
+            if (v < 0 || v > Integer.MAX_VALUE) {
+                throw new IOException(
+                        "Out of range value in crawl request message: " + v);
+            }
+            return (int) v;
+        }
+
+        /*
+         * Reads the number of items that follow. As each takes at least one
+         * byte, a count larger than the bytes left means the message is
+         * corrupt, and is rejected before anything is sized from it.
+         */
+        int readCount() throws IOException {
+            int count = readVarInt();
+            if (count > limit - pos) {
+                throw new IOException(
+                        "Implausible count in crawl request message: "
+                                + count);
+            }
+            return count;
+        }
+
+        long readSignedVarLong() throws IOException {
+            long v = readVarLong();
+            return (v >>> 1) ^ -(v & 1);
+        }
+
+        String readString() throws IOException {
+            int length = readVarInt();
+            if (length == 0) {
+                return null;
+            }
+            length -= 1;
+            if (length > limit - pos) {
+                throw new IOException("Truncated crawl request message");
+            }
+            String s = new String(buf, pos, length, UTF8);
+            pos += length;
+            return s;
+        }
+
+        String lookup(String[] dictionary) throws IOException {
+            int i = readVarInt();
+            if (i >= dictionary.length) {
+                throw new IOException(
+                        "Bad dictionary reference in crawl request message: "
+                                + i);
+            }
+            return dictionary[i];
+        }
+
+        Object readValue(String[] dictionary) throws IOException {
+            int type = readByte();
+            switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_STRING:
+                return readString();
+            case TYPE_LONG:
+                long l = readSignedVarLong();
+                // Match the JSON decoder, which uses the smallest type:
+                if (l >= Integer.MIN_VALUE && l <= Integer.MAX_VALUE) {
+                    return (int) l;
+                }
+                return l;
+            case TYPE_DOUBLE:
+                long bits = 0;
+                for (int i = 0; i < 8; i++) {
+                    bits = (bits << 8) | readByte();
+                }
+                return Double.longBitsToDouble(bits);
+            case TYPE_TRUE:
+                return Boolean.TRUE;
+            case TYPE_FALSE:
+                return Boolean.FALSE;
+            case TYPE_STRING_SET:
+                if (dictionary == null) {
+                    break;
+                }
+                int size = readCount();
+                Set<String> members = new HashSet<String>();
+                for (int i = 0; i < size; i++) {
+                    members.add(lookup(dictionary));
+                }
+                return members;
+            default:
+                break;
+            }
+            throw new IOException(
+                    "Unknown value type in crawl request message: " + type);
+        }
+    }
+
+}
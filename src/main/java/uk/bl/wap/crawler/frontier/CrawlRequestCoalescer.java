@@ -0,0 +1,249 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.frontier;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.httpclient.URIException;
+import org.archive.net.UURIFactory;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Collapses duplicate crawl requests, so each URL only goes through the
+ * candidate chain once per batch of messages.
+ *
+ * Requests are collected with {@link #add(CrawlRequest, Object)} and then
+ * handed back, in order of first appearance, by {@link #drain()}. Duplicates
+ * within the batch are merged: the strongest request is kept (forced fetches
+ * over seeds over plain requests, then the one nearest a seed) and the
+ * forceFetch and seed flags of all copies are combined. Each entry keeps track
+ * of the sources (e.g. the Kafka records) of all the requests merged into it.
+ *
+ * Optionally, URLs are also remembered for a short window after they are
+ * drained, and later requests for the same URL that are no stronger are
+ * marked as suppressed.
+ *
+ * Instances are not thread-safe, apart from the counters.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class CrawlRequestCoalescer<T> {
+
+    private static final int FORCE_FETCH = 2;
+    private static final int SEED = 1;
+
+    /**
+     * A request, and where it (and any duplicates of it) came from.
+     */
+    public static class Entry<T> {
+        private CrawlRequest request;
+        // The canonical URL, if coalescing (so it is only worked out once):
+        private final String key;
+        private final List<T> sources = new ArrayList<T>(1);
+        private boolean suppressed = false;
+
+        private Entry(CrawlRequest request, String key, T source) {
+            this.request = request;
+            this.key = key;
+            this.sources.add(source);
+        }
+
+        public CrawlRequest getRequest() {
+            return request;
+        }
+
+        public List<T> getSources() {
+            return sources;
+        }
+
+        /**
+         *
+         * @return true if the same URL was sent recently, so this need not be.
+         */
+        public boolean isSuppressed() {
+            return suppressed;
+        }
+    }
+
+    private final boolean enabled;
+
+    private final List<Entry<T>> entries = new ArrayList<Entry<T>>();
+
+    private final Map<String, Entry<T>> byUrl = new HashMap<String, Entry<T>>();
+
+    // The flags each recently drained URL was sent with:
+    private final Cache<String, Integer> window;
+
+    private final AtomicLong batchDuplicates = new AtomicLong();
+
+    private final AtomicLong windowDuplicates = new AtomicLong();
+
+    /**
+     *
+     * @param enabled
+     *            if false, requests are passed through unchanged
+     * @param windowMillis
+     *            how long to remember URLs after they are drained (0 to only
+     *            coalesce within batches)
+     * @param windowSize
+     *            the maximum number of URLs to remember
+     */
+    public CrawlRequestCoalescer(boolean enabled, long windowMillis,
+            long windowSize) {
+        this.enabled = enabled;
+        if (enabled && windowMillis > 0) {
+            window = CacheBuilder.newBuilder()
+                    .expireAfterWrite(windowMillis, TimeUnit.MILLISECONDS)
+                    .maximumSize(windowSize).build();
+        } else {
+            window = null;
+        }
+    }
+
+    /**
+     * The key used to spot duplicates, i.e. the URL as normalised by the
+     * UURIFactory (so case and default port differences in the scheme and host
+     * are ignored), without the fragment, which is never sent to the server.
+     *
+     * @param url
+     * @return
+     */
+    protected static String canonicalKey(String url) {
+        int hash = url.indexOf('#');
+        if (hash >= 0) {
+            url = url.substring(0, hash);
+        }
+        try {
+            return UURIFactory.getInstance(url).toString();
+        } catch (URIException e) {
+            // Leave it to the candidate chain to reject:
+            return url;
+        }
+    }
+
+    /**
+     * Add a request to the current batch.
+     *
+     * @param request
+     * @param source
+     * @return true if this is the first request for this URL in the batch.
+     */
+    public boolean add(CrawlRequest request, T source) {
+        if (!enabled || request.getUrl() == null) {
+            entries.add(new Entry<T>(request, null, source));
+            return true;
+        }
+        String key = canonicalKey(request.getUrl());
+        Entry<T> existing = byUrl.get(key);
+        if (existing == null) {
+            Entry<T> entry = new Entry<T>(request, key, source);
+            entries.add(entry);
+            byUrl.put(key, entry);
+            return true;
+        }
+        // Merge into the existing entry:
+        existing.request = merge(existing.request, request);
+        existing.sources.add(source);
+        batchDuplicates.incrementAndGet();
+        return false;
+    }
+
+    /**
+     *
+     * @return the coalesced requests from this batch, in the order they were
+     *         first seen. The batch is then cleared.
+     */
+    public List<Entry<T>> drain() {
+        List<Entry<T>> batch = new ArrayList<Entry<T>>(entries);
+        entries.clear();
+        byUrl.clear();
+        if (window != null) {
+            for (Entry<T> entry : batch) {
+                if (entry.key == null) {
+                    continue;
+                }
+                CrawlRequest request = entry.request;
+                String key = entry.key;
+                int flags = flagsOf(request);
+                Integer sent = window.getIfPresent(key);
+                if (sent != null && (sent | flags) == sent
+                        && request.getResetQuotas() == null) {
+                    entry.suppressed = true;
+                    windowDuplicates.incrementAndGet();
+                } else {
+                    window.put(key, sent == null ? flags : sent | flags);
+                }
+            }
+        }
+        return batch;
+    }
+
+    private static int flagsOf(CrawlRequest request) {
+        return (request.isForceFetch() ? FORCE_FETCH : 0)
+                | (request.isSeed() ? SEED : 0);
+    }
+
+    /**
+     * Keep the stronger of two requests for the same URL, combining the flags
+     * and filling in any settings that only the other one has.
+     */
+    protected static CrawlRequest merge(CrawlRequest a, CrawlRequest b) {
+        CrawlRequest kept = a;
+        CrawlRequest other = b;
+        int flagsA = flagsOf(a);
+        int flagsB = flagsOf(b);
+        if (flagsB > flagsA || (flagsB == flagsA
+                && hopCount(b) < hopCount(a))) {
+            kept = b;
+            other = a;
+        }
+        kept.setForceFetch(a.isForceFetch() || b.isForceFetch());
+        kept.setSeed(a.isSeed() || b.isSeed());
+        if (kept.getResetQuotas() == null) {
+            kept.setResetQuotas(other.getResetQuotas());
+        }
+        if (kept.getRecrawlInterval() == null) {
+            kept.setRecrawlInterval(other.getRecrawlInterval());
+        }
+        if (kept.getSheets() == null && other.getSheets() != null) {
+            for (String sheet : other.getSheets()) {
+                kept.addSheet(sheet);
+            }
+        }
+        return kept;
+    }
+
+    private static int hopCount(CrawlRequest request) {
+        return (request.getPathFromSeed() == null ? 0
+                : request.getPathFromSeed().length())
+                + (request.getHop() == null ? 0 : request.getHop().length());
+    }
+
+    /**
+     *
+     * @return the total number of requests merged into earlier ones in the
+     *         same batch.
+     */
+    public long getBatchDuplicates() {
+        return batchDuplicates.get();
+    }
+
+    /**
+     *
+     * @return the total number of requests suppressed as they were sent
+     *         recently.
+     */
+    public long getWindowDuplicates() {
+        return windowDuplicates.get();
+    }
+
+}
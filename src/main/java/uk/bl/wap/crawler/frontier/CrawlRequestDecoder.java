@@ -0,0 +1,285 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.frontier;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+/**
+ * Decodes JSON crawl requests straight from the message bytes into a
+ * {@link CrawlRequest}, using Jackson's streaming parser rather than building
+ * a String and a JSONObject tree first.
+ *
+ * Unknown fields are skipped. Parsing stops as soon as the method is found to
+ * be something other than GET, as such requests are ignored anyway.
+ *
+ * Messages in the {@link CrawlRequestBinaryCodec} format are detected by their
+ * first byte and decoded by that instead, so both formats can be used on the
+ * same topic.
+ *
+ * A message may also hold a batch of requests that share a parent URL, as
+ * decoded by {@link #decodeAll(byte[], List)}. In JSON, a batch is an object
+ * with the usual method, parentUrl and parentUrlMetadata, along with a "urls"
+ * array of objects holding the url, hop, isSeed, forceFetch and headers of
+ * each request.
+ *
+ * Instances are thread-safe.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class CrawlRequestDecoder {
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
+
+    /**
+     * Decode a JSON or binary crawl request.
+     *
+     * @param data
+     *            the UTF-8 encoded JSON message, or a binary message
+     * @param request
+     *            the request to fill in (this is reset first)
+     * @return true if this is a GET request, false if it should be ignored.
+     * @throws IOException
+     *             if the message is not valid.
+     */
+    public boolean decode(byte[] data, CrawlRequest request)
+            throws IOException {
+        if (CrawlRequestBinaryCodec.isBinary(data)) {
+            return CrawlRequestBinaryCodec.decode(data, request);
+        }
+        request.reset();
+        JsonParser jp = jsonFactory.createParser(data);
+        try {
+            if (jp.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(jp,
+                        "Crawl request is not a JSON object");
+            }
+            if (!parseFields(jp, request, null, true)) {
+                return false;
+            }
+        } finally {
+            jp.close();
+        }
+        return request.isGet();
+    }
+
+    /**
+     * Decode a message holding either one crawl request or a batch of them.
+     *
+     * @param data
+     *            the UTF-8 encoded JSON message, or a binary message
+     * @param requests
+     *            the list to add the decoded GET requests to
+     * @return the number of requests added.
+     * @throws IOException
+     *             if the message is not valid.
+     */
+    public int decodeAll(byte[] data, List<CrawlRequest> requests)
+            throws IOException {
+        if (CrawlRequestBinaryCodec.isBinary(data)) {
+            return CrawlRequestBinaryCodec.decodeAll(data, requests);
+        }
+        CrawlRequest request = new CrawlRequest();
+        List<CrawlRequest> batch = new ArrayList<CrawlRequest>();
+        JsonParser jp = jsonFactory.createParser(data);
+        try {
+            if (jp.nextToken() != JsonToken.START_OBJECT) {
+                throw new JsonParseException(jp,
+                        "Crawl request is not a JSON object");
+            }
+            if (!parseFields(jp, request, batch, true) || !request.isGet()) {
+                return 0;
+            }
+        } finally {
+            jp.close();
+        }
+        // A batch has no URL of its own:
+        if (request.getUrl() != null || batch.isEmpty()) {
+            requests.add(request);
+            return 1;
+        }
+        int added = 0;
+        for (CrawlRequest member : batch) {
+            member.inheritFrom(request);
+            if (member.isGet()) {
+                requests.add(member);
+                added++;
+            }
+        }
+        return added;
+    }
+
+    /*
+     * Reads the fields of an object, up to and including the end of it. If a
+     * list is given, the members of any "urls" array are added to it. Unless
+     * failFast is false, returns false as soon as the method is found not to
+     * be GET, without reading any further.
+     */
+    private boolean parseFields(JsonParser jp, CrawlRequest request,
+            List<CrawlRequest> batch, boolean failFast) throws IOException {
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String field = jp.getCurrentName();
+            JsonToken value = jp.nextToken();
+            if ("url".equals(field)) {
+                request.setUrl(textOf(jp, value));
+            } else if ("parentUrl".equals(field)) {
+                request.setParentUrl(textOf(jp, value));
+            } else if ("hop".equals(field)) {
+                request.setHop(textOf(jp, value));
+            } else if ("method".equals(field)) {
+                request.setMethod(textOf(jp, value));
+                // Fail fast, we only handle GETs:
+                if (failFast && !request.isGet()) {
+                    return false;
+                }
+            } else if ("isSeed".equals(field)) {
+                request.setSeed(booleanOf(jp, value));
+            } else if ("forceFetch".equals(field)) {
+                request.setForceFetch(booleanOf(jp, value));
+            } else if ("recrawlInterval".equals(field)) {
+                request.setRecrawlInterval(intOf(jp, value));
+            } else if ("resetQuotas".equals(field)) {
+                request.setResetQuotas(scalarOf(jp, value));
+            } else if ("headers".equals(field)
+                    && value == JsonToken.START_OBJECT) {
+                while (jp.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = jp.getCurrentName();
+                    request.addHeader(name, textOf(jp, jp.nextToken()));
+                }
+            } else if ("sheets".equals(field)
+                    && value == JsonToken.START_ARRAY) {
+                while (jp.nextToken() != JsonToken.END_ARRAY) {
+                    request.addSheet(jp.getText());
+                }
+            } else if ("parentUrlMetadata".equals(field)
+                    && value == JsonToken.START_OBJECT) {
+                parseParentUrlMetadata(jp, request);
+            } else if ("urls".equals(field) && batch != null
+                    && value == JsonToken.START_ARRAY) {
+                JsonToken member;
+                while ((member = jp.nextToken()) != JsonToken.END_ARRAY) {
+                    if (member == JsonToken.START_OBJECT) {
+                        CrawlRequest child = new CrawlRequest();
+                        parseFields(jp, child, null, false);
+                        batch.add(child);
+                    } else {
+                        jp.skipChildren();
+                    }
+                }
+            } else {
+                jp.skipChildren();
+            }
+        }
+        return true;
+    }
+
+    private void parseParentUrlMetadata(JsonParser jp, CrawlRequest request)
+            throws IOException {
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String field = jp.getCurrentName();
+            JsonToken value = jp.nextToken();
+            if ("pathFromSeed".equals(field)) {
+                request.setPathFromSeed(textOf(jp, value));
+            } else if ("heritableData".equals(field)
+                    && value == JsonToken.START_OBJECT) {
+                parseHeritableData(jp, request);
+            } else {
+                jp.skipChildren();
+            }
+        }
+    }
+
+    // As before, this only goes one level deep, and only handles scalars and
+    // arrays, the latter of which it converts to a Set.
+    private void parseHeritableData(JsonParser jp, CrawlRequest request)
+            throws IOException {
+        while (jp.nextToken() == JsonToken.FIELD_NAME) {
+            String key = jp.getCurrentName();
+            JsonToken value = jp.nextToken();
+            if (value == JsonToken.START_ARRAY) {
+                Set<String> valueSet = new HashSet<String>();
+                while (jp.nextToken() != JsonToken.END_ARRAY) {
+                    valueSet.add(jp.getText());
+                }
+                request.getHeritableData().put(key, valueSet);
+            } else if (value == JsonToken.START_OBJECT) {
+                jp.skipChildren();
+            } else {
+                Object scalar = scalarOf(jp, value);
+                if (scalar != null) {
+                    request.getHeritableData().put(key, scalar);
+                }
+            }
+        }
+    }
+
+    private static String textOf(JsonParser jp, JsonToken value)
+            throws IOException {
+        if (value == JsonToken.VALUE_NULL) {
+            return null;
+        }
+        if (value == JsonToken.START_OBJECT
+                || value == JsonToken.START_ARRAY) {
+            jp.skipChildren();
+            return null;
+        }
+        return jp.getText();
+    }
+
+    private static boolean booleanOf(JsonParser jp, JsonToken value)
+            throws IOException {
+        if (value == JsonToken.VALUE_TRUE) {
+            return true;
+        } else if (value == JsonToken.VALUE_STRING) {
+            return "true".equalsIgnoreCase(jp.getText());
+        }
+        jp.skipChildren();
+        return false;
+    }
+
+    private static Integer intOf(JsonParser jp, JsonToken value)
+            throws IOException {
+        if (value == JsonToken.VALUE_NUMBER_INT
+                || value == JsonToken.VALUE_NUMBER_FLOAT) {
+            return jp.getIntValue();
+        } else if (value == JsonToken.VALUE_STRING) {
+            try {
+                return Integer.parseInt(jp.getText().trim());
+            } catch (NumberFormatException e) {
+                throw new JsonParseException(jp,
+                        "Expected an integer but got " + jp.getText());
+            }
+        }
+        jp.skipChildren();
+        return null;
+    }
+
+    private static Object scalarOf(JsonParser jp, JsonToken value)
+            throws IOException {
+        switch (value) {
+        case VALUE_STRING:
+            return jp.getText();
+        case VALUE_NUMBER_INT:
+        case VALUE_NUMBER_FLOAT:
+            return jp.getNumberValue();
+        case VALUE_TRUE:
+            return Boolean.TRUE;
+        case VALUE_FALSE:
+            return Boolean.FALSE;
+        default:
+            jp.skipChildren();
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,291 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.frontier;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+
+/**
+ * Metrics for the ingest of crawl requests from Kafka, shared by the
+ * {@link KafkaUrlReceiver} and the scoper's KafkaStreamHandler.
+ *
+ * The Prometheus collectors are registered once for the whole JVM, and
+ * labelled by topic. Each instance also keeps its own totals, using
+ * {@link LongAdder}s as they are updated from all the handler threads, and
+ * can render everything in a crawl report.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class KafkaIngestMetrics {
+
+    // Latency buckets, in seconds, from 10 microseconds to 5 seconds:
+    private static final double[] LATENCY_BUCKETS = { 0.00001, 0.00005,
+            0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5 };
+
+    private static final Gauge partitionOffsets = Gauge.build()
+            .name("kafka_partition_offsets").labelNames("topic", "partition")
+            .help("Offset of the last crawl message read, by partition.")
+            .register();
+
+    private static final Gauge partitionLag = Gauge.build()
+            .name("kafka_consumer_lag").labelNames("topic", "partition")
+            .help("Crawl messages waiting to be read, by partition (end offset minus position).")
+            .register();
+
+    private static final Histogram decodeLatency = Histogram.build()
+            .name("kafka_ingest_decode_seconds").labelNames("topic")
+            .buckets(LATENCY_BUCKETS)
+            .help("Time taken to decode each crawl message.").register();
+
+    private static final Histogram candidateChainLatency = Histogram.build()
+            .name("kafka_ingest_candidate_chain_seconds").labelNames("topic")
+            .buckets(LATENCY_BUCKETS)
+            .help("Time taken to run each crawl request through the candidate chain.")
+            .register();
+
+    private static final Histogram scopeDecisionLatency = Histogram.build()
+            .name("kafka_ingest_scope_decision_seconds").labelNames("topic")
+            .buckets(LATENCY_BUCKETS)
+            .help("Time taken to make the scope decision for each crawl request.")
+            .register();
+
+    private final String topic;
+
+    private final LongAdder processed = new LongAdder();
+
+    private final LongAdder enqueued = new LongAdder();
+
+    private final LongAdder seeds = new LongAdder();
+
+    private final LongAdder discarded = new LongAdder();
+
+    private final LongAdder errors = new LongAdder();
+
+    // Latest known lag, by partition:
+    private final Map<Integer, Long> lag = new ConcurrentHashMap<Integer, Long>();
+
+    private volatile int queueDepth = 0;
+
+    public KafkaIngestMetrics(String topic) {
+        this.topic = topic;
+    }
+
+    public String getTopic() {
+        return topic;
+    }
+
+    public void processed() {
+        processed.increment();
+    }
+
+    public void enqueued() {
+        enqueued.increment();
+    }
+
+    public void seed() {
+        seeds.increment();
+    }
+
+    public void discarded() {
+        discarded.increment();
+    }
+
+    public void error() {
+        errors.increment();
+    }
+
+    public long getProcessed() {
+        return processed.sum();
+    }
+
+    public long getEnqueued() {
+        return enqueued.sum();
+    }
+
+    public long getSeeds() {
+        return seeds.sum();
+    }
+
+    public long getDiscarded() {
+        return discarded.sum();
+    }
+
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    public void recordOffset(int partition, long offset) {
+        partitionOffsets.labels(topic, "" + partition).set(offset);
+    }
+
+    public void observeDecode(long nanos) {
+        decodeLatency.labels(topic).observe(nanos / 1.0e9);
+    }
+
+    public void observeCandidateChain(long nanos) {
+        candidateChainLatency.labels(topic).observe(nanos / 1.0e9);
+    }
+
+    public void observeScopeDecision(long nanos) {
+        scopeDecisionLatency.labels(topic).observe(nanos / 1.0e9);
+    }
+
+    /**
+     * Record the number of messages waiting for a handler (the Prometheus
+     * gauges for this are kept by the owning component).
+     *
+     * @param depth
+     */
+    public void setQueueDepth(int depth) {
+        this.queueDepth = depth;
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * Update the lag of each partition from the consumer's own fetch metrics.
+     * These are kept up to date as the consumer fetches, so unlike asking the
+     * brokers for the end offsets, this never blocks the poll loop.
+     *
+     * Handles both the per-partition metric names of Kafka 1.0 clients
+     * ("topic-N.records-lag") and the tagged names used from 1.1.
+     *
+     * @param metrics
+     *            from KafkaConsumer.metrics()
+     */
+    public void updateLag(Map<MetricName, ? extends Metric> metrics) {
+        for (Map.Entry<MetricName, ? extends Metric> entry : metrics
+                .entrySet()) {
+            MetricName mn = entry.getKey();
+            if (!"consumer-fetch-manager-metrics".equals(mn.group())) {
+                continue;
+            }
+            Integer partition = null;
+            if ("records-lag".equals(mn.name())) {
+                if (topic.equals(mn.tags().get("topic"))
+                        && mn.tags().containsKey("partition")) {
+                    partition = parsePartition(mn.tags().get("partition"));
+                }
+            } else if (mn.name().endsWith(".records-lag")) {
+                String tp = mn.name().substring(0,
+                        mn.name().length() - ".records-lag".length());
+                int dash = tp.lastIndexOf('-');
+                if (dash > 0 && topic.equals(tp.substring(0, dash))) {
+                    partition = parsePartition(tp.substring(dash + 1));
+                }
+            }
+            if (partition != null) {
+                double value = entry.getValue().value();
+                if (!Double.isNaN(value) && !Double.isInfinite(value)) {
+                    lag.put(partition, (long) value);
+                    partitionLag.labels(topic, "" + partition).set(value);
+                }
+            }
+        }
+    }
+
+    private static Integer parsePartition(String partition) {
+        try {
+            return Integer.parseInt(partition);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     *
+     * @return the latest known lag, by partition.
+     */
+    public Map<Integer, Long> getLag() {
+        return lag;
+    }
+
+    /**
+     *
+     * @return the total lag across all partitions.
+     */
+    public long getTotalLag() {
+        long total = 0;
+        for (Long l : lag.values()) {
+            total += l;
+        }
+        return total;
+    }
+
+    /**
+     * Write out the totals.
+     *
+     * @param writer
+     */
+    public void reportTotalsTo(PrintWriter writer) {
+        writer.println(" processed: " + getProcessed());
+        writer.println(" enqueued: " + getEnqueued() + " (seeds: "
+                + getSeeds() + ")");
+        writer.println(" discarded: " + getDiscarded());
+        writer.println(" errors: " + getErrors());
+        writer.println(" handler queue depth: " + getQueueDepth());
+        writer.println(" total lag: " + getTotalLag());
+    }
+
+    /**
+     * Write out the latencies and the lag of each partition.
+     *
+     * @param writer
+     */
+    public void reportDetailsTo(PrintWriter writer) {
+        writer.println("\n Latency (seconds):");
+        reportLatency(writer, "decode", decodeLatency);
+        reportLatency(writer, "candidate chain", candidateChainLatency);
+        reportLatency(writer, "scope decision", scopeDecisionLatency);
+
+        writer.println("\n Partition Lag:");
+        List<Integer> partitions = new ArrayList<Integer>(lag.keySet());
+        Collections.sort(partitions);
+        for (Integer partition : partitions) {
+            writer.println("  partition: " + partition + ", lag: "
+                    + lag.get(partition));
+        }
+    }
+
+    private void reportLatency(PrintWriter writer, String name,
+            Histogram histogram) {
+        Histogram.Child.Value v = histogram.labels(topic).get();
+        // The bucket counts are cumulative, so the last one is the total:
+        double count = v.buckets[v.buckets.length - 1];
+        if (count == 0) {
+            writer.println("  " + name + ": no samples");
+            return;
+        }
+        writer.println(String.format(
+                "  %s: count=%.0f, mean=%.6f, p50<=%s, p99<=%s", name, count,
+                v.sum / count, percentileBound(v.buckets, count, 0.5),
+                percentileBound(v.buckets, count, 0.99)));
+    }
+
+    // The upper bound of the bucket the given percentile falls in:
+    private static String percentileBound(double[] buckets, double count,
+            double percentile) {
+        for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+            if (buckets[i] >= count * percentile) {
+                return "" + LATENCY_BUCKETS[i];
+            }
+        }
+        return "+Inf";
+    }
+
+}
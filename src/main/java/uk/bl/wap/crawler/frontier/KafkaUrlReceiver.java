@@ -21,21 +21,26 @@ package uk.bl.wap.crawler.frontier;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -46,6 +51,9 @@ import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetAndTimestamp;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.WakeupException;
 import org.apache.kafka.common.serialization.ByteArrayDeserializer;
@@ -59,21 +67,17 @@ import org.archive.crawler.spring.SheetOverlaysManager;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.SchedulingConstants;
 import org.archive.modules.extractor.Hop;
-import org.archive.modules.extractor.LinkContext;
 import org.archive.modules.fetcher.FetchStats;
 import org.archive.modules.net.CrawlHost;
 import org.archive.modules.net.CrawlServer;
 import org.archive.modules.net.ServerCache;
-import org.archive.net.UURI;
-import org.archive.net.UURIFactory;
 import org.archive.spring.KeyedProperties;
 import org.archive.util.ArchiveUtils;
 import org.archive.util.Reporter;
 import org.archive.util.SurtPrefixSet;
-import org.json.JSONArray;
-import org.json.JSONException;
 import org.json.JSONObject;
 import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.BeanNameAware;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
@@ -82,9 +86,11 @@ import org.springframework.context.Lifecycle;
 
 import io.prometheus.client.Counter;
 import io.prometheus.client.Gauge;
+import uk.bl.wap.crawler.h3.spring.SurtTrieSheetOverlaysManager;
 import uk.bl.wap.crawler.postprocessor.KafkaKeyedDiscardedFeed;
 import uk.bl.wap.crawler.postprocessor.KafkaKeyedToCrawlFeed;
-import uk.bl.wap.modules.deciderules.RecentlySeenDecideRule;
+import uk.bl.wap.util.KeyedLaneExecutor;
+import uk.bl.wap.util.OrderedCompletionTracker;
 
 /**
  * Based on
@@ -113,6 +119,10 @@ import uk.bl.wap.modules.deciderules.RecentlySeenDecideRule;
  * The recrawlInterval allows the default or sheet-defined recrawl interval to
  * be overridden for individual CrawlURIs.
  * 
+ * A message may also hold a batch of requests from the same parent URL, with
+ * the URL-specific fields in a "urls" array (see CrawlRequestDecoder). The
+ * message is only marked as handled once all of its requests have been.
+ * 
  * Note this uses standalone consumers
  * (https://www.oreilly.com/library/view/kafka-the-definitive/9781491936153/ch04.html#idm139631817751824)
  * 
@@ -120,10 +130,25 @@ import uk.bl.wap.modules.deciderules.RecentlySeenDecideRule;
  * always get the same range of keys. This means the same hosts are always
  * routed to the same crawlers.
  * 
+ * To avoid flooding the frontier, consumption can be throttled: when the
+ * number of queued URIs in the frontier (plus the crawl requests waiting for a
+ * handler) rises above frontierHighWatermark, the partitions are paused until
+ * it drops back to frontierLowWatermark. This leaves the backlog in Kafka.
+ * 
+ * If dispatchByKey is set, each message is handled on a single-threaded 'lane'
+ * chosen by its Kafka key (a hash of the host, see
+ * KafkaKeyedCrawlLogFeed.getKeyForCrawlURI), rather than on a shared pool. This
+ * keeps the requests for a host in order, and avoids handler threads contending
+ * for the same host, server and queue.
+ * 
+ * The positions of the messages that have been fully handled are stored in
+ * each checkpoint, and when recovering from a checkpoint the consumer seeks to
+ * exactly those positions, so the Kafka stream and the frontier stay in step.
+ * 
  * @contributor anjackson
  */
 public class KafkaUrlReceiver
-        implements Lifecycle, ApplicationContextAware,
+        implements Lifecycle, ApplicationContextAware, BeanNameAware,
         ApplicationListener<CrawlStateEvent>, Checkpointable, Reporter {
 
     @SuppressWarnings("unused")
@@ -139,6 +164,13 @@ public class KafkaUrlReceiver
         this.appCtx = appCtx;
     }
 
+    protected String beanName;
+
+    @Override
+    public void setBeanName(String name) {
+        this.beanName = name;
+    }
+
     protected SheetOverlaysManager sheetOverlaysManager;
 
     public SheetOverlaysManager getSheetOverlaysManager() {
@@ -272,6 +304,23 @@ public class KafkaUrlReceiver
         this.consumerId = consumerId;
     }
 
+    // How the partitions are shared out among the consumers:
+    private PartitionAssignmentStrategy partitionAssignmentStrategy = new RangePartitionAssignment();
+
+    public PartitionAssignmentStrategy getPartitionAssignmentStrategy() {
+        return partitionAssignmentStrategy;
+    }
+
+    public void setPartitionAssignmentStrategy(
+            PartitionAssignmentStrategy partitionAssignmentStrategy) {
+        this.partitionAssignmentStrategy = partitionAssignmentStrategy;
+    }
+
+    // The partition count and assignment, once known, for reporting:
+    private volatile int numPartitions = -1;
+
+    private volatile List<Integer> assignedPartitions = new ArrayList<Integer>();
+
     private boolean seekToBeginning = true;
 
     public boolean isSeekToBeginning() {
@@ -282,6 +331,84 @@ public class KafkaUrlReceiver
         this.seekToBeginning = seekToBeginning;
     }
 
+    private String seekToTimestamp = "";
+
+    public String getSeekToTimestamp() {
+        return seekToTimestamp;
+    }
+
+    /**
+     * Replay the topic from the first messages at or after this time (as a
+     * 14-digit timestamp, e.g. 20180601120000, in UTC), instead of from the
+     * beginning. Like seekToBeginning, this only happens once, and not when
+     * recovering from a checkpoint.
+     * 
+     * @param seekToTimestamp
+     */
+    public void setSeekToTimestamp(String seekToTimestamp) {
+        this.seekToTimestamp = seekToTimestamp;
+    }
+
+    private long seekLookbackMinutes = 0;
+
+    public long getSeekLookbackMinutes() {
+        return seekLookbackMinutes;
+    }
+
+    /**
+     * Replay the topic from this many minutes ago, instead of from the
+     * beginning. Ignored if seekToTimestamp is set.
+     * 
+     * @param seekLookbackMinutes
+     */
+    public void setSeekLookbackMinutes(long seekLookbackMinutes) {
+        this.seekLookbackMinutes = seekLookbackMinutes;
+    }
+
+    private boolean replayToStartupEnd = false;
+
+    public boolean isReplayToStartupEnd() {
+        return replayToStartupEnd;
+    }
+
+    /**
+     * When rewinding (to the beginning or to a time), note the end of each
+     * partition at startup, and track the replay until those offsets have
+     * been reached. After that the receiver reports that it is consuming live
+     * messages again.
+     * 
+     * @param replayToStartupEnd
+     */
+    public void setReplayToStartupEnd(boolean replayToStartupEnd) {
+        this.replayToStartupEnd = replayToStartupEnd;
+    }
+
+    // The offsets marking the end of the replay, for partitions still being
+    // replayed:
+    private volatile Map<Integer, Long> replayEndOffsets = null;
+
+    /**
+     * 
+     * @return the time to replay from, or -1 if not replaying from a time.
+     */
+    protected long getReplayStartTime() {
+        if (seekToTimestamp != null && !seekToTimestamp.trim().isEmpty()) {
+            try {
+                return ArchiveUtils.parse14DigitDate(seekToTimestamp.trim())
+                        .getTime();
+            } catch (ParseException e) {
+                throw new IllegalArgumentException(
+                        "Could not parse seekToTimestamp " + seekToTimestamp,
+                        e);
+            }
+        }
+        if (seekLookbackMinutes > 0) {
+            return System.currentTimeMillis()
+                    - TimeUnit.MINUTES.toMillis(seekLookbackMinutes);
+        }
+        return -1;
+    }
+
     private int maxPollRecords = 500;
 
     public int getMaxPollRecords() {
@@ -302,6 +429,145 @@ public class KafkaUrlReceiver
         this.numMessageHandlerThreads = numMessageHandlerThreads;
     }
 
+    private int messageHandlerQueueSize = 1000;
+
+    public int getMessageHandlerQueueSize() {
+        return messageHandlerQueueSize;
+    }
+
+    /**
+     * The maximum number of crawl requests that can be waiting for a free
+     * message handler thread. When this queue is full, consumption of the
+     * assigned partitions is paused until the handlers catch up.
+     * 
+     * @param messageHandlerQueueSize
+     */
+    public void setMessageHandlerQueueSize(int messageHandlerQueueSize) {
+        this.messageHandlerQueueSize = messageHandlerQueueSize;
+    }
+
+    private boolean dispatchByKey = false;
+
+    public boolean isDispatchByKey() {
+        return dispatchByKey;
+    }
+
+    /**
+     * If true, handle messages on numMessageHandlerThreads single-threaded
+     * lanes, chosen by the message key, so messages with the same key are
+     * handled in order by the same thread. Each lane gets an equal share of
+     * the messageHandlerQueueSize.
+     * 
+     * @param dispatchByKey
+     */
+    public void setDispatchByKey(boolean dispatchByKey) {
+        this.dispatchByKey = dispatchByKey;
+    }
+
+    private long frontierHighWatermark = 0;
+
+    public long getFrontierHighWatermark() {
+        return frontierHighWatermark;
+    }
+
+    /**
+     * Pause consumption when the frontier queue plus handler queue reaches
+     * this many URIs. Set to zero (the default) to disable throttling.
+     * 
+     * @param frontierHighWatermark
+     */
+    public void setFrontierHighWatermark(long frontierHighWatermark) {
+        this.frontierHighWatermark = frontierHighWatermark;
+    }
+
+    private long frontierLowWatermark = 0;
+
+    public long getFrontierLowWatermark() {
+        return frontierLowWatermark;
+    }
+
+    /**
+     * Resume consumption once the frontier queue plus handler queue has
+     * dropped to this many URIs.
+     * 
+     * @param frontierLowWatermark
+     */
+    public void setFrontierLowWatermark(long frontierLowWatermark) {
+        this.frontierLowWatermark = frontierLowWatermark;
+    }
+
+    private volatile boolean throttled = false;
+
+    public boolean isThrottled() {
+        return throttled;
+    }
+
+    private long offsetCommitInterval = 5000;
+
+    public long getOffsetCommitInterval() {
+        return offsetCommitInterval;
+    }
+
+    /**
+     * How often (in milliseconds) to commit the offsets of the messages that
+     * have been fully handled.
+     * 
+     * @param offsetCommitInterval
+     */
+    public void setOffsetCommitInterval(long offsetCommitInterval) {
+        this.offsetCommitInterval = offsetCommitInterval;
+    }
+
+    private boolean coalesceDuplicates = false;
+
+    public boolean isCoalesceDuplicates() {
+        return coalesceDuplicates;
+    }
+
+    /**
+     * Whether to collapse duplicate requests for the same URL within each
+     * batch of messages, so each URL only runs through the candidate chain
+     * once. Defaults to false. The requests that are dropped are counted in
+     * kafka_crawl_duplicates_total.
+     * 
+     * @param coalesceDuplicates
+     */
+    public void setCoalesceDuplicates(boolean coalesceDuplicates) {
+        this.coalesceDuplicates = coalesceDuplicates;
+    }
+
+    private long coalesceWindow = 5000;
+
+    public long getCoalesceWindow() {
+        return coalesceWindow;
+    }
+
+    /**
+     * How long (in milliseconds) to remember URLs after they have been passed
+     * on, so repeat requests that are no stronger (i.e. not newly forced or
+     * seeds) can be dropped. Set to 0 to only coalesce within each batch.
+     * 
+     * @param coalesceWindow
+     */
+    public void setCoalesceWindow(long coalesceWindow) {
+        this.coalesceWindow = coalesceWindow;
+    }
+
+    private long coalesceWindowSize = 10000;
+
+    public long getCoalesceWindowSize() {
+        return coalesceWindowSize;
+    }
+
+    /**
+     * The maximum number of URLs to remember for the coalescing window.
+     * 
+     * @param coalesceWindowSize
+     */
+    public void setCoalesceWindowSize(long coalesceWindowSize) {
+        this.coalesceWindowSize = coalesceWindowSize;
+    }
+
     protected boolean isRunning = false; 
 
     @Override
@@ -309,30 +575,91 @@ public class KafkaUrlReceiver
         return isRunning;
     }
 
-    private long discardedCount = 0;
-    private long enqueuedCount = 0;
+    // Totals, lag and latencies, shared with the report:
+    private transient KafkaIngestMetrics ingestMetrics;
+
+    /**
+     * 
+     * @return the ingest metrics, or null if the receiver has not started.
+     */
+    public KafkaIngestMetrics getIngestMetrics() {
+        return ingestMetrics;
+    }
 
     // For reporting on last-known position on different partitions:
-    private Map<Integer, Long> currentOffsets = new HashMap<Integer, Long>();
+    private Map<Integer, Long> currentOffsets = new ConcurrentHashMap<Integer, Long>();
+
+    // The positions up to which all messages have been handled, by partition
+    // (these are what gets stored in checkpoints):
+    private Map<Integer, Long> handledOffsets = new ConcurrentHashMap<Integer, Long>();
+
+    // Positions to seek to when recovering from a checkpoint:
+    private Map<Integer, Long> recoveryOffsets = null;
 
     private static final Counter messageCounter = Counter.build()
             .name("kafka_crawl_messages_total").labelNames("topic", "outcome")
             .help("Total crawl messages handled.").register();
 
-    // For reporting on last-known position on different partitions:
-
-    private static final Gauge partitionOffsets = Gauge.build()
-            .name("kafka_partition_offsets").labelNames("topic", "partition")
-            .help("Total crawl messages handled.").register();
+    private static final Counter duplicatesCounter = Counter.build()
+            .name("kafka_crawl_duplicates_total")
+            .labelNames("topic", "scope")
+            .help("Duplicate crawl requests collapsed, within a batch or within the recent window.")
+            .register();
+
+    private static final Gauge replayRemaining = Gauge.build()
+            .name("kafka_crawl_replay_remaining")
+            .labelNames("topic", "partition")
+            .help("Messages left to replay before reaching the end offsets seen at startup.")
+            .register();
+
+    private static final Gauge throttleState = Gauge.build()
+            .name("kafka_crawl_ingest_throttled").labelNames("topic")
+            .help("Whether crawl message ingest is paused because the frontier is full (1) or not (0).")
+            .register();
+
+    private static final Gauge handlerQueueDepth = Gauge.build()
+            .name("kafka_crawl_handler_queue_depth")
+            .labelNames("topic", "lane")
+            .help("Crawl messages waiting for a handler thread, by lane.")
+            .register();
 
     private Integer pollTimeout = 1000;
 
+    // Shorter poll used while paused, so held-back messages are handed over
+    // promptly once the handlers free up:
+    private Integer pausedPollTimeout = 100;
+
     private transient Lock lock = new ReentrantLock(true);
 
     public class KafkaConsumerRunner implements Runnable {
         private final AtomicBoolean closed = new AtomicBoolean(false);
         private final KafkaConsumer<String, byte[]> consumer;
 
+        // Long-lived pool of message handlers, fed via a bounded queue:
+        private ThreadPoolExecutor messageHandlerPool;
+
+        // Or, the lanes of handlers, when dispatching by key:
+        private KeyedLaneExecutor messageHandlerLanes;
+
+        // Messages that could not be handed over because the queue was full:
+        private final LinkedList<TrackedMessage> backlog = new LinkedList<TrackedMessage>();
+
+        private boolean paused = false;
+
+        // Which messages have been handled, so we know what can be committed:
+        private final OrderedCompletionTracker<TopicPartition> completions = new OrderedCompletionTracker<TopicPartition>();
+
+        private final Map<TopicPartition, Long> committedOffsets = new HashMap<TopicPartition, Long>();
+
+        private long lastCommitTime = System.currentTimeMillis();
+
+        private long lastLagUpdate = 0;
+
+        // Collapses duplicate requests, remembering which records they came
+        // from:
+        private final CrawlRequestCoalescer<RecordPosition> coalescer = new CrawlRequestCoalescer<RecordPosition>(
+                coalesceDuplicates, coalesceWindow, coalesceWindowSize);
+
         public KafkaConsumerRunner(boolean seekToBeginning) {
             logger.info("Setting up KafkaConsumerRunner...");
             Properties props = new Properties();
@@ -341,10 +668,11 @@ public class KafkaUrlReceiver
             props.put("group.id", getGroupId()); // Manual partitioning, so
                                                  // separate group.id for each
                                                  // client.
-            props.put("enable.auto.commit", "true"); // NOTE This is ignored
-                                                     // because we are manually
-                                                     // assigning partitions.
-            props.put("auto.commit.interval.ms", "1000");
+            // Offsets are committed once the messages have been handled:
+            props.put("enable.auto.commit", "false");
+            // Only see crawl requests from committed transactions (e.g. from a
+            // transactional scoper). Has no effect on other messages:
+            props.put("isolation.level", "read_committed");
             props.put("session.timeout.ms", "60000");
             props.put(ConsumerConfig.MAX_PARTITION_FETCH_BYTES_CONFIG,
                     256 * 1024); // Default is 50MB
@@ -354,6 +682,28 @@ public class KafkaUrlReceiver
             props.put("value.deserializer",
                     ByteArrayDeserializer.class.getName());
             consumer = new KafkaConsumer<String, byte[]>(props);
+
+            // Threads for processing, which live as long as this runner:
+            if (dispatchByKey) {
+                messageHandlerLanes = new KeyedLaneExecutor(
+                        "KafkaUrlReceiver-handler", numMessageHandlerThreads,
+                        Math.max(1, messageHandlerQueueSize
+                                / numMessageHandlerThreads));
+            } else {
+                final AtomicInteger threadNumber = new AtomicInteger(1);
+                ThreadFactory handlerThreadFactory = new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        return new Thread(r, "KafkaUrlReceiver-handler-"
+                                + threadNumber.getAndIncrement());
+                    }
+                };
+                messageHandlerPool = new ThreadPoolExecutor(
+                        numMessageHandlerThreads, numMessageHandlerThreads, 0L,
+                        TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(
+                                messageHandlerQueueSize),
+                        handlerThreadFactory);
+            }
         }
 
         public void run() {
@@ -364,20 +714,33 @@ public class KafkaUrlReceiver
                     "Running KafkaConsumer... :: group_id = " + getGroupId());
 
             // Assign the partitions:
-            int numPartitions = consumer.partitionsFor(getTopic()).size();
-            List<TopicPartition> parts = new ArrayList<TopicPartition>();
-            int range = numPartitions / getConsumerGroupSize();
-            int lo = (getConsumerId() - 1) * range;
-            int hi = getConsumerId() * range;
-            logger.info("Assigning partitions " + lo + "-" + (hi - 1) + "/"
+            numPartitions = consumer.partitionsFor(getTopic()).size();
+            logger.info("Partition assignment (" + partitionAssignmentStrategy
+                    + ") of " + numPartitions + " partitions to "
+                    + getConsumerGroupSize() + " consumers: "
+                    + partitionAssignmentStrategy.getAssignments(
+                            numPartitions, getConsumerGroupSize()));
+            assignedPartitions = partitionAssignmentStrategy.assign(
+                    numPartitions, getConsumerId(), getConsumerGroupSize());
+            logger.info("Assigning partitions " + assignedPartitions + "/"
                     + numPartitions + " to consumer " + getConsumerId() + "/"
                     + getConsumerGroupSize());
-            for (int p = lo; p < hi; p++) {
+            List<TopicPartition> parts = new ArrayList<TopicPartition>();
+            for (int p : assignedPartitions) {
                 parts.add(new TopicPartition(getTopic(), p));
             }
             consumer.assign(parts);
             // Rewind if requested:
-            if (seekToBeginning) {
+            long replayStartTime = getReplayStartTime();
+            if (recoveryOffsets != null) {
+                seekToCheckpoint();
+            } else if (replayStartTime >= 0) {
+                markReplayEnd();
+                logger.warning("Rewinding the " + getTopic()
+                        + " URL queue to " + new Date(replayStartTime));
+                seekToTime(replayStartTime);
+            } else if (seekToBeginning) {
+                markReplayEnd();
                 logger.warning("Rewinding to the beginning of the " + getTopic()
                         + " URL queue.");
                 seekToBeginning();
@@ -392,44 +755,62 @@ public class KafkaUrlReceiver
                 // And now poll for records:
                 while (!closed.get()) {
                     try {
+                        // Hand over anything held back last time around:
+                        drainBacklog();
+
+                        // Polling while paused keeps us in touch with the
+                        // brokers, but returns no records:
                         ConsumerRecords<String, byte[]> records = consumer
-                                .poll(pollTimeout);
+                                .poll(paused ? pausedPollTimeout
+                                        : pollTimeout);
                         if (records.count() > 0) {
-                            // Threads for processing:
-                            ExecutorService messageHandlerPool = Executors
-                                    .newFixedThreadPool(
-                                            numMessageHandlerThreads);
-
                             // Handle new records
                             for (ConsumerRecord<String, byte[]> record : records) {
+                                TopicPartition tp = new TopicPartition(
+                                        record.topic(), record.partition());
+                                completions.register(tp, record.offset());
                                 try {
-                                    String decodedBody = new String(
-                                            record.value(), "UTF-8");
-                                    logger.finer("Processing crawl request: "
-                                            + decodedBody);
-                                    JSONObject jo = new JSONObject(decodedBody);
-                                    if (emitInScopeCrawlFeed) {
-                                        // Send the in-scope URLs on to a Kafka
-                                        // topic...
-                                        messageHandlerPool.execute(
-                                                new CrawlMessageToKafkaTopic(jo));
+                                    // Each request is handed over to a
+                                    // handler thread, so needs its own
+                                    // instance (and a message may hold a
+                                    // batch of them):
+                                    List<CrawlRequest> requests = new ArrayList<CrawlRequest>(
+                                            1);
+                                    long start = System.nanoTime();
+                                    decoder.decodeAll(record.value(),
+                                            requests);
+                                    ingestMetrics.observeDecode(
+                                            System.nanoTime() - start);
+                                    if (!requests.isEmpty()) {
+                                        RecordPosition position = new RecordPosition(
+                                                tp, record.offset(),
+                                                record.key(),
+                                                requests.size());
+                                        for (CrawlRequest request : requests) {
+                                            coalescer.add(request, position);
+                                        }
                                     } else {
-                                        // Enqueue them locally:
-                                        messageHandlerPool.execute(
-                                            new CrawlMessageFrontierScheduler(jo));
+                                        logger.info(
+                                                "ignoring message with no GET requests at offset "
+                                                        + record.offset()
+                                                        + " partition "
+                                                        + record.partition());
+                                        completions.complete(tp,
+                                                record.offset());
                                     }
-                                    
                                 } catch (Exception e) {
                                     logger.log(Level.SEVERE,
-                                            "problem creating JSON from String received via Kafka "
-                                                    + record.value(),
+                                            "problem decoding crawl request received via Kafka "
+                                                    + new String(record.value(),
+                                                            "UTF-8"),
                                             e);
+                                    ingestMetrics.error();
+                                    // Nothing more to do with this one:
+                                    completions.complete(tp, record.offset());
                                 }
                                 count += 1;
-                                partitionOffsets
-                                        .labels(getTopic(),
-                                                "" + record.partition())
-                                        .set(record.offset());
+                                ingestMetrics.recordOffset(record.partition(),
+                                        record.offset());
                                 currentOffsets.put(record.partition(),
                                         record.offset());
                                 if (count % 1000 == 0) {
@@ -438,26 +819,43 @@ public class KafkaUrlReceiver
                                             + record.offset() + " partition="
                                             + record.partition()
                                             + ". Total enqueued="
-                                            + enqueuedCount + " discarded="
-                                            + discardedCount);
+                                            + ingestMetrics.getEnqueued()
+                                            + " discarded="
+                                            + ingestMetrics.getDiscarded());
                                 }
                             }
-                            // Commit the offsets for what we've consumed:
-                            consumer.commitSync();
-                            // Wait for this batch to finish:
-                            messageHandlerPool.shutdown();
-                            messageHandlerPool.awaitTermination(10,
-                                    TimeUnit.MINUTES);
+                            // Pass on the requests, once per URL:
+                            dispatchBatch(coalescer.drain());
                         }
+                        // Commit the offsets for what has been handled:
+                        if (System.currentTimeMillis()
+                                - lastCommitTime >= offsetCommitInterval) {
+                            commitHandledOffsets(false);
+                        }
+                        // Stop fetching while the handlers are saturated, or
+                        // the frontier is full:
+                        updateThrottleState();
+                        updatePauseState();
+                        updateQueueMetrics();
+                        updateReplayState();
                     } catch (WakeupException e) {
                         logger.info("Poll routine awoken for shutdown...");
-                    } catch (InterruptedException e) {
-                        logger.log(Level.SEVERE,
-                                "Problem while awaiting processing of the batch!",
-                                e);
                     }
                 }
             } finally {
+                shutdownMessageHandlers();
+                try {
+                    try {
+                        commitHandledOffsets(true);
+                    } catch (WakeupException e) {
+                        // The shutdown wakeup arrived outside poll(), and has
+                        // now been used up, so try again:
+                        commitHandledOffsets(true);
+                    }
+                } catch (Exception e) {
+                    logger.log(Level.SEVERE,
+                            "Could not commit final offsets!", e);
+                }
                 logger.info("Closing consumer...");
                 consumer.close();
                 logger.info("Consumer closed.");
@@ -466,6 +864,320 @@ public class KafkaUrlReceiver
             return;
         }
 
+        CrawlRequestCoalescer<RecordPosition> getCoalescer() {
+            return coalescer;
+        }
+
+        /**
+         * Pass on the coalesced requests from a batch of messages, completing
+         * those that were suppressed as they were sent recently.
+         * 
+         * @param batch
+         */
+        private void dispatchBatch(
+                List<CrawlRequestCoalescer.Entry<RecordPosition>> batch) {
+            for (CrawlRequestCoalescer.Entry<RecordPosition> entry : batch) {
+                int duplicates = entry.getSources().size() - 1;
+                if (duplicates > 0) {
+                    logger.fine("Collapsed " + duplicates
+                            + " duplicate crawl requests into: "
+                            + entry.getRequest());
+                    duplicatesCounter.labels(getTopic(), "batch")
+                            .inc(duplicates);
+                }
+                if (entry.isSuppressed()) {
+                    logger.fine("Dropping recently-seen crawl request: "
+                            + entry.getRequest());
+                    duplicatesCounter.labels(getTopic(), "window").inc();
+                    for (RecordPosition position : entry.getSources()) {
+                        position.complete();
+                    }
+                    continue;
+                }
+                CrawlRequest request = entry.getRequest();
+                logger.finer("Processing crawl request: " + request);
+                if (emitInScopeCrawlFeed) {
+                    // Send the in-scope URLs on to a Kafka topic...
+                    dispatch(new TrackedMessage(entry.getSources(),
+                            new CrawlMessageToKafkaTopic(request)));
+                } else {
+                    // Enqueue them locally:
+                    dispatch(new TrackedMessage(entry.getSources(),
+                            new CrawlMessageFrontierScheduler(request)));
+                }
+            }
+        }
+
+        /**
+         * Pass a message to the handler pool, or hold it back if the pool's
+         * queue is full. Once anything is held back, later messages are held
+         * back too, so they are handed over in the order they were received.
+         * 
+         * @param handler
+         */
+        private void dispatch(TrackedMessage handler) {
+            if (backlog.isEmpty()) {
+                try {
+                    execute(handler);
+                    return;
+                } catch (RejectedExecutionException e) {
+                    logger.finer("Message handler queue is full.");
+                }
+            }
+            backlog.add(handler);
+        }
+
+        private void drainBacklog() {
+            while (!backlog.isEmpty()) {
+                try {
+                    execute(backlog.peek());
+                    backlog.remove();
+                } catch (RejectedExecutionException e) {
+                    return;
+                }
+            }
+        }
+
+        private void execute(TrackedMessage handler) {
+            if (messageHandlerLanes != null) {
+                // Messages with no key get spread over the lanes:
+                RecordPosition first = handler.positions.get(0);
+                String key = first.key;
+                if (key == null) {
+                    key = "" + first.offset;
+                }
+                messageHandlerLanes.execute(key, handler);
+            } else {
+                messageHandlerPool.execute(handler);
+            }
+        }
+
+        private int getHandlerQueueDepth() {
+            if (messageHandlerLanes != null) {
+                return messageHandlerLanes.getQueueDepth();
+            } else {
+                return messageHandlerPool.getQueue().size();
+            }
+        }
+
+        private void updateQueueMetrics() {
+            ingestMetrics.setQueueDepth(getHandlerQueueDepth());
+            // The consumer's own view of the lag, which needs no broker
+            // round-trip:
+            if (System.currentTimeMillis() - lastLagUpdate >= 1000) {
+                ingestMetrics.updateLag(consumer.metrics());
+                lastLagUpdate = System.currentTimeMillis();
+            }
+            if (messageHandlerLanes != null) {
+                for (int i = 0; i < messageHandlerLanes.getNumLanes(); i++) {
+                    handlerQueueDepth.labels(getTopic(), "" + i)
+                            .set(messageHandlerLanes.getQueueDepth(i));
+                }
+            } else {
+                handlerQueueDepth.labels(getTopic(), "all")
+                        .set(messageHandlerPool.getQueue().size());
+            }
+        }
+
+        /**
+         * Compare the number of URIs waiting in the frontier and the handler
+         * queue against the watermarks.
+         */
+        private void updateThrottleState() {
+            if (frontierHighWatermark <= 0) {
+                return;
+            }
+            long queued = candidates.getFrontier().queuedUriCount()
+                    + getHandlerQueueDepth() + backlog.size();
+            if (!throttled && queued >= frontierHighWatermark) {
+                logger.info("Throttling consumption, " + queued
+                        + " URIs queued (high watermark "
+                        + frontierHighWatermark + ").");
+                throttled = true;
+                throttleState.labels(getTopic()).set(1);
+            } else if (throttled && queued <= frontierLowWatermark) {
+                logger.info("Lifting throttle, " + queued
+                        + " URIs queued (low watermark " + frontierLowWatermark
+                        + ").");
+                throttled = false;
+                throttleState.labels(getTopic()).set(0);
+            }
+        }
+
+        /**
+         * Pause the assigned partitions while messages are being held back or
+         * ingest is throttled, and resume them once neither is the case.
+         */
+        private void updatePauseState() {
+            boolean shouldPause = !backlog.isEmpty() || throttled;
+            if (shouldPause && !paused) {
+                logger.fine("Pausing consumption, " + backlog.size()
+                        + " messages waiting for handlers, throttled="
+                        + throttled);
+                consumer.pause(consumer.assignment());
+                paused = true;
+            } else if (!shouldPause && paused) {
+                logger.fine("Resuming consumption.");
+                consumer.resume(consumer.assignment());
+                paused = false;
+            }
+        }
+
+        /**
+         * 
+         * @return for each partition, the position of the first message that
+         *         has not yet been fully handled.
+         */
+        public Map<Integer, Long> getSafePositions() {
+            Map<Integer, Long> positions = new HashMap<Integer, Long>();
+            for (Map.Entry<TopicPartition, Long> entry : completions
+                    .getSafePositions().entrySet()) {
+                if (entry.getValue() >= 0) {
+                    positions.put(entry.getKey().partition(),
+                            entry.getValue());
+                }
+            }
+            return positions;
+        }
+
+        /**
+         * Commit, for each partition, up to the first message that has not yet
+         * been fully handled.
+         * 
+         * @param sync
+         *            commit synchronously (used at shutdown)
+         */
+        private void commitHandledOffsets(boolean sync) {
+            lastCommitTime = System.currentTimeMillis();
+            final Map<TopicPartition, OffsetAndMetadata> toCommit = new HashMap<TopicPartition, OffsetAndMetadata>();
+            for (Map.Entry<TopicPartition, Long> entry : completions
+                    .getSafePositions().entrySet()) {
+                Long committed = committedOffsets.get(entry.getKey());
+                if (entry.getValue() >= 0 && (committed == null
+                        || committed.longValue() != entry.getValue())) {
+                    toCommit.put(entry.getKey(),
+                            new OffsetAndMetadata(entry.getValue()));
+                }
+            }
+            if (toCommit.isEmpty()) {
+                return;
+            }
+            logger.finer("Committing offsets: " + toCommit);
+            if (sync) {
+                consumer.commitSync(toCommit);
+            } else {
+                consumer.commitAsync(toCommit, new OffsetCommitCallback() {
+                    @Override
+                    public void onComplete(
+                            Map<TopicPartition, OffsetAndMetadata> offsets,
+                            Exception exception) {
+                        if (exception != null) {
+                            logger.log(Level.WARNING,
+                                    "Failed to commit offsets " + offsets,
+                                    exception);
+                        }
+                    }
+                });
+            }
+            for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : toCommit
+                    .entrySet()) {
+                committedOffsets.put(entry.getKey(),
+                        entry.getValue().offset());
+                handledOffsets.put(entry.getKey().partition(),
+                        entry.getValue().offset());
+            }
+        }
+
+        /**
+         * Where a crawl request came from. A record may hold a batch of
+         * requests, in which case it is only complete once all of them have
+         * been handled.
+         */
+        private class RecordPosition {
+            private final TopicPartition tp;
+            private final long offset;
+            private final String key;
+            private final AtomicInteger remaining;
+
+            private RecordPosition(TopicPartition tp, long offset, String key,
+                    int requests) {
+                this.tp = tp;
+                this.offset = offset;
+                this.key = key;
+                this.remaining = new AtomicInteger(requests);
+            }
+
+            /**
+             * Called once for each request from this record.
+             */
+            private void complete() {
+                if (remaining.decrementAndGet() == 0) {
+                    completions.complete(tp, offset);
+                }
+            }
+        }
+
+        /**
+         * Wraps a message handler, so the records it came from (more than one
+         * if duplicates were collapsed) are marked as complete once it has
+         * run.
+         */
+        private class TrackedMessage implements Runnable {
+            private final List<RecordPosition> positions;
+            private final Runnable handler;
+
+            private TrackedMessage(List<RecordPosition> positions,
+                    Runnable handler) {
+                this.positions = positions;
+                this.handler = handler;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    handler.run();
+                } finally {
+                    for (RecordPosition position : positions) {
+                        position.complete();
+                    }
+                }
+            }
+        }
+
+        private void shutdownMessageHandlers() {
+            if (!backlog.isEmpty()) {
+                logger.warning("Dropping " + backlog.size()
+                        + " messages that were waiting for handlers.");
+                backlog.clear();
+            }
+            logger.info("Waiting for message handlers to finish...");
+            // The handlers are never interrupted, as they may be writing to
+            // the frontier. Anything not handled in time is left running, and
+            // as its offsets are not committed it will be consumed again:
+            try {
+                boolean finished;
+                if (messageHandlerLanes != null) {
+                    messageHandlerLanes.shutdown();
+                    finished = messageHandlerLanes.awaitTermination(
+                            HANDLER_SHUTDOWN_TIMEOUT_MS,
+                            TimeUnit.MILLISECONDS);
+                } else {
+                    messageHandlerPool.shutdown();
+                    finished = messageHandlerPool.awaitTermination(
+                            HANDLER_SHUTDOWN_TIMEOUT_MS,
+                            TimeUnit.MILLISECONDS);
+                }
+                if (!finished) {
+                    logger.warning(
+                            "Message handlers did not finish in time, not committing what they have left.");
+                }
+            } catch (InterruptedException e) {
+                logger.log(Level.SEVERE,
+                        "Interrupted while awaiting message handlers!", e);
+                Thread.currentThread().interrupt();
+            }
+        }
+
         /**
          * This can be used to seek to the start of the Kafka feed after
          * subscribing:
@@ -486,6 +1198,106 @@ public class KafkaUrlReceiver
             }
         }
 
+        /**
+         * Seek each partition to the first message at or after the given
+         * time, or to the end if there are no such messages.
+         */
+        public void seekToTime(long timestamp) {
+            Map<TopicPartition, Long> times = new HashMap<TopicPartition, Long>();
+            for (TopicPartition tp : consumer.assignment()) {
+                times.put(tp, timestamp);
+            }
+            Map<TopicPartition, OffsetAndTimestamp> offsets = consumer
+                    .offsetsForTimes(times);
+            List<TopicPartition> noLaterMessages = new ArrayList<TopicPartition>();
+            for (TopicPartition tp : consumer.assignment()) {
+                OffsetAndTimestamp ot = offsets.get(tp);
+                if (ot != null) {
+                    logger.info("Seeking " + tp + " to offset " + ot.offset()
+                            + " (message time " + new Date(ot.timestamp())
+                            + ")");
+                    consumer.seek(tp, ot.offset());
+                } else {
+                    logger.info("No messages in " + tp
+                            + " since then, seeking to the end.");
+                    noLaterMessages.add(tp);
+                }
+            }
+            if (!noLaterMessages.isEmpty()) {
+                consumer.seekToEnd(noLaterMessages);
+            }
+            // Only do this once in any job:
+            seekToTimestamp = "";
+            seekLookbackMinutes = 0;
+            seekToBeginning = false;
+        }
+
+        /**
+         * If requested, record the current end of each partition, so we can
+         * tell when a replay has caught up.
+         */
+        private void markReplayEnd() {
+            if (!replayToStartupEnd) {
+                return;
+            }
+            Map<Integer, Long> ends = new ConcurrentHashMap<Integer, Long>();
+            for (Map.Entry<TopicPartition, Long> end : consumer
+                    .endOffsets(consumer.assignment()).entrySet()) {
+                ends.put(end.getKey().partition(), end.getValue());
+            }
+            logger.info("Replaying up to offsets " + ends);
+            replayEndOffsets = ends;
+        }
+
+        /**
+         * Check whether the replay has reached the end offsets recorded at
+         * startup.
+         */
+        private void updateReplayState() {
+            Map<Integer, Long> ends = replayEndOffsets;
+            if (ends == null) {
+                return;
+            }
+            for (TopicPartition tp : consumer.assignment()) {
+                Long end = ends.get(tp.partition());
+                if (end == null) {
+                    continue;
+                }
+                long remaining = Math.max(0, end - consumer.position(tp));
+                replayRemaining.labels(getTopic(), "" + tp.partition())
+                        .set(remaining);
+                if (remaining == 0) {
+                    logger.info("Replay of " + tp + " complete.");
+                    ends.remove(tp.partition());
+                }
+            }
+            if (ends.isEmpty()) {
+                logger.warning("Replay of the " + getTopic()
+                        + " URL queue is complete, now consuming live messages.");
+                replayEndOffsets = null;
+            }
+        }
+
+        /**
+         * Seek to the positions recorded in the checkpoint we are recovering
+         * from. Partitions with no recorded position resume as normal.
+         */
+        public void seekToCheckpoint() {
+            for (TopicPartition tp : consumer.assignment()) {
+                Long offset = recoveryOffsets.get(tp.partition());
+                if (offset != null) {
+                    logger.info("Seeking " + tp + " to checkpointed offset "
+                            + offset);
+                    consumer.seek(tp, offset);
+                } else {
+                    logger.warning("No checkpointed offset for " + tp
+                            + ", resuming from last committed offset.");
+                }
+            }
+            // Only do this once:
+            recoveryOffsets = null;
+        }
+
         // Shutdown hook which can be called from a separate thread
         public void shutdown() {
             closed.set(true);
@@ -499,23 +1311,23 @@ public class KafkaUrlReceiver
     /**
      * How we process crawl request messages, when handling locally:
      * 
-     * @param jo
+     * @param request
      */
     public class CrawlMessageFrontierScheduler implements Runnable {
 
-        private JSONObject jo;
+        private CrawlRequest request;
 
-        public CrawlMessageFrontierScheduler(JSONObject jo) {
-            this.jo = jo;
+        public CrawlMessageFrontierScheduler(CrawlRequest request) {
+            this.request = request;
         }
 
         @Override
         public void run() {
             // Process the messages:
-            if ("GET".equals(jo.getString("method"))) {
+            if (request.isGet()) {
                 try {
                     // Make the CrawlURI:
-                    CrawlURI curi = makeCrawlUri(jo);
+                    CrawlURI curi = makeCrawlUri(request);
                     KeyedProperties.clearAllOverrideContexts();
                     
                     // Add a seed to the crawl:
@@ -523,7 +1335,8 @@ public class KafkaUrlReceiver
                         logger.info("Adding seed to crawl: " + curi);
                         messageCounter.labels(getTopic(), "enqueued").inc();
                         messageCounter.labels(getTopic(), "seeds").inc();
-                        enqueuedCount++;
+                        ingestMetrics.enqueued();
+                        ingestMetrics.seed();
 
                         // Note that if we have already added a seed this does
                         // nothing:
@@ -539,8 +1352,11 @@ public class KafkaUrlReceiver
                         logger.fine("Adding URI to crawl: " + curi + " "
                                 + curi.getPathFromSeed() + " "
                                 + curi.forceFetch());
+                        long start = System.nanoTime();
                         int statusAfterCandidateChain = candidates
                                 .runCandidateChain(curi, null);
+                        ingestMetrics.observeCandidateChain(
+                                System.nanoTime() - start);
 
                         // classKey now set, so we can reset quotas:
                         if (curi.getData().containsKey(RESET_QUOTAS))
@@ -555,7 +1371,7 @@ public class KafkaUrlReceiver
                                     + statusAfterCandidateChain);
                             messageCounter.labels(getTopic(), "discarded")
                                     .inc();
-                            discardedCount++;
+                            ingestMetrics.discarded();
                             // n.b. The discarded URIs streamed out here:
                             if (discardedUriFeedEnabled) {
                                 discardedUriFeed.doInnerProcess(curi);
@@ -563,33 +1379,32 @@ public class KafkaUrlReceiver
                         } else {
                             // Was successfully enqueued:
                             messageCounter.labels(getTopic(), "enqueued").inc();
-                            enqueuedCount++;
-                            if (enqueuedCount % 1000 == 0) {
+                            ingestMetrics.enqueued();
+                            if (ingestMetrics.getEnqueued() % 1000 == 0) {
                                 logger.info("Sampling enqueued URLs: " + curi);
                             }
                         }
                     }
                     // Also count total processed:
                     messageCounter.labels(getTopic(), "processed").inc();
+                    ingestMetrics.processed();
                 } catch (URIException e) {
                     logger.log(Level.WARNING,
-                            "problem creating CrawlURI from json received via Kafka "
-                                    + jo,
-                            e);
-                } catch (JSONException e) {
-                    logger.log(Level.SEVERE,
-                            "problem creating CrawlURI from json received via Kafka "
-                                    + jo,
+                            "problem creating CrawlURI from crawl request received via Kafka "
+                                    + request,
                             e);
+                    ingestMetrics.error();
                 } catch (Exception e) {
                     logger.log(Level.SEVERE,
-                            "Unanticipated problem creating CrawlURI from json received via Kafka "
-                                    + jo,
+                            "Unanticipated problem creating CrawlURI from crawl request received via Kafka "
+                                    + request,
                             e);
+                    ingestMetrics.error();
                 }
 
             } else {
-                logger.info("ignoring url with method other than GET - " + jo);
+                logger.info(
+                        "ignoring url with method other than GET - " + request);
             }
         }
 
@@ -641,53 +1456,60 @@ public class KafkaUrlReceiver
     /**
      * How we process crawl request messages, when handling locally:
      * 
-     * @param jo
+     * @param request
      */
     public class CrawlMessageToKafkaTopic implements Runnable {
 
-        private JSONObject jo;
+        private CrawlRequest request;
 
-        public CrawlMessageToKafkaTopic(JSONObject jo) {
-            this.jo = jo;
+        public CrawlMessageToKafkaTopic(CrawlRequest request) {
+            this.request = request;
         }
 
         @Override
         public void run() {
             // Process the messages:
-            if ("GET".equals(jo.getString("method"))) {
+            if (request.isGet()) {
                 try {
                     // Make the CrawlURI:
-                    CrawlURI curi = makeCrawlUri(jo);
+                    CrawlURI curi = makeCrawlUri(request);
                     toCrawlFeed.process(curi);
                 
                     // Was successfully enqueued:
-                    enqueuedCount++;
-                    if (enqueuedCount % 1000 == 0) {
+                    ingestMetrics.enqueued();
+                    ingestMetrics.processed();
+                    if (ingestMetrics.getEnqueued() % 1000 == 0) {
                         logger.info("Sampling enqueued URLs: " + curi);
                     }
                 } catch (URIException e) {
                     logger.log(Level.WARNING,
-                            "problem creating CrawlURI from json received via Kafka "
-                                    + jo,
-                            e);
-                } catch (JSONException e) {
-                    logger.log(Level.SEVERE,
-                            "problem creating CrawlURI from json received via Kafka "
-                                    + jo,
+                            "problem creating CrawlURI from crawl request received via Kafka "
+                                    + request,
                             e);
+                    ingestMetrics.error();
                 } catch (Exception e) {
                     logger.log(Level.SEVERE,
-                            "Unanticipated problem creating CrawlURI from json received via Kafka "
-                                    + jo,
+                            "Unanticipated problem creating CrawlURI from crawl request received via Kafka "
+                                    + request,
                             e);
+                    ingestMetrics.error();
                 }
             } else {
-                logger.info("ignoring url with method other than GET - " + jo);
+                logger.info(
+                        "ignoring url with method other than GET - " + request);
             }
         }
 
     }
 
+    // How long to wait for the message handlers to finish on shutdown:
+    private static final long HANDLER_SHUTDOWN_TIMEOUT_MS = 60 * 1000;
+
+    // How long to wait for the consumer thread on shutdown, which must be
+    // longer than it waits for the handlers, so it is not interrupted:
+    private static final long CONSUMER_SHUTDOWN_TIMEOUT_MS = HANDLER_SHUTDOWN_TIMEOUT_MS
+            + 30 * 1000;
+
     // Thread for the Kafka client:
     transient private KafkaConsumerRunner kafkaConsumer;
     transient private ThreadGroup kafkaProducerThreads;
@@ -718,6 +1540,9 @@ public class KafkaUrlReceiver
                 executorService = Executors.newFixedThreadPool(1,
                         threadFactory);
                 logger.info("Requesting launch of the KafkaURLReceiver...");
+                if (ingestMetrics == null) {
+                    ingestMetrics = new KafkaIngestMetrics(getTopic());
+                }
                 kafkaConsumer = new KafkaConsumerRunner(seekToBeginning);
                 executorService.execute(kafkaConsumer);
                 this.isRunning = true;
@@ -734,16 +1559,22 @@ public class KafkaUrlReceiver
             if (isRunning) {
                 logger.info("Requesting shutdown of the KafkaURLReceiver...");
                 this.kafkaConsumer.shutdown();
+                this.executorService.shutdown();
                 try {
                     logger.info(
                             "Awaiting termination of the ExecutorService...");
-                    this.executorService.awaitTermination(4, TimeUnit.SECONDS);
+                    if (!this.executorService.awaitTermination(
+                            CONSUMER_SHUTDOWN_TIMEOUT_MS,
+                            TimeUnit.MILLISECONDS)) {
+                        logger.warning(
+                                "Forcing shutdown of the KafkaURLReceiver...");
+                        this.executorService.shutdownNow();
+                    }
                 } catch (InterruptedException e) {
                     logger.log(Level.SEVERE,
                             "Exception while terminating Kafka thread...", e);
+                    Thread.currentThread().interrupt();
                 }
-                logger.info("Forcing shutdown of the KafkaURLReceiver...");
-                this.executorService.shutdownNow();
                 isRunning = false;
                 logger.info("Shutdown of the KafkaURLReceiver complete.");
             }
@@ -752,73 +1583,17 @@ public class KafkaUrlReceiver
         }
     }
 
-    protected static final Set<String> REQUEST_HEADER_BLACKLIST = new HashSet<String>(Arrays.asList(
-            "accept-encoding", "upgrade-insecure-requests", "host", "connection"));
-
-
-    // {
-    // "headers": {
-    // "Referer": "https://archive.org/",
-    // "User-Agent": "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML,
-    // like Gecko) Ubuntu Chromium/32.0.1700.102 Chrome/32.0.1700.102
-    // Safari/537.36",
-    // "Accept": "image/webp,*/*;q=0.8"
-    // },
-    // "url":
-    // "https://analytics.archive.org/0.gif?server_ms=256&server_name=www19.us.archive.org&service=ao&loadtime=358&timediff=-8&locale=en-US&referrer=-&version=2&count=9",
-    // "method": "GET"
-    // }
-    protected CrawlURI makeCrawlUri(JSONObject jo)
-            throws URIException, JSONException {
-
-        UURI uuri = UURIFactory.getInstance(jo.getString("url"));
-        String viaStr = jo.getString("parentUrl");
-        // Cope if we are passed an empty value by copying the URL:
-        if (viaStr == null || "".equals(viaStr))
-            viaStr = uuri.getURI();
-        UURI via = UURIFactory.getInstance(viaStr);
-
-        JSONObject parentUrlMetadata = jo.getJSONObject("parentUrlMetadata");
-        String parentHopPath = parentUrlMetadata.getString("pathFromSeed");
-        String hop = jo.optString("hop", "");
-        String hopPath = parentHopPath + hop;
-
-        CrawlURI curi = new CrawlURI(uuri, hopPath, via,
-                LinkContext.INFERRED_MISC);
-
-        populateHeritableMetadata(curi, parentUrlMetadata);
-
-        // set the http headers from the Kafka message:
-        if (jo.has("headers")) {
-            JSONObject joHeaders = jo.getJSONObject("headers");
-            Map<String, String> customHttpRequestHeaders = new HashMap<String, String>();
-            for (Object key : joHeaders.keySet()) {
-                String k = key.toString();
-                if (!k.startsWith(":")
-                        && !REQUEST_HEADER_BLACKLIST.contains(k)) {
-                    customHttpRequestHeaders.put(k,
-                            joHeaders.getString(key.toString()));
-                }
-            }
-            curi.getData().put("customHttpRequestHeaders",
-                    customHttpRequestHeaders);
-        }
+    // Decodes the JSON crawl requests:
+    private final CrawlRequestDecoder decoder = new CrawlRequestDecoder();
 
-        // Set up sheet associations, if specified:
-        if (jo.has("sheets")) {
-            List<String> sheetNames = new LinkedList<String>();
-            JSONArray jsn = jo.getJSONArray("sheets");
-            for (int i = 0; i < jsn.length(); i++) {
-                sheetNames.add(jsn.getString(i));
-            }
-            this.setSheetAssociations(curi, sheetNames);
-        }
+    protected CrawlURI makeCrawlUri(CrawlRequest request)
+            throws URIException {
+
+        CrawlURI curi = request.toCrawlURI();
 
-        // Set up recrawl interval, if specified:
-        if (jo.has("recrawlInterval")) {
-            int recrawlInterval = jo.getInt("recrawlInterval");
-            curi.getData().put(RecentlySeenDecideRule.RECRAWL_INTERVAL,
-                    recrawlInterval);
+        // Set up sheet associations, if specified:
+        if (request.getSheets() != null) {
+            this.setSheetAssociations(curi, request.getSheets());
         }
 
         /*
@@ -833,14 +1608,10 @@ public class KafkaUrlReceiver
             curi.setPrecedence(1);
         }
 
-        // Set seed and forceFetch status:
-        curi.setForceFetch(jo.optBoolean("forceFetch"));
-        curi.setSeed(jo.optBoolean("isSeed"));
-
         // Reset quotas if requested (seeds only):
-        if (jo.has("resetQuotas")) {
+        if (request.getResetQuotas() != null) {
             // Store the request in the CrawlURI data:
-            curi.getData().put(RESET_QUOTAS, jo.get("resetQuotas"));
+            curi.getData().put(RESET_QUOTAS, request.getResetQuotas());
         }
 
         return curi;
@@ -858,48 +1629,9 @@ public class KafkaUrlReceiver
         String effectiveSurt = SurtPrefixSet
                 .getCandidateSurt(curi.getPolicyBasisUURI());
 
-        // Get the list of all known sheets:
-        Set<String> allSheetNames = getSheetOverlaysManager().getSheetsByName()
-                .keySet();
-        // Make a list of the valid proposed sheet names:
-        List<String> sheetNames = new LinkedList<String>();
-        for (String sheetName : sheets) {
-            if (allSheetNames.contains(sheetName)) {
-                sheetNames.add(sheetName);
-            } else {
-                logger.severe("Unknown sheet name: " + sheetName);
-            }
-        }
-        // Set the association for this prefix:
-        logger.info(
-                "Setting sheets for " + effectiveSurt + " to " + sheetNames);
-        getSheetOverlaysManager().getSheetsNamesBySurt().put(effectiveSurt,
-                sheetNames);
-    }
-
-    // set the heritable data from the parent url, passed back to us via Kafka
-    // XXX brittle, only goes one level deep, and only handles strings and
-    // arrays, the latter of which it converts to a Set.
-    // 'heritableData': {'source': 'https://facebook.com/whitehouse/',
-    // 'heritable': ['source', 'heritable']}
-    @SuppressWarnings("unchecked")
-    protected void populateHeritableMetadata(CrawlURI curi,
-            JSONObject parentUrlMetadata) {
-        JSONObject heritableData = parentUrlMetadata
-                .getJSONObject("heritableData");
-        for (String key : (Set<String>) heritableData.keySet()) {
-            Object value = heritableData.get(key);
-            if (value instanceof JSONArray) {
-                Set<String> valueSet = new HashSet<String>();
-                JSONArray arr = ((JSONArray) value);
-                for (int i = 0; i < arr.length(); i++) {
-                    valueSet.add(arr.getString(i));
-                }
-                curi.getData().put(key, valueSet);
-            } else {
-                curi.getData().put(key, heritableData.get(key));
-            }
-        }
+        SurtTrieSheetOverlaysManager.setSheetAssociations(
+                getSheetOverlaysManager(), effectiveSurt, sheets,
+                curi.getPolicyBasisUURI(), appCtx);
     }
 
     @Override
@@ -925,7 +1657,25 @@ public class KafkaUrlReceiver
     @Override
     public void doCheckpoint(Checkpoint checkpointInProgress)
             throws IOException {
-        // No action needed.
+        // Record the position of each partition, up to the first message
+        // that has not been fully handled (as used when committing). Messages
+        // that are still queued or held back are therefore re-read when
+        // recovering:
+        Map<Integer, Long> positions = new HashMap<Integer, Long>(
+                handledOffsets);
+        KafkaConsumerRunner runner = kafkaConsumer;
+        if (runner != null) {
+            positions.putAll(runner.getSafePositions());
+        }
+        JSONObject offsets = new JSONObject();
+        for (Map.Entry<Integer, Long> entry : positions.entrySet()) {
+            offsets.put("" + entry.getKey(), entry.getValue().longValue());
+        }
+        JSONObject json = new JSONObject();
+        json.put("topic", getTopic());
+        json.put("offsets", offsets);
+        logger.info("Storing Kafka offsets in checkpoint: " + json);
+        checkpointInProgress.saveJson(beanName, json);
     }
 
     @Override
@@ -938,7 +1688,32 @@ public class KafkaUrlReceiver
         // It seems we should recover from a checkpoint. In that case DO NOT
         // rewind the Kafka queue.
         this.seekToBeginning = false;
+        this.seekToTimestamp = "";
+        this.seekLookbackMinutes = 0;
 
+        // Pick up the stored positions, if there are any:
+        try {
+            JSONObject json = recoveryCheckpoint.loadJson(beanName);
+            if (!getTopic().equals(json.optString("topic"))) {
+                logger.warning("Checkpoint offsets are for topic "
+                        + json.optString("topic") + " not " + getTopic()
+                        + ", so will not be used.");
+                return;
+            }
+            JSONObject offsets = json.getJSONObject("offsets");
+            Map<Integer, Long> positions = new HashMap<Integer, Long>();
+            for (Object key : offsets.keySet()) {
+                positions.put(Integer.parseInt(key.toString()),
+                        offsets.getLong(key.toString()));
+            }
+            logger.info("Will resume from checkpointed offsets " + positions);
+            this.recoveryOffsets = positions;
+            this.handledOffsets.putAll(positions);
+        } catch (Exception e) {
+            logger.log(Level.WARNING,
+                    "Could not load Kafka offsets from checkpoint, will resume from last committed offsets.",
+                    e);
+        }
     }
 
     /* Reporter support */
@@ -947,8 +1722,43 @@ public class KafkaUrlReceiver
     public void reportTo(PrintWriter writer) throws IOException {
         writer.print("Kafka URL Receiver report - "
                 + ArchiveUtils.get12DigitDate() + "\n");
-        writer.println(" enqueued: " + this.enqueuedCount);
-        writer.println(" discarded: " + this.discardedCount);
+        KafkaIngestMetrics metrics = ingestMetrics;
+        if (metrics != null) {
+            metrics.reportTotalsTo(writer);
+        }
+        if (frontierHighWatermark > 0) {
+            writer.println(" throttled: " + this.throttled + " (high="
+                    + frontierHighWatermark + ", low=" + frontierLowWatermark
+                    + ")");
+        }
+        KafkaConsumerRunner runner = kafkaConsumer;
+        if (runner != null) {
+            writer.println(" duplicates collapsed: "
+                    + runner.getCoalescer().getBatchDuplicates()
+                    + " within batches, "
+                    + runner.getCoalescer().getWindowDuplicates()
+                    + " seen recently");
+        }
+        Map<Integer, Long> ends = replayEndOffsets;
+        if (ends != null) {
+            writer.println(" replaying: up to offsets " + ends);
+        }
+        writer.println(" partition assignment: " + partitionAssignmentStrategy
+                + ", consumer " + consumerId + "/" + consumerGroupSize);
+        if (numPartitions >= 0) {
+            writer.println(" assigned partitions: " + assignedPartitions + "/"
+                    + numPartitions);
+            writer.println("\n Partitions by consumer:");
+            for (Map.Entry<Integer, List<Integer>> assignment : partitionAssignmentStrategy
+                    .getAssignments(numPartitions, consumerGroupSize)
+                    .entrySet()) {
+                writer.println("  consumer: " + assignment.getKey()
+                        + ", partitions: " + assignment.getValue());
+            }
+        }
+        if (metrics != null) {
+            metrics.reportDetailsTo(writer);
+        }
         writer.println("\n Partition Offsets:");
         List<Integer> keys = new ArrayList<Integer>(currentOffsets.keySet());
         Collections.sort(keys);
@@ -968,7 +1778,18 @@ public class KafkaUrlReceiver
 
     @Override
     public Map<String, Object> shortReportMap() {
-        return null;
+        KafkaIngestMetrics metrics = ingestMetrics;
+        if (metrics == null) {
+            return null;
+        }
+        Map<String, Object> map = new LinkedHashMap<String, Object>();
+        map.put("processed", metrics.getProcessed());
+        map.put("enqueued", metrics.getEnqueued());
+        map.put("discarded", metrics.getDiscarded());
+        map.put("errors", metrics.getErrors());
+        map.put("queueDepth", metrics.getQueueDepth());
+        map.put("lag", metrics.getTotalLag());
+        return map;
     }
 
     @Override
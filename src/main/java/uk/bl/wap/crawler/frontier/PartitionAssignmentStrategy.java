@@ -0,0 +1,60 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.frontier;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which partitions of a topic a given member of a fixed-size group of
+ * consumers should read. Implementations must assign every partition to
+ * exactly one consumer.
+ *
+ * As all URLs for a host are sent to the same partition, this also determines
+ * which crawler each host is crawled by.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public abstract class PartitionAssignmentStrategy {
+
+    /**
+     *
+     * @param numPartitions
+     *            the number of partitions in the topic
+     * @param consumerId
+     *            the ID of this consumer, from 1 to consumerGroupSize
+     * @param consumerGroupSize
+     *            the total number of consumers
+     * @return the partitions this consumer should read, in ascending order.
+     */
+    public abstract List<Integer> assign(int numPartitions, int consumerId,
+            int consumerGroupSize);
+
+    /**
+     *
+     * @param numPartitions
+     * @param consumerGroupSize
+     * @return the partitions assigned to every consumer, by consumer ID.
+     */
+    public Map<Integer, List<Integer>> getAssignments(int numPartitions,
+            int consumerGroupSize) {
+        Map<Integer, List<Integer>> assignments = new LinkedHashMap<Integer, List<Integer>>();
+        for (int c = 1; c <= consumerGroupSize; c++) {
+            assignments.put(c, assign(numPartitions, c, consumerGroupSize));
+        }
+        return assignments;
+    }
+
+    protected static void checkConsumerId(int consumerId,
+            int consumerGroupSize) {
+        if (consumerGroupSize < 1 || consumerId < 1
+                || consumerId > consumerGroupSize) {
+            throw new IllegalArgumentException("Consumer ID " + consumerId
+                    + " is not in the range 1 to " + consumerGroupSize);
+        }
+    }
+
+}
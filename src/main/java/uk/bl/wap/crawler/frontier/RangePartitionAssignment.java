@@ -0,0 +1,50 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.frontier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Assigns each consumer a contiguous range of partitions. Where the partitions
+ * do not divide evenly, the partitions left over at the end are handed out
+ * one each to the first consumers, so none are left unread. The ranges
+ * themselves are the same as those used before the left-over partitions were
+ * read at all, so existing consumers keep the partitions (and so the hosts)
+ * they already had.
+ *
+ * e.g. 10 partitions over 3 consumers gives 0-2 and 9, 3-5, and 6-8.
+ *
+ * Changing the number of consumers moves most partitions to a different
+ * consumer. See {@link RendezvousPartitionAssignment} if that is a problem.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class RangePartitionAssignment extends PartitionAssignmentStrategy {
+
+    @Override
+    public List<Integer> assign(int numPartitions, int consumerId,
+            int consumerGroupSize) {
+        checkConsumerId(consumerId, consumerGroupSize);
+        int range = numPartitions / consumerGroupSize;
+        int index = consumerId - 1;
+        List<Integer> parts = new ArrayList<Integer>();
+        for (int p = index * range; p < (index + 1) * range; p++) {
+            parts.add(p);
+        }
+        // Plus one of the left-over partitions, if there are enough:
+        int extra = range * consumerGroupSize + index;
+        if (extra < numPartitions) {
+            parts.add(extra);
+        }
+        return parts;
+    }
+
+    @Override
+    public String toString() {
+        return "range";
+    }
+
+}
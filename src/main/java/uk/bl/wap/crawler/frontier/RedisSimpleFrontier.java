@@ -3,7 +3,12 @@
  */
 package uk.bl.wap.crawler.frontier;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.archive.bdb.AutoKryo;
@@ -12,10 +17,19 @@ import org.archive.modules.SchedulingConstants;
 
 import com.anotherbigidea.util.Base64;
 import com.esotericsoftware.kryo.ObjectBuffer;
+import com.lambdaworks.redis.KeyScanCursor;
+import com.lambdaworks.redis.RedisAsyncConnection;
 import com.lambdaworks.redis.RedisClient;
 import com.lambdaworks.redis.RedisConnection;
+import com.lambdaworks.redis.RedisException;
+import com.lambdaworks.redis.RedisFuture;
+import com.lambdaworks.redis.RedisURI;
+import com.lambdaworks.redis.ScanArgs;
 import com.lambdaworks.redis.ScoredValue;
-import com.lambdaworks.redis.ZAddArgs;
+import com.lambdaworks.redis.ScoredValueScanCursor;
+import com.lambdaworks.redis.ScriptOutputType;
+import com.lambdaworks.redis.pubsub.RedisPubSubAdapter;
+import com.lambdaworks.redis.pubsub.RedisPubSubConnection;
 
 /**
  * 
@@ -26,6 +40,28 @@ import com.lambdaworks.redis.ZAddArgs;
  * 
  * FIXME Current version is rather too closely tied to H3 via the CrawlURI.
  * 
+ * Each operation that touches more than one key is a Lua script, loaded once
+ * when connecting and then run via EVALSHA, so it takes a single round trip and
+ * Redis applies it atomically. Note the scripts build the per-queue and
+ * per-URI keys themselves, so this will not work on a Redis Cluster.
+ * 
+ * The scripts are sent over a small set of asynchronous connections, rather
+ * than through one synchronized connection, so callers only wait for their own
+ * replies and the commands from many threads are pipelined. Operations on a
+ * queue always use the same connection, so they are applied in the order they
+ * were made.
+ * 
+ * When nothing is due, {@link #next()} waits until the earliest scheduled
+ * queue is due, rather than polling. Only one waiting thread sleeps until then,
+ * and the others are woken one at a time as URIs are handed out. The scripts
+ * publish the due time of any newly scheduled queue on the qs:due channel, so
+ * waiting threads can be woken early when something is due sooner.
+ * 
+ * The {@link #checkConsistency(boolean)} method can be used to find (and
+ * optionally repair) any damage left behind by older versions, i.e. queued
+ * URIs with no stored CrawlURI, stored CrawlURIs that are not queued, and
+ * queues that hold URIs but are neither scheduled nor active.
+ * 
  * @author Andrew Jackson <Andrew.Jackson@bl.uk>
  *
  */
@@ -38,12 +74,45 @@ public class RedisSimpleFrontier {
 
     private int redisDB = 0;
 
+    private boolean repairOnStart = false;
+
+    private int redisConnections = 4;
+
+    private long redisTimeoutSeconds = 60;
+
+    private long maxWaitMs = 30000;
+
+    // Used for loading scripts and for checking consistency:
     private RedisConnection<String, String> connection;
 
+    private volatile List<RedisAsyncConnection<String, String>> asyncConnections;
+
+    // Used to hear about newly scheduled queues:
+    private RedisPubSubConnection<String, String> pubSubConnection;
+
+    // Guards the following, and is notified when a queue may be due:
+    private final Object dueLock = new Object();
+
+    // The earliest time a queue is known to be due:
+    private long nextDueTime = 0;
+
+    // The DUE scripts in progress, which note any queues scheduled while
+    // they run, so an earlier due time is not lost:
+    private final List<ScheduleWatch> scheduleWatches = new ArrayList<ScheduleWatch>();
+
+    // When the thread waiting for the next due queue will wake up:
+    private long timerDeadline = Long.MAX_VALUE;
+
     private RedisClient redisClient;
 
-    AutoKryo kryo = new AutoKryo();
-    ObjectBuffer ob = new ObjectBuffer(kryo, 16 * 1024, Integer.MAX_VALUE);
+    private static final ThreadLocal<ObjectBuffer> kryoBuffer = new ThreadLocal<ObjectBuffer>() {
+        @Override
+        protected ObjectBuffer initialValue() {
+            AutoKryo kryo = new AutoKryo();
+            kryo.autoregister(CrawlURI.class);
+            return new ObjectBuffer(kryo, 16 * 1024, Integer.MAX_VALUE);
+        }
+    };
 
     /**
      * @return the redisEndpoint
@@ -75,17 +144,110 @@ public class RedisSimpleFrontier {
         this.redisDB = DB;
     }
 
+    /**
+     * @return whether to check and repair the frontier on start
+     */
+    public boolean isRepairOnStart() {
+        return repairOnStart;
+    }
+
+    /**
+     * @param repairOnStart
+     *            whether to run {@link #checkConsistency(boolean)}, with
+     *            repairs, on start. This scans every stored URI and queue
+     *            before the crawl can begin, so is slow on a large frontier.
+     *            Defaults to false.
+     */
+    public void setRepairOnStart(boolean repairOnStart) {
+        this.repairOnStart = repairOnStart;
+    }
+
+    /**
+     * @return the number of asynchronous connections to use
+     */
+    public int getRedisConnections() {
+        return redisConnections;
+    }
+
+    /**
+     * @param redisConnections
+     *            the number of asynchronous connections to spread operations
+     *            over, defaults to 4
+     */
+    public void setRedisConnections(int redisConnections) {
+        this.redisConnections = redisConnections;
+    }
+
+    /**
+     * @return how long to wait for a reply, in seconds
+     */
+    public long getRedisTimeoutSeconds() {
+        return redisTimeoutSeconds;
+    }
+
+    /**
+     * @param redisTimeoutSeconds
+     *            how long to wait for a reply from Redis, defaults to 60
+     */
+    public void setRedisTimeoutSeconds(long redisTimeoutSeconds) {
+        this.redisTimeoutSeconds = redisTimeoutSeconds;
+    }
+
+    /**
+     * @return the longest time next() waits before checking again
+     */
+    public long getMaxWaitMs() {
+        return maxWaitMs;
+    }
+
+    /**
+     * @param maxWaitMs
+     *            the longest time next() waits before checking Redis again,
+     *            even if it has not been told a queue is due. Defaults to
+     *            30000.
+     */
+    public void setMaxWaitMs(long maxWaitMs) {
+        this.maxWaitMs = maxWaitMs;
+    }
+
     /**
      * 
      */
     public synchronized void connect() {
-        redisClient = RedisClient.create(redisEndpoint);
+        // Select the database to use:
+        RedisURI uri = RedisURI.create(redisEndpoint);
+        uri.setDatabase(redisDB);
+        redisClient = RedisClient.create(uri);
         connection = redisClient.connect();
 
-        // Select the database to use:
-        connection.select(redisDB);
+        List<RedisAsyncConnection<String, String>> connections = new ArrayList<RedisAsyncConnection<String, String>>();
+        for (int i = 0; i < Math.max(1, redisConnections); i++) {
+            connections.add(redisClient.connectAsync());
+        }
+        asyncConnections = connections;
 
-        logger.info("Connected to Redis");
+        // Load the scripts, so they can be called by digest:
+        for (Script script : SCRIPTS) {
+            script.load(connection);
+        }
+
+        // Listen for queues being scheduled:
+        pubSubConnection = redisClient.connectPubSub();
+        pubSubConnection.addListener(new RedisPubSubAdapter<String, String>() {
+            @Override
+            public void message(String channel, String message) {
+                try {
+                    noteScheduled(Double.valueOf(message).longValue());
+                } catch (NumberFormatException e) {
+                    logger.warning("Ignoring unexpected message on "
+                            + channel + ": " + message);
+                }
+            }
+        });
+        await(pubSubConnection.subscribe(CHANNEL_QS_DUE));
+
+        logger.info("Connected to Redis, using " + connections.size()
+                + " asynchronous connections");
     }
 
     /* ------- ------- ------- ------- ------- ------- ------- ------- */
@@ -93,7 +255,6 @@ public class RedisSimpleFrontier {
     /* ------- ------- ------- ------- ------- ------- ------- ------- */
 
     public RedisSimpleFrontier() {
-        kryo.autoregister(CrawlURI.class);
     }
 
 
@@ -101,15 +262,33 @@ public class RedisSimpleFrontier {
     /* */
     /* ------- ------- ------- ------- ------- ------- ------- ------- */
 
+    /**
+     * Thrown by {@link RedisSimpleFrontier#due()} when no queues are scheduled
+     * or active, i.e. there is nothing left to crawl.
+     */
+    public static class NothingScheduledException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public NothingScheduledException() {
+            super("No more URLs scheduled!");
+        }
+    }
+
+    // How long to wait before retrying after the first Redis error:
+    private static final long RETRY_INITIAL_MS = 1000;
+
     /**
      * Wait for a URL to be due.
      * 
-     * If no more are scheduled return null.
+     * If no more are scheduled (or the frontier has been stopped) return null.
+     * If Redis fails or is slow to reply, keep trying, backing off up to
+     * maxWaitMs between attempts.
      * 
      * @return
      */
     public CrawlURI next() {
         CrawlURI curi = null;
+        long retryMs = RETRY_INITIAL_MS;
 
         // TODO Update/rotate 'owned' queues if required:
         // TODO Find the queue 'owned' by this instance that is due to launch
@@ -117,151 +296,375 @@ public class RedisSimpleFrontier {
 
         // TODO Pick off the next CrawlURI:
         while (curi == null) {
+            if (asyncConnections == null) {
+                logger.info("Frontier stopped, no more URIs.");
+                return null;
+            }
             try {
                 curi = this.due();
-            } catch (Exception e) {
+                retryMs = RETRY_INITIAL_MS;
+            } catch (NothingScheduledException e) {
                 return null;
+            } catch (RedisException e) {
+                logger.log(Level.WARNING, "Could not get the next due URI, "
+                        + "retrying in " + retryMs + "ms", e);
+                try {
+                    Thread.sleep(retryMs);
+                } catch (InterruptedException ie) {
+                    logger.fine("Interrupted while waiting to retry Redis.");
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+                retryMs = Math.min(retryMs * 2, Math.max(maxWaitMs,
+                        RETRY_INITIAL_MS));
+                continue;
             }
-            // Sleep if there's nothing due...
+            // Wait if there's nothing due...
             if (curi == null) {
                 try {
-                    Thread.sleep(1000);
+                    awaitDue();
                 } catch (InterruptedException e) {
-                    // TODO Auto-generated catch block
-                    e.printStackTrace();
+                    logger.fine("Interrupted while waiting for a due queue.");
+                    Thread.currentThread().interrupt();
+                    return null;
                 }
             }
         }
 
+        // Another queue may be due too, so let a waiting thread look:
+        synchronized (dueLock) {
+            dueLock.notify();
+        }
+
         // return what we've got:
         return curi;
     }
 
+    /**
+     * Wait until the next queue is due, or until woken because one may be.
+     * 
+     * The first thread to wait for a given due time sleeps until then. Any
+     * other threads wait to be woken, as the first one hands out URIs or as
+     * queues are scheduled sooner, so they don't all hit Redis at once.
+     * 
+     * @throws InterruptedException
+     */
+    private void awaitDue() throws InterruptedException {
+        synchronized (dueLock) {
+            long now = System.currentTimeMillis();
+            long deadline = Math.min(nextDueTime, now + maxWaitMs);
+            if (deadline <= now) {
+                return;
+            }
+            if (deadline < timerDeadline) {
+                timerDeadline = deadline;
+                try {
+                    dueLock.wait(deadline - now);
+                } finally {
+                    if (timerDeadline == deadline) {
+                        timerDeadline = Long.MAX_VALUE;
+                    }
+                }
+            } else {
+                dueLock.wait(maxWaitMs);
+            }
+        }
+    }
+
+    /**
+     * The earliest time any queue was scheduled for while a DUE script ran.
+     */
+    private static final class ScheduleWatch {
+        private long earliest = Long.MAX_VALUE;
+    }
+
+    private ScheduleWatch watchSchedule() {
+        ScheduleWatch watch = new ScheduleWatch();
+        synchronized (dueLock) {
+            scheduleWatches.add(watch);
+        }
+        return watch;
+    }
+
+    private void unwatchSchedule(ScheduleWatch watch) {
+        synchronized (dueLock) {
+            scheduleWatches.remove(watch);
+        }
+    }
+
+    /**
+     * Record when the next queue is due, as found by the DUE script, unless a
+     * queue was scheduled sooner while the script ran.
+     */
+    private void noteNextDue(long time, ScheduleWatch watch) {
+        synchronized (dueLock) {
+            nextDueTime = Math.min(time, watch.earliest);
+        }
+    }
+
+    /**
+     * A queue has been scheduled for the given time, so wake a waiting thread
+     * if that is sooner than expected.
+     */
+    private void noteScheduled(long time) {
+        synchronized (dueLock) {
+            for (ScheduleWatch watch : scheduleWatches) {
+                watch.earliest = Math.min(watch.earliest, time);
+            }
+            if (time < nextDueTime) {
+                nextDueTime = time;
+            }
+            if (time < timerDeadline) {
+                dueLock.notify();
+            }
+        }
+    }
+
     /**
      * 
      * If there is a URL due to be crawled, return it.
      * 
      * If there are URLs scheduled to be crawled, but not yet, return null.
      * 
-     * If there are no URLs scheduled to be crawled, throw an Exception.
+     * If there are no URLs scheduled to be crawled, throw a
+     * {@link NothingScheduledException}.
      * 
-     * FIXME Race-conditions, as in Redis could end up inconsistent if this
-     * method dies mid-flow.
+     * Picking the queue, activating it and fetching the stored CrawlURI is done
+     * in one go by the DUE script, which also drops any queued URIs that have
+     * no stored CrawlURI rather than failing. If the queue turns out to be
+     * empty, or its CrawlURI cannot be read, this looks again straight away.
      * 
      * @return
-     * @throws Exception
-     */
-    public synchronized CrawlURI due() throws Exception {
-        long now = System.currentTimeMillis();
-        logger.finest("Looking for active queues, due for processing at " + now
-                + "...");
-        List<ScoredValue<String>> qs = this.connection.zrangebyscoreWithScores(
-                KEY_QS_SCHEDULED, Double.NEGATIVE_INFINITY, now, 0, 1);
-        String q = null;
-        if (qs.size() == 0) {
-            long totalScheduled = this.connection.zcard(KEY_QS_SCHEDULED);
-            long totalActive = this.connection.zcard(KEY_QS_ACTIVE);
-            if ((totalScheduled + totalActive) > 0) {
-                return null;
-            } else {
-                logger.finer("No queues scheduled to run.");
-                throw new Exception("No more URLs scheduled!");
+     * @throws NothingScheduledException
+     */
+    public CrawlURI due() throws NothingScheduledException {
+        while (true) {
+            long now = System.currentTimeMillis();
+            logger.finest("Looking for active queues, due for processing at "
+                    + now + "...");
+            List<Object> result;
+            ScheduleWatch watch = watchSchedule();
+            try {
+                result = eval(null, DUE, ScriptOutputType.MULTI,
+                        new String[] { KEY_QS_SCHEDULED, KEY_QS_ACTIVE,
+                                KEY_QS_RETIRED },
+                        Long.toString(now));
+                long status = (Long) result.get(0);
+                if (status == DUE_NONE) {
+                    logger.finer("No queues scheduled to run.");
+                    throw new NothingScheduledException();
+                } else if (status == DUE_WAIT) {
+                    // Wait for the earliest scheduled queue, if there is one,
+                    // or until an active queue is released:
+                    noteNextDue(result.size() > 1
+                            ? Double.valueOf((String) result.get(1))
+                                    .longValue()
+                            : Long.MAX_VALUE, watch);
+                    return null;
+                }
+            } finally {
+                unwatchSchedule(watch);
             }
+            String q = (String) result.get(1);
+            if (((Long) result.get(0)) == DUE_RETIRED) {
+                logger.info("No uris for queue " + q + " retiring the queue.");
+                // Other queues may be due, so look again straight away:
+                continue;
+            }
+            String uri = (String) result.get(2);
+            // And log:
+            logger.fine("Got URI " + uri);
+            CrawlURI curi = decodeCrawlURI((String) result.get(3));
+            if (curi == null) {
+                // Drop it, make the queue available again, and look again:
+                logger.warning("Dropping " + uri + " from queue " + q
+                        + " as the stored CrawlURI cannot be read.");
+                dequeue(q, uri);
+                releaseQueue(q, now);
+                continue;
+            }
+            return curi;
         }
-        ScoredValue<String> sq = qs.get(0);
-        double score = sq.score;
-        q = sq.value;
-        List<String> uri = this.connection.zrangebyscore(getKeyForQueue(q),
-                -10.0, 1.0e10, 0, 1);
-        if (uri.size() == 0) {
-            logger.info("No uris for queue " + q + " retiring the queue.");
-            this.connection.set(KEY_QS_RETIRED, q);
-            this.connection.zrem(KEY_QS_SCHEDULED, q);
-            return null;
-        }
-        // Okay to go, so activate queue (removing from scheduled, add to
-        // active):
-        this.connection.zadd(KEY_QS_ACTIVE, score, q);
-        this.connection.zrem(KEY_QS_SCHEDULED, q);
-        // And log:
-        logger.fine("Got URI " + uri);
-        CrawlURI curi = getCrawlURIFromRedis(uri.get(0));
-        if (curi == null) {
-            throw new Exception("Frontier damaged, CrawlURI for " + uri
-                    + " cannot be found!");
-        }
-        return curi;
     }
 
-    public synchronized boolean enqueue(CrawlURI curi) {
-        String urlKey = "u:object:" + curi.getURI();
+    public boolean enqueue(CrawlURI curi) {
         String queue = curi.getClassKey();
-
-        // FIXME The next couple of statements should really be atomic:
-        long added = this.connection.zadd(getKeyForQueue(curi),
-                calculateInsertKey(curi), curi.getURI());
+        // Add to the queue, store the URI itself, and schedule the queue if
+        // it is not already scheduled or active:
+        Long added = eval(queue, ENQUEUE, ScriptOutputType.INTEGER,
+                new String[] { getKeyForQueue(curi),
+                        getKeyForObject(curi.getURI()), KEY_QS_SCHEDULED,
+                        KEY_QS_ACTIVE },
+                Double.toString(calculateInsertKey(curi)), curi.getURI(),
+                Base64.encode(caUriToKryo(curi)), queue,
+                Long.toString(System.currentTimeMillis()));
         logger.finest("ADDED " + added + " for " + curi);
 
-        // Also store the URI itself:
-        String result = this.connection.set(urlKey,
-                Base64.encode(caUriToKryo(curi)));
-        logger.finest("RES " + result + " stored " + curi);
-
-        // Add to available queues set, if not already active:
-        Double due = this.connection.zscore(KEY_QS_SCHEDULED, queue);
-        // FIXME Race-condition, but probably not a serious one (as re-adding an
-        // item to the scheduled ZSET will only muck up the launch time):
-        if (null == due) {
-            due = (double) System.currentTimeMillis();
-            Long count = this.connection.zadd(KEY_QS_SCHEDULED, due, queue);
-            logger.finest("ADD " + count + " for uri " + curi);
-        }
-        logger.finest("Enqueued URI is due " + (long) due.doubleValue());
-
         return added > 0;
     }
 
-    public synchronized void reschedule(CrawlURI curi, long fetchTime) {
+    public void reschedule(CrawlURI curi, long fetchTime) {
         if (curi.includesRetireDirective()) {
-            // Remove the queue from the fetch list:
-            this.connection.zrem(KEY_QS_ACTIVE, curi.getClassKey());
-            this.connection.set(KEY_QS_RETIRED, curi.getClassKey());
-            logger.info("Queue " + curi.getClassKey() + " retired.");
-            // TODO 'disown' the queue properly ???:
+            retireQueue(curi.getClassKey());
         } else {
-            this.connection.zrem(KEY_QS_ACTIVE, curi.getClassKey());
-            Long count = this.connection.zadd(KEY_QS_SCHEDULED,
-                    ZAddArgs.Builder.ch(), fetchTime,
-                    curi.getClassKey());
-            logger.finest("Updated count: " + count + " with " + fetchTime);
-            String result = this.connection.set("u:object:" + curi.getURI(),
+            Long count = eval(curi.getClassKey(), RESCHEDULE,
+                    ScriptOutputType.INTEGER,
+                    new String[] { KEY_QS_ACTIVE, KEY_QS_SCHEDULED,
+                            getKeyForObject(curi.getURI()) },
+                    curi.getClassKey(), Long.toString(fetchTime),
                     Base64.encode(caUriToKryo(curi)));
-            logger.finest("RES " + result + " updated object for " + curi);
+            logger.finest("Updated count: " + count + " with " + fetchTime
+                    + " and updated object for " + curi);
         }
     }
 
-    public synchronized void dequeue(String q, String uri) {
+    public void dequeue(String q, String uri) {
         // Remove from frontier queue
-        this.connection.zrem("q:" + q + ":urls", uri);
-        this.connection.del("u:object:" + uri);
+        eval(q, DEQUEUE, ScriptOutputType.INTEGER,
+                new String[] { getKeyForQueue(q), getKeyForObject(uri) }, uri);
     }
 
-    public synchronized void releaseQueue(String q, Long nextFetch) {
-        this.connection.zrem(KEY_QS_ACTIVE, q);
-        Long count = this.connection.zadd(KEY_QS_SCHEDULED,
-                ZAddArgs.Builder.ch(), nextFetch, q);
+    public void releaseQueue(String q, Long nextFetch) {
+        Long count = eval(q, RELEASE, ScriptOutputType.INTEGER,
+                new String[] { KEY_QS_ACTIVE, KEY_QS_SCHEDULED }, q,
+                Long.toString(nextFetch));
         logger.finest(
                 "ReleaseQueue updated count: " + count + " until " + nextFetch);
     }
 
-    public synchronized void retireQueue(String q) {
-        this.connection.zrem(KEY_QS_ACTIVE, q);
-        this.connection.zrem(KEY_QS_SCHEDULED, q);
-        this.connection.set(KEY_QS_RETIRED, q);
+    public void retireQueue(String q) {
+        eval(q, RETIRE, ScriptOutputType.INTEGER,
+                new String[] { KEY_QS_ACTIVE, KEY_QS_SCHEDULED,
+                        KEY_QS_RETIRED },
+                q);
         logger.info("Queue " + q + " retired.");
         // TODO 'disown' the queue properly ???:
     }
 
+    /**
+     * Look for inconsistencies between the queues and the stored CrawlURIs,
+     * i.e.
+     * <ul>
+     * <li>stored CrawlURIs that cannot be read, or are not in their
+     * queue,</li>
+     * <li>queued URIs that have no stored CrawlURI, and</li>
+     * <li>queues that hold URIs but are neither scheduled nor active.</li>
+     * </ul>
+     * 
+     * If repair is set, the first two are deleted and the last are scheduled.
+     * Each repair re-checks the problem in a script, so it is safe to run this
+     * while crawling. It does walk the whole frontier though, so can take a
+     * while.
+     * 
+     * @param repair
+     *            whether to fix the problems that are found
+     * @return the number of problems found
+     */
+    public synchronized long checkConsistency(boolean repair) {
+        logger.info("Checking frontier consistency...");
+        String repairArg = repair ? "1" : "0";
+        long corruptObjects = 0;
+        long orphanedObjects = 0;
+        long orphanedUris = 0;
+        long unscheduledQueues = 0;
+
+        // Check the stored CrawlURIs first, as dropping unreadable ones may
+        // leave orphaned queue entries:
+        ScanArgs objectArgs = ScanArgs.Builder.matches(getKeyForObject("*"))
+                .limit(SCAN_COUNT);
+        KeyScanCursor<String> keys = this.connection.scan(objectArgs);
+        while (true) {
+            for (String key : keys.getKeys()) {
+                String uri = key.substring(getKeyForObject("").length());
+                String object = this.connection.get(key);
+                if (object == null) {
+                    // Deleted since the scan started:
+                    continue;
+                }
+                CrawlURI curi = decodeCrawlURI(object);
+                if (curi == null || curi.getClassKey() == null) {
+                    logger.fine("Stored CrawlURI for " + uri
+                            + " cannot be read.");
+                    corruptObjects++;
+                    if (repair) {
+                        this.connection.del(key);
+                    }
+                    continue;
+                }
+                Long orphaned = eval(curi.getClassKey(), CHECK_OBJECT,
+                        ScriptOutputType.INTEGER,
+                        new String[] { getKeyForQueue(curi), key }, uri,
+                        repairArg);
+                if (orphaned > 0) {
+                    logger.fine("Stored CrawlURI for " + uri
+                            + " is not in queue " + curi.getClassKey());
+                    orphanedObjects++;
+                }
+            }
+            if (keys.isFinished()) {
+                break;
+            }
+            keys = this.connection.scan(keys, objectArgs);
+        }
+
+        // Then check the contents of each queue:
+        ScanArgs queueArgs = ScanArgs.Builder.matches(getKeyForQueue("*"))
+                .limit(SCAN_COUNT);
+        ScanArgs memberArgs = ScanArgs.Builder.limit(SCAN_COUNT);
+        keys = this.connection.scan(queueArgs);
+        while (true) {
+            for (String key : keys.getKeys()) {
+                String q = key.substring(2, key.length() - 5);
+                ScoredValueScanCursor<String> members = this.connection
+                        .zscan(key, memberArgs);
+                while (true) {
+                    List<String> args = new ArrayList<String>();
+                    args.add(repairArg);
+                    for (ScoredValue<String> member : members.getValues()) {
+                        args.add(member.value);
+                    }
+                    Long orphaned = eval(q, CHECK_MEMBERS,
+                            ScriptOutputType.INTEGER, new String[] { key },
+                            args.toArray(new String[args.size()]));
+                    if (orphaned > 0) {
+                        logger.fine("Queue " + q + " holds " + orphaned
+                                + " URIs with no stored CrawlURI.");
+                        orphanedUris += orphaned;
+                    }
+                    if (members.isFinished()) {
+                        break;
+                    }
+                    members = this.connection.zscan(key, members, memberArgs);
+                }
+                Long unscheduled = eval(q, CHECK_QUEUE,
+                        ScriptOutputType.INTEGER,
+                        new String[] { key, KEY_QS_SCHEDULED, KEY_QS_ACTIVE },
+                        q, Long.toString(System.currentTimeMillis()),
+                        repairArg);
+                if (unscheduled > 0) {
+                    logger.fine("Queue " + q
+                            + " is neither scheduled nor active.");
+                    unscheduledQueues++;
+                }
+            }
+            if (keys.isFinished()) {
+                break;
+            }
+            keys = this.connection.scan(keys, queueArgs);
+        }
+
+        long problems = corruptObjects + orphanedObjects + orphanedUris
+                + unscheduledQueues;
+        Level level = problems > 0 ? Level.WARNING : Level.INFO;
+        logger.log(level, "Frontier consistency check found " + corruptObjects
+                + " unreadable CrawlURIs, " + orphanedObjects
+                + " CrawlURIs not in a queue, " + orphanedUris
+                + " queued URIs with no CrawlURI and " + unscheduledQueues
+                + " unscheduled queues"
+                + (repair && problems > 0 ? ", all repaired." : "."));
+        return problems;
+    }
+
 
     /* ------- ------- ------- ------- ------- ------- ------- ------- */
     /* */
@@ -274,6 +677,9 @@ public class RedisSimpleFrontier {
      */
     public synchronized void start() {
         connect();
+        if (repairOnStart) {
+            checkConsistency(true);
+        }
     }
 
     /*
@@ -282,9 +688,26 @@ public class RedisSimpleFrontier {
      * @see org.archive.crawler.frontier.AbstractFrontier#stop()
      */
     public synchronized void stop() {
+        if (this.pubSubConnection != null) {
+            this.pubSubConnection.close();
+            this.pubSubConnection = null;
+        }
+        if (this.asyncConnections != null) {
+            for (RedisAsyncConnection<String, String> c : asyncConnections) {
+                c.close();
+            }
+            this.asyncConnections = null;
+        }
         if (this.connection != null && this.connection.isOpen()) {
             this.connection.close();
         }
+        if (this.redisClient != null) {
+            this.redisClient.shutdown();
+        }
+        // Wake any threads waiting for a due queue, so they see the stop:
+        synchronized (dueLock) {
+            dueLock.notifyAll();
+        }
     }
 
     /* ------- ------- ------- ------- ------- ------- ------- ------- */
@@ -299,6 +722,9 @@ public class RedisSimpleFrontier {
     private static String KEY_QS_ACTIVE = "qs:active";
     private static String KEY_QS_RETIRED = "qs:retired";
 
+    // Scripts publish the due time of newly scheduled queues here:
+    private static final String CHANNEL_QS_DUE = "qs:due";
+
     private static String getKeyForQueue(String q) {
         logger.finest("Generating key for: " + q);
         return "q:" + q + ":urls";
@@ -309,14 +735,251 @@ public class RedisSimpleFrontier {
         return "q:" + curi.getClassKey() + ":urls";
     }
 
+    private static String getKeyForObject(String uri) {
+        return "u:object:" + uri;
+    }
+
+    /* ------- ------- ------- ------- ------- ------- ------- ------- */
+    /* */
+    /* ------- ------- ------- ------- ------- ------- ------- ------- */
+
+    /**
+     * A Lua script, run via its SHA1 digest.
+     */
+    private static class Script {
+        private final String source;
+        private volatile String sha;
+
+        private Script(String... lines) {
+            StringBuilder sb = new StringBuilder();
+            for (String line : lines) {
+                sb.append(line).append('\n');
+            }
+            this.source = sb.toString();
+        }
+
+        private String load(RedisConnection<String, String> connection) {
+            sha = connection.scriptLoad(source);
+            return sha;
+        }
+    }
+
+    /**
+     * Pick the connection for a queue, or for the current thread if the
+     * operation is not tied to a queue.
+     */
+    private RedisAsyncConnection<String, String> getConnectionFor(String q) {
+        List<RedisAsyncConnection<String, String>> connections = asyncConnections;
+        if (connections == null) {
+            throw new RedisException("frontier stopped");
+        }
+        int hash = q == null ? (int) Thread.currentThread().getId()
+                : q.hashCode();
+        return connections.get((hash & Integer.MAX_VALUE) % connections.size());
+    }
+
+    /**
+     * Run a script on the connection for the given queue, re-loading it if
+     * Redis has lost it (e.g. after a restart or SCRIPT FLUSH).
+     */
+    private <T> T eval(String q, Script script, ScriptOutputType type,
+            String[] keys, String... args) {
+        RedisAsyncConnection<String, String> c = getConnectionFor(q);
+        String sha = script.sha;
+        if (sha == null) {
+            sha = script.load(this.connection);
+        }
+        try {
+            return await(c.<T> evalsha(sha, type, keys, args));
+        } catch (RedisException e) {
+            if (e.getMessage() == null
+                    || !e.getMessage().startsWith("NOSCRIPT")) {
+                throw e;
+            }
+            logger.info("Re-loading frontier script " + sha);
+            sha = script.load(this.connection);
+            return await(c.<T> evalsha(sha, type, keys, args));
+        }
+    }
+
+    /**
+     * Wait for the reply to an asynchronous command.
+     */
+    private <T> T await(RedisFuture<T> future) {
+        T result;
+        try {
+            result = future.get(redisTimeoutSeconds, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RedisException("Interrupted while waiting for Redis", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RedisException) {
+                throw (RedisException) e.getCause();
+            }
+            throw new RedisException(String.valueOf(e.getCause()),
+                    e.getCause());
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new RedisException("Timed out waiting for Redis", e);
+        }
+        if (future.getError() != null) {
+            throw new RedisException(future.getError());
+        }
+        return result;
+    }
+
+    // Status codes returned by the DUE script:
+    private static final long DUE_NONE = -1;
+    private static final long DUE_WAIT = 0;
+    private static final long DUE_URI = 1;
+    private static final long DUE_RETIRED = 2;
+
+    /**
+     * Find the next due queue and its first URI. If the URI has no stored
+     * CrawlURI it is dropped and the next one is tried. An empty queue is
+     * retired. If nothing is due yet, returns when the next queue will be.
+     * 
+     * KEYS: scheduled, active, retired. ARGV: now.
+     */
+    private static final Script DUE = new Script(
+            "local qs = redis.call('ZRANGEBYSCORE', KEYS[1], '-inf', ARGV[1], 'WITHSCORES', 'LIMIT', 0, 1)",
+            "if #qs == 0 then",
+            "  local first = redis.call('ZRANGE', KEYS[1], 0, 0, 'WITHSCORES')",
+            "  if #first > 0 then",
+            "    return {" + DUE_WAIT + ", first[2]}",
+            "  end",
+            "  if redis.call('ZCARD', KEYS[2]) > 0 then",
+            "    return {" + DUE_WAIT + "}",
+            "  end",
+            "  return {" + DUE_NONE + "}",
+            "end",
+            "local q = qs[1]",
+            "local qkey = 'q:' .. q .. ':urls'",
+            "while true do",
+            "  local uris = redis.call('ZRANGEBYSCORE', qkey, '-10', '1e10', 'LIMIT', 0, 1)",
+            "  if #uris == 0 then",
+            "    redis.call('ZREM', KEYS[1], q)",
+            "    redis.call('SET', KEYS[3], q)",
+            "    return {" + DUE_RETIRED + ", q}",
+            "  end",
+            "  local object = redis.call('GET', 'u:object:' .. uris[1])",
+            "  if object then",
+            "    redis.call('ZREM', KEYS[1], q)",
+            "    redis.call('ZADD', KEYS[2], qs[2], q)",
+            "    return {" + DUE_URI + ", q, uris[1], object}",
+            "  end",
+            "  redis.call('ZREM', qkey, uris[1])",
+            "end");
+
+    /**
+     * KEYS: queue, object, scheduled, active. ARGV: precedence, uri, object,
+     * queue name, now.
+     */
+    private static final Script ENQUEUE = new Script(
+            "local added = redis.call('ZADD', KEYS[1], ARGV[1], ARGV[2])",
+            "redis.call('SET', KEYS[2], ARGV[3])",
+            "if not redis.call('ZSCORE', KEYS[3], ARGV[4]) and not redis.call('ZSCORE', KEYS[4], ARGV[4]) then",
+            "  redis.call('ZADD', KEYS[3], ARGV[5], ARGV[4])",
+            "  redis.call('PUBLISH', '" + CHANNEL_QS_DUE + "', ARGV[5])",
+            "end",
+            "return added");
+
+    /**
+     * KEYS: active, scheduled, object. ARGV: queue name, fetch time, object.
+     */
+    private static final Script RESCHEDULE = new Script(
+            "redis.call('ZREM', KEYS[1], ARGV[1])",
+            "redis.call('SET', KEYS[3], ARGV[3])",
+            "redis.call('PUBLISH', '" + CHANNEL_QS_DUE + "', ARGV[2])",
+            "return redis.call('ZADD', KEYS[2], 'CH', ARGV[2], ARGV[1])");
+
+    /**
+     * KEYS: queue, object. ARGV: uri.
+     */
+    private static final Script DEQUEUE = new Script(
+            "redis.call('DEL', KEYS[2])",
+            "return redis.call('ZREM', KEYS[1], ARGV[1])");
+
+    /**
+     * KEYS: active, scheduled. ARGV: queue name, next fetch time.
+     */
+    private static final Script RELEASE = new Script(
+            "redis.call('ZREM', KEYS[1], ARGV[1])",
+            "redis.call('PUBLISH', '" + CHANNEL_QS_DUE + "', ARGV[2])",
+            "return redis.call('ZADD', KEYS[2], 'CH', ARGV[2], ARGV[1])");
+
+    /**
+     * KEYS: active, scheduled, retired. ARGV: queue name.
+     */
+    private static final Script RETIRE = new Script(
+            "redis.call('ZREM', KEYS[1], ARGV[1])",
+            "redis.call('ZREM', KEYS[2], ARGV[1])",
+            "redis.call('SET', KEYS[3], ARGV[1])",
+            "return 1");
 
-    private synchronized byte[] caUriToKryo(CrawlURI curi) {
-        // FIXME Not thread-safe. Need ThreadLocal instance.
-        return ob.writeClassAndObject(curi);
+    /**
+     * Is the stored CrawlURI in its queue? Deletes it if not and repairing.
+     * 
+     * KEYS: queue, object. ARGV: uri, repair.
+     */
+    private static final Script CHECK_OBJECT = new Script(
+            "if redis.call('ZSCORE', KEYS[1], ARGV[1]) then",
+            "  return 0",
+            "end",
+            "if ARGV[2] == '1' then",
+            "  redis.call('DEL', KEYS[2])",
+            "end",
+            "return 1");
+
+    /**
+     * Count the given queue members that have no stored CrawlURI, removing
+     * them if repairing.
+     * 
+     * KEYS: queue. ARGV: repair, uris...
+     */
+    private static final Script CHECK_MEMBERS = new Script(
+            "local orphaned = 0",
+            "for i = 2, #ARGV do",
+            "  if redis.call('EXISTS', 'u:object:' .. ARGV[i]) == 0 then",
+            "    orphaned = orphaned + 1",
+            "    if ARGV[1] == '1' then",
+            "      redis.call('ZREM', KEYS[1], ARGV[i])",
+            "    end",
+            "  end",
+            "end",
+            "return orphaned");
+
+    /**
+     * Is the queue non-empty but neither scheduled nor active? Schedules it if
+     * so and repairing.
+     * 
+     * KEYS: queue, scheduled, active. ARGV: queue name, now, repair.
+     */
+    private static final Script CHECK_QUEUE = new Script(
+            "if redis.call('ZCARD', KEYS[1]) == 0",
+            "    or redis.call('ZSCORE', KEYS[2], ARGV[1])",
+            "    or redis.call('ZSCORE', KEYS[3], ARGV[1]) then",
+            "  return 0",
+            "end",
+            "if ARGV[3] == '1' then",
+            "  redis.call('ZADD', KEYS[2], ARGV[2], ARGV[1])",
+            "  redis.call('PUBLISH', '" + CHANNEL_QS_DUE + "', ARGV[2])",
+            "end",
+            "return 1");
+
+    private static final Script[] SCRIPTS = { DUE, ENQUEUE, RESCHEDULE,
+            DEQUEUE, RELEASE, RETIRE, CHECK_OBJECT, CHECK_MEMBERS,
+            CHECK_QUEUE };
+
+    private static final long SCAN_COUNT = 1000;
+
+
+    private byte[] caUriToKryo(CrawlURI curi) {
+        return kryoBuffer.get().writeClassAndObject(curi);
     }
 
-    private synchronized CrawlURI kryoToCrawlURI(byte[] buf) {
-        return ob.readObject(buf, CrawlURI.class);
+    private CrawlURI kryoToCrawlURI(byte[] buf) {
+        return kryoBuffer.get().readObject(buf, CrawlURI.class);
     }
 
     /**
@@ -341,13 +1004,11 @@ public class RedisSimpleFrontier {
         return precedence;
     }
     
-    private CrawlURI getCrawlURIFromRedis(String uri) {
-        String object = this.connection.get("u:object:" + uri);
+    private CrawlURI decodeCrawlURI(String object) {
         try {
             return this.kryoToCrawlURI(Base64.decode(object));
         } catch (Exception e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
+            logger.log(Level.WARNING, "Could not decode stored CrawlURI", e);
         }
         return null;
     }
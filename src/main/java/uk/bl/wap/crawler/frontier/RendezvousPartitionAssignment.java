@@ -0,0 +1,71 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.frontier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Assigns partitions using rendezvous (highest random weight) hashing: each
+ * partition goes to whichever consumer gets the highest hash score for it.
+ *
+ * Partitions are spread evenly on average, rather than exactly. However, when
+ * consumers are added or removed, only the partitions that have to move do so,
+ * e.g. going from 3 to 4 crawlers moves about a quarter of the partitions (and
+ * so the hosts), all of them to the new crawler.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class RendezvousPartitionAssignment
+        extends PartitionAssignmentStrategy {
+
+    @Override
+    public List<Integer> assign(int numPartitions, int consumerId,
+            int consumerGroupSize) {
+        checkConsumerId(consumerId, consumerGroupSize);
+        List<Integer> parts = new ArrayList<Integer>();
+        for (int p = 0; p < numPartitions; p++) {
+            if (ownerOf(p, consumerGroupSize) == consumerId) {
+                parts.add(p);
+            }
+        }
+        return parts;
+    }
+
+    /**
+     *
+     * @param partition
+     * @param consumerGroupSize
+     * @return the consumer ID (1 to consumerGroupSize) that owns this
+     *         partition.
+     */
+    public int ownerOf(int partition, int consumerGroupSize) {
+        int owner = 1;
+        long best = Long.MIN_VALUE;
+        for (int c = 1; c <= consumerGroupSize; c++) {
+            long score = score(partition, c);
+            if (score > best) {
+                best = score;
+                owner = c;
+            }
+        }
+        return owner;
+    }
+
+    // The SplitMix64 finaliser, which mixes the bits well and (unlike
+    // hashCode()s) is guaranteed to be stable across JVMs:
+    private static long score(int partition, int consumerId) {
+        long z = ((long) partition << 32) | (consumerId & 0xFFFFFFFFL);
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+    @Override
+    public String toString() {
+        return "rendezvous";
+    }
+
+}
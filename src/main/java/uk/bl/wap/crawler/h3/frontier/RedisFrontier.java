@@ -85,6 +85,54 @@ public class RedisFrontier extends AbstractFrontier
         this.f.setDB(DB);
     }
 
+    /**
+     * @return whether to check and repair the frontier on start
+     */
+    public boolean isRepairOnStart() {
+        return this.f.isRepairOnStart();
+    }
+
+    /**
+     * @param repairOnStart
+     *            whether to check and repair the frontier on start, defaults
+     *            to false
+     */
+    public void setRepairOnStart(boolean repairOnStart) {
+        this.f.setRepairOnStart(repairOnStart);
+    }
+
+    /**
+     * @return the number of asynchronous Redis connections to use
+     */
+    public int getRedisConnections() {
+        return this.f.getRedisConnections();
+    }
+
+    /**
+     * @param redisConnections
+     *            the number of asynchronous Redis connections to use, defaults
+     *            to 4
+     */
+    public void setRedisConnections(int redisConnections) {
+        this.f.setRedisConnections(redisConnections);
+    }
+
+    /**
+     * @return the longest time to wait before checking for due queues again
+     */
+    public long getMaxWaitMs() {
+        return this.f.getMaxWaitMs();
+    }
+
+    /**
+     * @param maxWaitMs
+     *            the longest time to wait before checking for due queues
+     *            again, defaults to 30000
+     */
+    public void setMaxWaitMs(long maxWaitMs) {
+        this.f.setMaxWaitMs(maxWaitMs);
+    }
+
     /* ------- ------- ------- ------- ------- ------- ------- ------- */
     /* */
     /* ------- ------- ------- ------- ------- ------- ------- ------- */
@@ -0,0 +1,203 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.h3.spring;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.archive.crawler.spring.DecideRuledSheetAssociation;
+import org.archive.crawler.spring.SheetOverlaysManager;
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURI;
+import org.archive.util.SurtPrefixSet;
+import org.springframework.context.ApplicationEventPublisher;
+
+import uk.bl.wap.modules.deciderules.HostCachingDecideRuleSequence;
+import uk.bl.wap.modules.deciderules.ScopeChangedEvent;
+import uk.bl.wap.util.SurtPrefixTrie;
+
+/**
+ * A SheetOverlaysManager that looks up the sheets associated with each URI's
+ * SURT using a {@link SurtPrefixTrie}, rather than scanning the sorted map of
+ * prefixes. The map is still kept up to date, so anything inspecting it (e.g.
+ * via the scripting console) sees the same associations.
+ *
+ * Associations set via {@link #setSheetNamesForSurt(String, List)} are applied
+ * to the trie copy-on-write, and an empty list removes the association, so
+ * that the prefixes do not accumulate without limit. If the map is altered
+ * directly, call {@link #rebuildIndex()}.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class SurtTrieSheetOverlaysManager extends SheetOverlaysManager {
+
+    private static final Logger LOGGER = Logger
+            .getLogger(SurtTrieSheetOverlaysManager.class.getName());
+
+    private transient volatile SurtPrefixTrie<List<String>> sheetNamesTrie;
+
+    // Re-used per thread, to gather the sheets for each prefix in turn:
+    private static final ThreadLocal<List<List<String>>> matches = new ThreadLocal<List<List<String>>>() {
+        @Override
+        protected List<List<String>> initialValue() {
+            return new ArrayList<List<String>>();
+        }
+    };
+
+    protected SurtPrefixTrie<List<String>> getSheetNamesTrie() {
+        SurtPrefixTrie<List<String>> trie = sheetNamesTrie;
+        if (trie == null) {
+            synchronized (this) {
+                if (sheetNamesTrie == null) {
+                    sheetNamesTrie = SurtPrefixTrie
+                            .of(getSheetsNamesBySurt());
+                    LOGGER.info("Indexed " + sheetNamesTrie.size()
+                            + " SURT prefix sheet associations.");
+                }
+                trie = sheetNamesTrie;
+            }
+        }
+        return trie;
+    }
+
+    /**
+     * Rebuild the index from the map of SURT prefixes to sheet names.
+     */
+    public synchronized void rebuildIndex() {
+        sheetNamesTrie = null;
+        getSheetNamesTrie();
+    }
+
+    /**
+     * Set (or, given an empty list, remove) the sheets associated with a SURT
+     * prefix.
+     *
+     * @param prefix
+     * @param sheetNames
+     * @return the previous sheet names, or null if there were none
+     */
+    public synchronized List<String> setSheetNamesForSurt(String prefix,
+            List<String> sheetNames) {
+        SurtPrefixTrie<List<String>> trie = getSheetNamesTrie();
+        List<String> previous;
+        if (sheetNames == null || sheetNames.isEmpty()) {
+            previous = getSheetsNamesBySurt().remove(prefix);
+            sheetNamesTrie = trie.without(prefix);
+        } else {
+            sheetNames = Collections
+                    .unmodifiableList(new ArrayList<String>(sheetNames));
+            previous = getSheetsNamesBySurt().put(prefix, sheetNames);
+            sheetNamesTrie = trie.with(prefix, sheetNames);
+        }
+        return previous;
+    }
+
+    /**
+     * Associate the named sheets with a SURT prefix, as requested along with a
+     * URI (e.g. in a crawl request message), via any SheetOverlaysManager.
+     * Unknown sheet names are logged and skipped. If the sheets really changed
+     * (no sheets being the same as no association), a
+     * {@link ScopeChangedEvent} is published for the URI's host, so anything
+     * caching scope decisions for it can forget them.
+     *
+     * @param manager
+     * @param prefix
+     *            the SURT prefix to associate the sheets with
+     * @param sheets
+     *            the requested sheet names
+     * @param uuri
+     *            the URI the sheets were requested for
+     * @param publisher
+     *            where to publish the event, or null for none
+     */
+    public static void setSheetAssociations(SheetOverlaysManager manager,
+            String prefix, List<String> sheets, UURI uuri,
+            ApplicationEventPublisher publisher) {
+        // Get the list of all known sheets:
+        Set<String> allSheetNames = manager.getSheetsByName().keySet();
+        // Make a list of the valid proposed sheet names:
+        List<String> sheetNames = new LinkedList<String>();
+        for (String sheetName : sheets) {
+            if (allSheetNames.contains(sheetName)) {
+                sheetNames.add(sheetName);
+            } else {
+                LOGGER.severe("Unknown sheet name: " + sheetName);
+            }
+        }
+        // Set the association for this prefix:
+        LOGGER.info("Setting sheets for " + prefix + " to " + sheetNames);
+        List<String> previous;
+        if (manager instanceof SurtTrieSheetOverlaysManager) {
+            previous = ((SurtTrieSheetOverlaysManager) manager)
+                    .setSheetNamesForSurt(prefix, sheetNames);
+        } else {
+            previous = manager.getSheetsNamesBySurt().put(prefix, sheetNames);
+        }
+        if (previous == null) {
+            previous = Collections.emptyList();
+        }
+        if (!sheetNames.equals(previous) && publisher != null) {
+            publisher.publishEvent(new ScopeChangedEvent(manager,
+                    "sheets for " + prefix,
+                    HostCachingDecideRuleSequence.hostKeys(uuri)));
+        }
+    }
+
+    /**
+     * Add a sheet to those associated with a SURT prefix. The stored lists are
+     * shared with the trie and cannot be modified, so this replaces the list
+     * with an extended copy.
+     */
+    @Override
+    public synchronized void addSurtAssociation(String prefix,
+            String sheetName) {
+        List<String> sheetNames = new ArrayList<String>();
+        List<String> existing = getSheetsNamesBySurt().get(prefix);
+        if (existing != null) {
+            sheetNames.addAll(existing);
+        }
+        sheetNames.add(sheetName);
+        setSheetNamesForSurt(prefix, sheetNames);
+    }
+
+    /**
+     * As per SheetOverlaysManager, but using the trie to find the SURT
+     * prefixes that apply.
+     */
+    @Override
+    public void applyOverlaysTo(CrawlURI curi) {
+        curi.setOverlayMapsSource(this);
+        // apply SURT-based overlays
+        curi.getOverlayNames().clear(); // clear previous info
+        String effectiveSurt = SurtPrefixSet
+                .getCandidateSurt(curi.getPolicyBasisUURI());
+        if (effectiveSurt != null) {
+            List<List<String>> found = matches.get();
+            try {
+                getSheetNamesTrie().collectPrefixValues(effectiveSurt,
+                        found);
+                for (List<String> names : found) {
+                    curi.getOverlayNames().addAll(names);
+                }
+            } finally {
+                found.clear();
+            }
+        }
+        // apply deciderule-based overlays
+        for (DecideRuledSheetAssociation assoc : ruleAssociations) {
+            if (assoc.getRules().accepts(curi)) {
+                curi.getOverlayNames().addAll(assoc.getTargetSheetNames());
+            }
+        }
+        // even if no overlays set, let creation of empty list signal
+        // step has occurred -- helps ensure overlays added once-only
+        curi.getOverlayNames();
+    }
+
+}
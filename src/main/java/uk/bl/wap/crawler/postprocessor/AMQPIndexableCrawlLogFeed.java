@@ -3,7 +3,8 @@
  */
 package uk.bl.wap.crawler.postprocessor;
 
-import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -13,11 +14,9 @@ import org.apache.http.HttpHeaders;
 import org.archive.crawler.event.CrawlStateEvent;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.postprocessor.AMQPCrawlLogFeed;
-import org.archive.modules.postprocessor.CrawlLogJsonBuilder;
 import org.archive.net.UURI;
 import org.archive.net.UURIFactory;
 import org.archive.spring.PathSharingContext;
-import org.json.JSONObject;
 import org.springframework.beans.BeansException;
 import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
@@ -59,34 +58,61 @@ public class AMQPIndexableCrawlLogFeed extends AMQPCrawlLogFeed implements
      */
     @Override
     protected byte[] buildMessage(CrawlURI curi) {
-        // Build standard object
-        JSONObject jo = CrawlLogJsonBuilder.buildJson(curi, getExtraFields(),
-                getServerCache());
-        // Patch on the location, so we can index redirects:
+        CrawlLogJsonWriter writer = CrawlLogJsonWriter.get();
+        // Wrap for Celery if required, i.e. as the kwargs of a task message
+        // (see http://docs.celeryproject.org/en/latest/internals/protocol.html)
+        if (this.celeryMessageFormat) {
+            writer.beginObject();
+            writer.field("id", UUID.randomUUID().toString());
+            if (this.targetCeleryTask != null) {
+                writer.field("task", this.targetCeleryTask);
+            }
+            writer.name("args").rawValue("[]");
+            writer.name("kwargs");
+        }
+        // Find the location, so we can index redirects:
+        String redirectUrl = null;
         String location = curi.getHttpResponseHeader(HttpHeaders.LOCATION);
         if (location != null) {
             try {
                 // Cope with absolute or relative URLs etc.
                 UURI dest = UURIFactory.getInstance(curi.getUURI(), location);
-                // Store it:
-                jo.put("redirecturl", dest.toString());
+                redirectUrl = dest.toString();
             } catch (URIException e1) {
                 LOGGER.log(Level.SEVERE,
                         "Could not parse redirect Location: " + location);
             }
         }
+        // Write the standard fields, leaving out any extra fields that are
+        // overridden below:
+        Map<String, String> extraFields = getExtraFields();
+        if (extraFields != null && ((redirectUrl != null
+                && extraFields.containsKey("redirecturl"))
+                || (this.launchId != null
+                        && extraFields.containsKey("launch_id")))) {
+            extraFields = new HashMap<String, String>(extraFields);
+            if (redirectUrl != null) {
+                extraFields.remove("redirecturl");
+            }
+            if (this.launchId != null) {
+                extraFields.remove("launch_id");
+            }
+        }
+        writer.beginObject();
+        writer.crawlLogFields(curi, extraFields, getServerCache());
+        // Patch on the location:
+        if (redirectUrl != null) {
+            writer.field("redirecturl", redirectUrl);
+        }
         // Add on the launch ID, so we can find the WARCs easily:
-        jo.put("launch_id", this.launchId);
-        // Re-wrap for Celery if required:
-        if (this.celeryMessageFormat) {
-            jo = this.wrapForCelery(jo);
+        if (this.launchId != null) {
+            writer.field("launch_id", this.launchId);
         }
-        // Encode and return:
-        try {
-            return jo.toString().getBytes("UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
+        writer.endObject();
+        if (this.celeryMessageFormat) {
+            writer.endObject();
         }
+        return writer.toByteArray();
     }
 
     /**
@@ -109,35 +135,6 @@ public class AMQPIndexableCrawlLogFeed extends AMQPCrawlLogFeed implements
         return props;
     }
 
-    /**
-     * 
-     * Re-wrap the JSON message in suitable package for sending to a Python
-     * Celery task.
-     * 
-     * @see http://docs.celeryproject.org/en/latest/internals/protocol.html
-     * 
-     * @param jo
-     * @return
-     * 
-     */
-    protected JSONObject wrapForCelery(JSONObject payload) {
-        //
-        // {
-        // "id": "e7224d1c-3d15-4478-98e9-2ce39f0f9c53",
-        // "task": "crawl.tasks.verify_sip",
-        // "args": [],
-        // "kwargs": {}
-        // }
-        //
-        JSONObject jo = new JSONObject();
-        jo.put("id", UUID.randomUUID());
-        jo.put("task", this.targetCeleryTask);
-        String[] args = {};
-        jo.put("args", args);
-        jo.put("kwargs", payload);
-        return jo;
-    }
-
     /**
      * @return use the celeryMessageFormat?
      */
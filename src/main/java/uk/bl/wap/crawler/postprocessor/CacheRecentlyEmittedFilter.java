@@ -0,0 +1,90 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.postprocessor;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * An exact {@link RecentlyEmittedFilter}, using a small Guava cache. This is
+ * the default, but only remembers a few thousand URLs.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class CacheRecentlyEmittedFilter implements RecentlyEmittedFilter {
+
+    private long maximumSize = 2000;
+
+    public long getMaximumSize() {
+        return maximumSize;
+    }
+
+    public void setMaximumSize(long maximumSize) {
+        this.maximumSize = maximumSize;
+    }
+
+    private int expiry = 300;
+
+    public int getExpiry() {
+        return expiry;
+    }
+
+    /**
+     * How long to remember each URL for, in seconds.
+     * 
+     * @param expiry
+     */
+    public void setExpiry(int expiry) {
+        this.expiry = expiry;
+    }
+
+    private volatile Cache<String, Boolean> recentlySentCache;
+
+    private Cache<String, Boolean> getCache() {
+        if (recentlySentCache == null) {
+            synchronized (this) {
+                if (recentlySentCache == null) {
+                    recentlySentCache = CacheBuilder.newBuilder()
+                            .expireAfterWrite(expiry, TimeUnit.SECONDS)
+                            .softValues().maximumSize(maximumSize).build();
+                }
+            }
+        }
+        return recentlySentCache;
+    }
+
+    @Override
+    public boolean checkAndMark(String uri) {
+        Cache<String, Boolean> cache = getCache();
+        if (cache.getIfPresent(uri) != null) {
+            return true;
+        }
+        cache.put(uri, true);
+        return false;
+    }
+
+    @Override
+    public boolean contains(String uri) {
+        return getCache().getIfPresent(uri) != null;
+    }
+
+    @Override
+    public void mark(String uri) {
+        getCache().put(uri, true);
+    }
+
+    @Override
+    public void clear() {
+        getCache().invalidateAll();
+    }
+
+    @Override
+    public double getFalsePositiveRate() {
+        return 0;
+    }
+
+}
@@ -0,0 +1,394 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.postprocessor;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import org.apache.commons.lang.StringUtils;
+import org.archive.modules.CoreAttributeConstants;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.net.CrawlHost;
+import org.archive.modules.net.ServerCache;
+import org.archive.util.ArchiveUtils;
+import org.archive.util.MimetypeUtils;
+import org.json.JSONObject;
+
+/**
+ * Writes crawl log JSON straight to a re-usable, per-thread UTF-8 buffer,
+ * rather than building an org.json tree, turning it into a String, and then
+ * encoding that as bytes.
+ *
+ * The fields, values and escaping are the same as
+ * {@link org.archive.modules.postprocessor.CrawlLogJsonBuilder#buildJson}
+ * followed by {@code toString().getBytes("UTF-8")}. The order of the fields
+ * is fixed, rather than depending on the internals of the JSONObject
+ * HashMap, which JSON consumers do not rely on.
+ *
+ * Use {@link #get()} to get the current thread's writer, add one or more
+ * objects, and then copy the result out using {@link #toByteArray()}.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public final class CrawlLogJsonWriter {
+
+    // The fields set by the crawl log itself after extraFields, which
+    // therefore override them. An extra "timestamp" overrides the crawl log's,
+    // as it is set before extraFields:
+    private static final Set<String> CRAWL_LOG_FIELDS = new HashSet<String>(
+            Arrays.asList("timestamp", "content_length", "size",
+                    "status_code", "url", "hop_path", "via", "mimetype",
+                    "thread", "start_time_plus_duration", "content_digest",
+                    "seed", "host", "annotations", "warc_filename",
+                    "warc_offset", "extra_info"));
+
+    private static final int INITIAL_SIZE = 4 * 1024;
+
+    // Don't hang on to buffers that have grown larger than this:
+    private static final int MAX_RETAINED_SIZE = 256 * 1024;
+
+    // Enough nesting for a crawl log wrapped in an envelope:
+    private static final int MAX_DEPTH = 8;
+
+    private static final ThreadLocal<CrawlLogJsonWriter> writers = new ThreadLocal<CrawlLogJsonWriter>() {
+        @Override
+        protected CrawlLogJsonWriter initialValue() {
+            return new CrawlLogJsonWriter();
+        }
+    };
+
+    private byte[] buf = new byte[INITIAL_SIZE];
+
+    private int count = 0;
+
+    private int depth = 0;
+
+    // Whether the object at each depth already has a member:
+    private final boolean[] hasMembers = new boolean[MAX_DEPTH];
+
+    private CrawlLogJsonWriter() {
+    }
+
+    /**
+     *
+     * @return this thread's writer, emptied and ready for use.
+     */
+    public static CrawlLogJsonWriter get() {
+        CrawlLogJsonWriter writer = writers.get();
+        if (writer.buf.length > MAX_RETAINED_SIZE) {
+            writer.buf = new byte[INITIAL_SIZE];
+        }
+        writer.count = 0;
+        writer.depth = 0;
+        return writer;
+    }
+
+    /**
+     * Build the standard crawl log message for a CrawlURI.
+     *
+     * @param curi
+     * @param extraFields
+     * @param serverCache
+     * @return the UTF-8 encoded JSON
+     */
+    public static byte[] buildMessage(CrawlURI curi,
+            Map<String, String> extraFields, ServerCache serverCache) {
+        return get().beginObject()
+                .crawlLogFields(curi, extraFields, serverCache).endObject()
+                .toByteArray();
+    }
+
+    /**
+     *
+     * @return a copy of the JSON written so far
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, count);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public CrawlLogJsonWriter beginObject() {
+        write('{');
+        hasMembers[depth++] = false;
+        return this;
+    }
+
+    public CrawlLogJsonWriter endObject() {
+        depth--;
+        write('}');
+        return this;
+    }
+
+    /**
+     * Start a member of the current object, to be followed by a value.
+     */
+    public CrawlLogJsonWriter name(String name) {
+        if (hasMembers[depth - 1]) {
+            write(',');
+        }
+        hasMembers[depth - 1] = true;
+        quote(name);
+        write(':');
+        return this;
+    }
+
+    public CrawlLogJsonWriter value(String value) {
+        if (value == null) {
+            writeAscii("null");
+        } else {
+            quote(value);
+        }
+        return this;
+    }
+
+    public CrawlLogJsonWriter value(long value) {
+        writeAscii(Long.toString(value));
+        return this;
+    }
+
+    public CrawlLogJsonWriter nullValue() {
+        writeAscii("null");
+        return this;
+    }
+
+    /**
+     * Write a value that is already JSON, e.g. from
+     * {@link JSONObject#valueToString(Object)}.
+     */
+    public CrawlLogJsonWriter rawValue(String json) {
+        writeString(json);
+        return this;
+    }
+
+    public CrawlLogJsonWriter field(String name, String value) {
+        return name(name).value(value);
+    }
+
+    public CrawlLogJsonWriter field(String name, long value) {
+        return name(name).value(value);
+    }
+
+    /**
+     * Write the members of the standard crawl log object, as per
+     * CrawlLogJsonBuilder.buildJson. Must be called between
+     * {@link #beginObject()} and {@link #endObject()}, so callers can add
+     * further fields.
+     *
+     * @param curi
+     * @param extraFields
+     * @param serverCache
+     * @return this writer
+     */
+    public CrawlLogJsonWriter crawlLogFields(CrawlURI curi,
+            Map<String, String> extraFields, ServerCache serverCache) {
+        String timestamp = extraFields != null ? extraFields.get("timestamp")
+                : null;
+        field("timestamp", timestamp != null ? timestamp
+                : ArchiveUtils.getLog17Date(System.currentTimeMillis()));
+
+        if (extraFields != null) {
+            for (Entry<String, String> entry : extraFields.entrySet()) {
+                // As with JSONObject.put, a null value means no field, and
+                // the crawl log's own fields take precedence:
+                if (entry.getValue() != null
+                        && !CRAWL_LOG_FIELDS.contains(entry.getKey())) {
+                    field(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        name("content_length");
+        if (curi.isHttpTransaction() && curi.getContentLength() >= 0) {
+            value(curi.getContentLength());
+        } else {
+            nullValue();
+        }
+        name("size");
+        if (curi.getContentSize() > 0) {
+            value(curi.getContentSize());
+        } else {
+            nullValue();
+        }
+
+        field("status_code", curi.getFetchStatus());
+        field("url", curi.getUURI().toString());
+        field("hop_path", curi.getPathFromSeed());
+        field("via", curi.flattenVia());
+        field("mimetype", MimetypeUtils.truncate(curi.getContentType()));
+        field("thread", curi.getThreadNumber());
+
+        if (curi.containsDataKey(
+                CoreAttributeConstants.A_FETCH_COMPLETED_TIME)) {
+            long beganTime = curi.getFetchBeginTime();
+            field("start_time_plus_duration",
+                    ArchiveUtils.get17DigitDate(beganTime) + "+"
+                            + (curi.getFetchCompletedTime() - beganTime));
+        } else {
+            name("start_time_plus_duration").nullValue();
+        }
+
+        field("content_digest", curi.getContentDigestSchemeString());
+        field("seed", curi.getSourceTag());
+
+        CrawlHost host = serverCache.getHostFor(curi.getUURI());
+        field("host", host != null ? host.fixUpName() : null);
+
+        Collection<String> annotations = curi.getAnnotations();
+        field("annotations", StringUtils.join(annotations, ","));
+
+        // Unroll the WARC details, and copy the rest of the extra info:
+        JSONObject ei = curi.getExtraInfo();
+        Object warcFilename = null;
+        Object warcOffset = null;
+        name("extra_info").beginObject();
+        if (ei != null) {
+            Iterator<String> keys = ei.keys();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                if ("warcFilename".equals(key)) {
+                    warcFilename = ei.opt(key);
+                } else if ("warcFileOffset".equals(key)) {
+                    warcOffset = ei.opt(key);
+                } else if (!"contentSize".equals(key)) {
+                    name(key).rawValue(JSONObject.valueToString(ei.opt(key)));
+                }
+            }
+        }
+        endObject();
+        name("warc_filename").rawValue(warcFilename == null ? "null"
+                : JSONObject.valueToString(warcFilename));
+        name("warc_offset").rawValue(warcOffset == null ? "null"
+                : JSONObject.valueToString(warcOffset));
+        return this;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > buf.length) {
+            buf = Arrays.copyOf(buf,
+                    Math.max(buf.length * 2, count + extra));
+        }
+    }
+
+    private void write(char c) {
+        ensureCapacity(1);
+        buf[count++] = (byte) c;
+    }
+
+    private void writeAscii(String s) {
+        int len = s.length();
+        ensureCapacity(len);
+        for (int i = 0; i < len; i++) {
+            buf[count++] = (byte) s.charAt(i);
+        }
+    }
+
+    // Encodes a String as UTF-8 (as String.getBytes would):
+    private void writeString(String s) {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                write(c);
+            } else {
+                i = writeNonAscii(s, i, c);
+            }
+        }
+    }
+
+    // Returns the index of the last char used:
+    private int writeNonAscii(String s, int i, char c) {
+        ensureCapacity(4);
+        if (c < 0x800) {
+            buf[count++] = (byte) (0xc0 | (c >> 6));
+            buf[count++] = (byte) (0x80 | (c & 0x3f));
+        } else if (Character.isHighSurrogate(c) && i + 1 < s.length()
+                && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(i + 1));
+            buf[count++] = (byte) (0xf0 | (cp >> 18));
+            buf[count++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+            buf[count++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+            buf[count++] = (byte) (0x80 | (cp & 0x3f));
+            return i + 1;
+        } else if (Character.isSurrogate(c)) {
+            // Unpaired, so replaced, as String.getBytes does:
+            buf[count++] = (byte) '?';
+        } else {
+            buf[count++] = (byte) (0xe0 | (c >> 12));
+            buf[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+            buf[count++] = (byte) (0x80 | (c & 0x3f));
+        }
+        return i;
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    // Quotes a String in the same way as JSONObject.quote:
+    private void quote(String s) {
+        write('"');
+        int len = s.length();
+        char c = 0;
+        for (int i = 0; i < len; i++) {
+            char b = c;
+            c = s.charAt(i);
+            switch (c) {
+            case '\\':
+            case '"':
+                write('\\');
+                write(c);
+                break;
+            case '/':
+                if (b == '<') {
+                    write('\\');
+                }
+                write(c);
+                break;
+            case '\b':
+                writeAscii("\\b");
+                break;
+            case '\t':
+                writeAscii("\\t");
+                break;
+            case '\n':
+                writeAscii("\\n");
+                break;
+            case '\f':
+                writeAscii("\\f");
+                break;
+            case '\r':
+                writeAscii("\\r");
+                break;
+            default:
+                if (c < 0x20 || (c >= 0x80 && c < 0xa0)
+                        || (c >= 0x2000 && c < 0x2100)) {
+                    ensureCapacity(6);
+                    buf[count++] = '\\';
+                    buf[count++] = 'u';
+                    buf[count++] = (byte) HEX[(c >> 12) & 0xf];
+                    buf[count++] = (byte) HEX[(c >> 8) & 0xf];
+                    buf[count++] = (byte) HEX[(c >> 4) & 0xf];
+                    buf[count++] = (byte) HEX[c & 0xf];
+                } else if (c < 0x80) {
+                    write(c);
+                } else {
+                    int last = writeNonAscii(s, i, c);
+                    if (last != i) {
+                        i = last;
+                        c = s.charAt(i);
+                    }
+                }
+            }
+        }
+        write('"');
+    }
+
+}
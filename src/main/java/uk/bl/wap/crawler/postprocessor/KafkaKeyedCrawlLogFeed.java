@@ -18,16 +18,33 @@
  */
 package uk.bl.wap.crawler.postprocessor;
 
-import java.io.UnsupportedEncodingException;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.apache.commons.collections.Closure;
@@ -45,9 +62,7 @@ import org.archive.crawler.io.UriProcessingFormatter;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.Processor;
 import org.archive.modules.net.ServerCache;
-import org.archive.modules.postprocessor.CrawlLogJsonBuilder;
 import org.archive.modules.postprocessor.KafkaCrawlLogFeed;
-import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.Lifecycle;
 
@@ -55,12 +70,29 @@ import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import io.prometheus.client.Histogram;
+import uk.bl.wap.util.SpillJournal;
+
 /**
  * For Kafka > 0.8.x. Sends messages asynchronously but does request and
  * acknowledgment from Kafka (request.required.acks=1).
  * 
  * Sends messages with a key (the CrawlURI classKey by default).
  * 
+ * If a spill directory is set, messages are written to a local
+ * {@link SpillJournal} rather than blocking the calling thread when the
+ * producer's buffer is nearly full, or when sending fails. A background thread
+ * sends the spilled messages on, in order, once Kafka is accepting them again.
+ * Once a send has failed, and while there are spilled messages waiting, new
+ * messages are spilled too, so that they are not sent ahead of them. Messages
+ * that were already in flight when a send failed may still arrive before it,
+ * so the order is only kept from the first failure onwards.
+ * 
+ * Messages sent via a thread's own producer (see
+ * {@link #setThreadProducer(KafkaProducer)}) are part of that producer's
+ * transaction, and are never spilled, whatever the spill settings.
  * 
  * @see KafkaCrawlLogFeed (which this implementation is based upon)
  * @see UriProcessingFormatter
@@ -138,13 +170,110 @@ public class KafkaKeyedCrawlLogFeed extends Processor implements Lifecycle {
         this.acks = acks;
     }
 
+    private int lingerMs = 5;
+    public int getLingerMs() {
+        return lingerMs;
+    }
+    /**
+     * How long to wait for more messages to fill a batch before sending it
+     * (kafka property "linger.ms").
+     */
+    public void setLingerMs(int lingerMs) {
+        this.lingerMs = lingerMs;
+    }
+
+    private int batchSize = 64 * 1024;
+    public int getBatchSize() {
+        return batchSize;
+    }
+    /**
+     * The maximum size of each batch of messages, per partition, in bytes
+     * (kafka property "batch.size").
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    private String compressionType = "lz4";
+    public String getCompressionType() {
+        return compressionType;
+    }
+    /**
+     * How batches are compressed: none, gzip, snappy or lz4 (kafka property
+     * "compression.type").
+     */
+    public void setCompressionType(String compressionType) {
+        this.compressionType = compressionType;
+    }
+
+    private long bufferMemory = 64 * 1024 * 1024;
+    public long getBufferMemory() {
+        return bufferMemory;
+    }
+    /**
+     * Memory used to hold messages waiting to be sent, in bytes. If this
+     * fills up, sending blocks (kafka property "buffer.memory").
+     */
+    public void setBufferMemory(long bufferMemory) {
+        this.bufferMemory = bufferMemory;
+    }
+
+    private long maxBlockMs = 60000;
+    public long getMaxBlockMs() {
+        return maxBlockMs;
+    }
+    /**
+     * How long sending may block waiting for buffer space or topic metadata
+     * before failing (kafka property "max.block.ms"). When spilling, set
+     * this low, so failed sends are spilled rather than holding up the
+     * calling thread.
+     */
+    public void setMaxBlockMs(long maxBlockMs) {
+        this.maxBlockMs = maxBlockMs;
+    }
+
+    private String spillDirectory = null;
+    public String getSpillDirectory() {
+        return spillDirectory;
+    }
+    /**
+     * Where to keep messages that could not be sent yet, in a sub-directory
+     * named after the topic. If not set (the default), messages are never
+     * spilled. This has no effect on messages sent as part of a transaction
+     * via a thread's own producer, as the transaction's outcome decides
+     * whether they are sent.
+     */
+    public void setSpillDirectory(String spillDirectory) {
+        this.spillDirectory = spillDirectory;
+    }
+
+    private int spillSegmentSize = 16 * 1024 * 1024;
+    public int getSpillSegmentSize() {
+        return spillSegmentSize;
+    }
+    /**
+     * The size of each spill journal file, in bytes. This also limits the
+     * size of a message that can be spilled.
+     */
+    public void setSpillSegmentSize(int spillSegmentSize) {
+        this.spillSegmentSize = spillSegmentSize;
+    }
+
+    private long spillMaxBytes = 1024L * 1024 * 1024;
+    public long getSpillMaxBytes() {
+        return spillMaxBytes;
+    }
+    /**
+     * The most disk space the spill journal may use, in bytes. Once it is
+     * full, further messages that cannot be sent are dropped (and counted).
+     */
+    public void setSpillMaxBytes(long spillMaxBytes) {
+        this.spillMaxBytes = spillMaxBytes;
+    }
+
     protected byte[] buildMessage(CrawlURI curi) {
-        JSONObject jo = CrawlLogJsonBuilder.buildJson(curi, getExtraFields(), getServerCache());
-        try {
-            return jo.toString().getBytes("UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
+        return CrawlLogJsonWriter.buildMessage(curi, getExtraFields(),
+                getServerCache());
     }
 
     @Override
@@ -157,6 +286,17 @@ public class KafkaKeyedCrawlLogFeed extends Processor implements Lifecycle {
         }
     }
 
+    @Override
+    public synchronized void start() {
+        if (isRunning) {
+            return;
+        }
+        super.start();
+        if (getSpillDirectory() != null) {
+            startSpillJournal();
+        }
+    }
+
     private transient long pendingDumpedCount = 0l;
     @Override
     public synchronized void stop() {
@@ -185,13 +325,23 @@ public class KafkaKeyedCrawlLogFeed extends Processor implements Lifecycle {
             }
         }
 
-        String rateStr = String.format("%1.1f", 0.01 * stats.errors / stats.total);
-        logger.info("final error count: " + stats.errors + "/" + stats.total + " (" + rateStr + "%)");
+        logger.info("final error count: " + stats.summary());
 
+        stopSpillReplayer();
         if (kafkaProducer != null) {
-            kafkaProducer.close();
+            if (spillJournal != null) {
+                // Anything not sent in time is spilled, for the next run:
+                kafkaProducer.close(SPILL_CLOSE_TIMEOUT_SECONDS,
+                        TimeUnit.SECONDS);
+            } else {
+                kafkaProducer.close();
+            }
             kafkaProducer = null;
         }
+        if (spillJournal != null) {
+            spillJournal.close();
+            spillJournal = null;
+        }
         if (kafkaProducerThreads != null) {
             kafkaProducerThreads.destroy();
             kafkaProducerThreads = null;
@@ -200,16 +350,166 @@ public class KafkaKeyedCrawlLogFeed extends Processor implements Lifecycle {
         super.stop();
     }
 
+    /**
+     * Block until every message sent so far has been acknowledged (or has
+     * failed).
+     */
+    public void flush() {
+        KafkaProducer<String, byte[]> producer = kafkaProducer;
+        if (producer != null) {
+            producer.flush();
+        }
+    }
+
+    /*
+     * A producer that the current thread should use instead of the feed's own,
+     * shared by all feeds. This allows messages to be sent as part of a Kafka
+     * transaction that the caller controls.
+     */
+    private static final ThreadLocal<KafkaProducer<String, byte[]>> threadProducer = new ThreadLocal<KafkaProducer<String, byte[]>>();
+
+    /**
+     * Send everything from the current thread via the given producer, until
+     * {@link #clearThreadProducer()} is called.
+     * 
+     * @param producer
+     */
+    public static void setThreadProducer(
+            KafkaProducer<String, byte[]> producer) {
+        threadProducer.set(producer);
+    }
+
+    public static void clearThreadProducer() {
+        threadProducer.remove();
+        threadPendingEmitted.remove();
+    }
+
+    /*
+     * Where the current thread should note the URLs it emits, rather than
+     * marking them as recently emitted straight away.
+     */
+    private static final ThreadLocal<PendingEmitted> threadPendingEmitted = new ThreadLocal<PendingEmitted>();
+
+    /**
+     * Note the URLs emitted from the current thread in the given set, until
+     * {@link #clearThreadProducer()} is called. This is used along with
+     * {@link #setThreadProducer(KafkaProducer)} so that URLs sent as part of
+     * a transaction are only marked as recently emitted if it commits.
+     * 
+     * @param pending
+     */
+    public static void setThreadPendingEmitted(PendingEmitted pending) {
+        threadPendingEmitted.set(pending);
+    }
+
+    /**
+     * The URLs emitted by any feed within an open transaction. These are
+     * checked against, but not added to, each feed's recently-emitted filter
+     * until the transaction commits, as the filters cannot forget individual
+     * URLs if it aborts.
+     * 
+     * This also fences off the transaction: use a new one for each
+     * transaction, as once it has been committed or aborted, any further
+     * messages sent by threads still using it are dropped, rather than ending
+     * up in the next transaction.
+     */
+    public static class PendingEmitted {
+        private final ConcurrentMap<KafkaKeyedCrawlLogFeed, Set<String>> uris = new ConcurrentHashMap<KafkaKeyedCrawlLogFeed, Set<String>>();
+
+        // Held while sending, and taken exclusively to close the transaction:
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        private boolean closed = false;
+
+        /*
+         * Send the message via the producer, unless the transaction has been
+         * closed. Returns false if the message was dropped.
+         */
+        private boolean send(KafkaProducer<String, byte[]> producer,
+                ProducerRecord<String, byte[]> record, Callback callback) {
+            lock.readLock().lock();
+            try {
+                if (closed) {
+                    return false;
+                }
+                producer.send(record, callback);
+                return true;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // Wait for any sends in progress, and stop any more:
+        private void close() {
+            lock.writeLock().lock();
+            try {
+                closed = true;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        /*
+         * Returns true if the URL was not already pending for this feed.
+         */
+        private boolean add(KafkaKeyedCrawlLogFeed feed, String uri) {
+            Set<String> feedUris = uris.get(feed);
+            if (feedUris == null) {
+                feedUris = Collections.newSetFromMap(
+                        new ConcurrentHashMap<String, Boolean>());
+                Set<String> existing = uris.putIfAbsent(feed, feedUris);
+                if (existing != null) {
+                    feedUris = existing;
+                }
+            }
+            return feedUris.add(uri);
+        }
+
+        /**
+         * The transaction committed, so mark the URLs as recently emitted.
+         */
+        public void commit() {
+            close();
+            for (Map.Entry<KafkaKeyedCrawlLogFeed, Set<String>> entry : uris
+                    .entrySet()) {
+                RecentlyEmittedFilter filter = entry.getKey()
+                        .getRecentlyEmittedFilter();
+                for (String uri : entry.getValue()) {
+                    filter.mark(uri);
+                }
+            }
+            uris.clear();
+        }
+
+        /**
+         * The transaction is being aborted, so forget the URLs. Call this
+         * before aborting, so nothing more is sent as part of it.
+         */
+        public void abort() {
+            close();
+            uris.clear();
+        }
+    }
+
     private transient ThreadGroup kafkaProducerThreads;
 
     transient protected KafkaProducer<String, byte[]> kafkaProducer;
     protected KafkaProducer<String, byte[]> kafkaProducer() {
+        KafkaProducer<String, byte[]> override = threadProducer.get();
+        if (override != null) {
+            return override;
+        }
         if (kafkaProducer == null) {
             synchronized (this) {
                 if (kafkaProducer == null) {
                     final Properties props = new Properties();
                     props.put("bootstrap.servers", getBrokerList());
                     props.put("acks", Integer.toString(getAcks()));
+                    props.put("linger.ms", Integer.toString(getLingerMs()));
+                    props.put("batch.size", Integer.toString(getBatchSize()));
+                    props.put("compression.type", getCompressionType());
+                    props.put("buffer.memory", Long.toString(getBufferMemory()));
+                    props.put("max.block.ms", Long.toString(getMaxBlockMs()));
                     props.put("key.serializer", StringSerializer.class.getName());
                     props.put("value.serializer", ByteArraySerializer.class.getName());
 
@@ -247,23 +547,427 @@ public class KafkaKeyedCrawlLogFeed extends Processor implements Lifecycle {
         return kafkaProducer;
     }
 
+    // Send latency buckets, in seconds, from 1ms to 10s:
+    private static final double[] LATENCY_BUCKETS = { 0.001, 0.0025, 0.005,
+            0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10 };
+
+    // Record size buckets, in bytes, from 128B to 1MB:
+    private static final double[] SIZE_BUCKETS = { 128, 256, 512, 1024, 2048,
+            4096, 8192, 16384, 65536, 262144, 1048576 };
+
+    private static final Histogram sendLatency = Histogram.build()
+            .name("kafka_feed_send_seconds").labelNames("topic")
+            .buckets(LATENCY_BUCKETS)
+            .help("Time from sending each message to it being acknowledged.")
+            .register();
+
+    private static final Histogram recordSize = Histogram.build()
+            .name("kafka_feed_record_bytes").labelNames("topic")
+            .buckets(SIZE_BUCKETS)
+            .help("Size of each message sent (before compression).")
+            .register();
+
+    private static final Counter sendOutcomes = Counter.build()
+            .name("kafka_feed_records_total").labelNames("topic", "outcome")
+            .help("Messages sent, by outcome (acked, error, or stale if the transaction they were part of had ended).").register();
+
+    private static final Counter recentlyEmittedSuppressed = Counter.build()
+            .name("kafka_feed_recently_emitted_suppressed_total")
+            .labelNames("topic")
+            .help("Messages not sent because the URL was emitted recently.")
+            .register();
+
+    private static final Counter spillOutcomes = Counter.build()
+            .name("kafka_feed_spill_records_total")
+            .labelNames("topic", "outcome")
+            .help("Messages spilled to the local journal, replayed from it, or dropped because it was full.")
+            .register();
+
+    private static final Gauge spillPendingRecords = Gauge.build()
+            .name("kafka_feed_spill_pending_records").labelNames("topic")
+            .help("Messages waiting in the local spill journal.").register();
+
+    private static final Gauge spillPendingBytes = Gauge.build()
+            .name("kafka_feed_spill_pending_bytes").labelNames("topic")
+            .help("Size of the messages waiting in the local spill journal.")
+            .register();
+
+    private static final Gauge recentlyEmittedFalsePositiveRate = Gauge
+            .build().name("kafka_feed_recently_emitted_false_positive_rate")
+            .labelNames("topic")
+            .help("Estimated chance of wrongly treating a URL as recently emitted.")
+            .register();
+
+    /**
+     * The metrics for one topic, looked up once rather than on every send.
+     */
+    private static final class TopicMetrics {
+        private final Histogram.Child latency;
+        private final Histogram.Child size;
+        private final Counter.Child acked;
+        private final Counter.Child errors;
+        private final Counter.Child stale;
+
+        private TopicMetrics(String topic) {
+            this.latency = sendLatency.labels(topic);
+            this.size = recordSize.labels(topic);
+            this.acked = sendOutcomes.labels(topic, "acked");
+            this.errors = sendOutcomes.labels(topic, "error");
+            this.stale = sendOutcomes.labels(topic, "stale");
+        }
+    }
+
+    private static final ConcurrentMap<String, TopicMetrics> topicMetrics = new ConcurrentHashMap<String, TopicMetrics>();
+
+    private static TopicMetrics metricsFor(String topic) {
+        TopicMetrics metrics = topicMetrics.get(topic);
+        if (metrics == null) {
+            metrics = new TopicMetrics(topic);
+            TopicMetrics existing = topicMetrics.putIfAbsent(topic, metrics);
+            if (existing != null) {
+                metrics = existing;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Counts sends and errors. As callbacks come from the producer's I/O
+     * thread while the totals are read from others, {@link LongAdder}s are
+     * used.
+     */
     protected final class StatsCallback implements Callback {
-        public long errors = 0l;
-        public long total = 0l;
+        public final LongAdder errors = new LongAdder();
+        public final LongAdder total = new LongAdder();
 
         @Override
         public void onCompletion(RecordMetadata metadata, Exception exception) {
-            total++;
+            total.increment();
             if (exception != null) {
-                errors++;
+                errors.increment();
+            }
+
+            if (total.sum() % 10000 == 0) {
+                logger.info("error count so far: " + summary());
             }
+        }
+
+        public String summary() {
+            long e = errors.sum();
+            long t = total.sum();
+            String rateStr = String.format("%1.1f",
+                    t == 0 ? 0.0 : 100.0 * e / t);
+            return e + "/" + t + " (" + rateStr + "%)";
+        }
+    }
+
+    /**
+     * Records the latency and outcome of a single send, and spills the
+     * message if it failed and spilling is enabled.
+     */
+    private final class SendCallback implements Callback {
+        private final long start = System.nanoTime();
+        private final TopicMetrics metrics;
+        // Only set for messages sent via the feed's own producer:
+        private final ProducerRecord<String, byte[]> record;
+
+        private SendCallback(TopicMetrics metrics,
+                ProducerRecord<String, byte[]> record) {
+            this.metrics = metrics;
+            this.record = record;
+        }
 
-            if (total % 10000 == 0) {
-                String rateStr = String.format("%1.1f", 0.01 * errors / total);
-                logger.info("error count so far: " + errors + "/" + total + " (" + rateStr + "%)");
+        @Override
+        public void onCompletion(RecordMetadata metadata, Exception exception) {
+            metrics.latency.observe((System.nanoTime() - start) / 1.0e9);
+            if (exception != null) {
+                metrics.errors.inc();
+            } else {
+                metrics.acked.inc();
+            }
+            stats.onCompletion(metadata, exception);
+            if (record != null) {
+                if (exception != null && spillJournal != null) {
+                    // Spill everything from here on, so nothing sent after
+                    // this overtakes it:
+                    sendFailed = true;
+                    spill(record);
+                }
+                inFlightBytes.addAndGet(-record.value().length);
             }
         }
     }
+
+    // Spill rather than send once this much of the buffer is in use:
+    private static final double SPILL_BUFFER_FRACTION = 0.9;
+
+    // How many spilled messages to send at a time:
+    private static final int SPILL_REPLAY_BATCH = 500;
+
+    // How long to wait between attempts to replay spilled messages:
+    private static final long SPILL_REPLAY_INTERVAL_MS = 1000;
+
+    private static final long SPILL_CLOSE_TIMEOUT_SECONDS = 30;
+
+    // Size of messages sent via the feed's own producer but not yet acked:
+    private final AtomicLong inFlightBytes = new AtomicLong();
+
+    private transient volatile SpillJournal spillJournal;
+
+    // Set when a direct send fails, and cleared once the journal is empty and
+    // nothing is in flight:
+    private transient volatile boolean sendFailed = false;
+
+    private transient Thread spillReplayer;
+
+    private void startSpillJournal() {
+        final String label = getTopic();
+        File dir = new File(getSpillDirectory(), label);
+        try {
+            spillJournal = new SpillJournal(dir, getSpillSegmentSize(),
+                    getSpillMaxBytes(), 2);
+        } catch (IOException e) {
+            logger.log(Level.SEVERE,
+                    "Could not open spill journal " + dir + ", not spilling.",
+                    e);
+            return;
+        }
+        final SpillJournal journal = spillJournal;
+        spillPendingRecords.setChild(new Gauge.Child() {
+            @Override
+            public double get() {
+                return journal.getPendingRecords();
+            }
+        }, label);
+        spillPendingBytes.setChild(new Gauge.Child() {
+            @Override
+            public double get() {
+                return journal.getPendingBytes();
+            }
+        }, label);
+        spillReplayer = new Thread("KafkaSpillReplayer-" + label) {
+            @Override
+            public void run() {
+                replaySpilled(journal);
+            }
+        };
+        spillReplayer.setDaemon(true);
+        spillReplayer.start();
+    }
+
+    private void stopSpillReplayer() {
+        Thread replayer = spillReplayer;
+        spillReplayer = null;
+        if (replayer != null) {
+            replayer.interrupt();
+            try {
+                replayer.join(SPILL_CLOSE_TIMEOUT_SECONDS * 1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean producerBufferNearlyFull() {
+        return inFlightBytes.get() > getBufferMemory()
+                * SPILL_BUFFER_FRACTION;
+    }
+
+    /**
+     * Write a message to the spill journal, to be sent later.
+     * 
+     * @param producerRecord
+     */
+    protected void spill(ProducerRecord<String, byte[]> producerRecord) {
+        SpillJournal journal = spillJournal;
+        String outcome = "dropped";
+        try {
+            if (journal != null
+                    && journal.append(encodeSpilled(producerRecord))) {
+                outcome = "spilled";
+            } else {
+                logger.warning("Spill journal full, dropping message for "
+                        + producerRecord.topic());
+            }
+        } catch (IOException | IllegalArgumentException
+                | IllegalStateException e) {
+            logger.log(Level.SEVERE, "Could not spill message for "
+                    + producerRecord.topic(), e);
+        }
+        spillOutcomes.labels(getTopic(), outcome).inc();
+    }
+
+    /*
+     * Sends spilled messages on in batches, in order, and only marks them as
+     * consumed once Kafka has acknowledged them. If part of a batch fails, the
+     * rest is retried later, so messages may be sent more than once.
+     */
+    private void replaySpilled(SpillJournal journal) {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                List<byte[]> batch = journal.peek(SPILL_REPLAY_BATCH);
+                if (batch.isEmpty() && inFlightBytes.get() == 0) {
+                    sendFailed = false;
+                }
+                if (batch.isEmpty() || producerBufferNearlyFull()) {
+                    journal.force();
+                    Thread.sleep(SPILL_REPLAY_INTERVAL_MS);
+                    continue;
+                }
+                KafkaProducer<String, byte[]> producer = kafkaProducer();
+                List<Future<RecordMetadata>> results = new ArrayList<Future<RecordMetadata>>(
+                        batch.size());
+                for (byte[] spilled : batch) {
+                    results.add(producer.send(decodeSpilled(spilled)));
+                }
+                int sent = 0;
+                try {
+                    for (Future<RecordMetadata> result : results) {
+                        result.get();
+                        sent++;
+                    }
+                } catch (ExecutionException e) {
+                    logger.warning("Replaying spilled messages failed after "
+                            + sent + " of " + batch.size() + ": "
+                            + e.getCause());
+                }
+                journal.commit(sent);
+                spillOutcomes.labels(getTopic(), "replayed").inc(sent);
+                if (sent < batch.size()) {
+                    Thread.sleep(SPILL_REPLAY_INTERVAL_MS);
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException | RuntimeException e) {
+                logger.log(Level.SEVERE, "Error replaying spilled messages.",
+                        e);
+                try {
+                    Thread.sleep(SPILL_REPLAY_INTERVAL_MS);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+            }
+        }
+    }
+
+    static byte[] encodeSpilled(ProducerRecord<String, byte[]> record)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                record.value().length + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeUTF(record.topic());
+        out.writeBoolean(record.key() != null);
+        if (record.key() != null) {
+            out.writeUTF(record.key());
+        }
+        out.writeInt(record.value().length);
+        out.write(record.value());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    static ProducerRecord<String, byte[]> decodeSpilled(byte[] spilled)
+            throws IOException {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(spilled));
+        String topic = in.readUTF();
+        String key = in.readBoolean() ? in.readUTF() : null;
+        byte[] value = new byte[in.readInt()];
+        in.readFully(value);
+        return new ProducerRecord<String, byte[]>(topic, key, value);
+    }
+
+    private RecentlyEmittedFilter recentlyEmittedFilter;
+
+    private transient volatile boolean recentlyEmittedMetrics = false;
+
+    public synchronized RecentlyEmittedFilter getRecentlyEmittedFilter() {
+        if (recentlyEmittedFilter == null) {
+            recentlyEmittedFilter = new CacheRecentlyEmittedFilter();
+        }
+        return recentlyEmittedFilter;
+    }
+
+    /**
+     * How to remember which URLs have been sent recently, so they are not sent
+     * again. Defaults to a small {@link CacheRecentlyEmittedFilter}.
+     * 
+     * @param recentlyEmittedFilter
+     */
+    public synchronized void setRecentlyEmittedFilter(
+            RecentlyEmittedFilter recentlyEmittedFilter) {
+        this.recentlyEmittedFilter = recentlyEmittedFilter;
+    }
+
+    /**
+     * Check whether a URL has been sent recently, and remember that it is
+     * being sent if not.
+     * 
+     * @param uri
+     * @return true if the URL was sent recently, and should not be sent again
+     */
+    protected boolean recentlyEmitted(String uri) {
+        final RecentlyEmittedFilter filter = getRecentlyEmittedFilter();
+        if (!recentlyEmittedMetrics) {
+            synchronized (this) {
+                if (!recentlyEmittedMetrics) {
+                    recentlyEmittedFalsePositiveRate
+                            .setChild(new Gauge.Child() {
+                                @Override
+                                public double get() {
+                                    return filter.getFalsePositiveRate();
+                                }
+                            }, getTopic());
+                    recentlyEmittedMetrics = true;
+                }
+            }
+        }
+        PendingEmitted pending = threadPendingEmitted.get();
+        boolean recent;
+        if (pending != null) {
+            recent = filter.contains(uri) || !pending.add(this, uri);
+        } else {
+            recent = filter.checkAndMark(uri);
+        }
+        if (recent) {
+            recentlyEmittedSuppressed.labels(getTopic()).inc();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Send a message, recording its size, latency and outcome.
+     * 
+     * @param producerRecord
+     */
+    protected void send(ProducerRecord<String, byte[]> producerRecord) {
+        TopicMetrics metrics = metricsFor(producerRecord.topic());
+        metrics.size.observe(producerRecord.value().length);
+        KafkaProducer<String, byte[]> override = threadProducer.get();
+        if (override != null) {
+            // Part of the caller's transaction, so never spilled:
+            PendingEmitted pending = threadPendingEmitted.get();
+            if (pending == null) {
+                override.send(producerRecord, new SendCallback(metrics, null));
+            } else if (!pending.send(override, producerRecord,
+                    new SendCallback(metrics, null))) {
+                // The transaction is over, e.g. it timed out:
+                metrics.stale.inc();
+            }
+            return;
+        }
+        if (spillJournal != null && (sendFailed
+                || spillJournal.getPendingRecords() > 0
+                || producerBufferNearlyFull())) {
+            spill(producerRecord);
+            return;
+        }
+        inFlightBytes.addAndGet(producerRecord.value().length);
+        kafkaProducer().send(producerRecord,
+                new SendCallback(metrics, producerRecord));
+    }
+
     protected StatsCallback stats = new StatsCallback();
 
     /**
@@ -279,7 +983,16 @@ public class KafkaKeyedCrawlLogFeed extends Processor implements Lifecycle {
      * @return
      */
     protected String getKeyForCrawlURI(CrawlURI curi) {
-        // Hash the key to ensure uniform distribution:
+        return hashKey(getQueueKeyForCrawlURI(curi));
+    }
+
+    /**
+     * The host (authority) that the key is made from, before hashing.
+     * 
+     * @param curi
+     * @return
+     */
+    protected String getQueueKeyForCrawlURI(CrawlURI curi) {
         String queueKey;
         try {
             queueKey = curi.getUURI().getAuthority();
@@ -295,7 +1008,16 @@ public class KafkaKeyedCrawlLogFeed extends Processor implements Lifecycle {
                 queueKey = "null_key";
             }
         }
-        // Hash it to make the key:
+        return queueKey;
+    }
+
+    /**
+     * Hash a queue key, to ensure uniform distribution.
+     * 
+     * @param queueKey
+     * @return
+     */
+    protected String hashKey(String queueKey) {
         HashCode hash = hf.hashBytes(queueKey.getBytes());
         return hash.toString();
     }
@@ -318,7 +1040,7 @@ public class KafkaKeyedCrawlLogFeed extends Processor implements Lifecycle {
             byte[] message = buildMessage(curi);
             ProducerRecord<String, byte[]> producerRecord = new ProducerRecord<String, byte[]>(
                     getTopic(), getKeyForCrawlURI(curi), message);
-            kafkaProducer().send(producerRecord, stats);
+            send(producerRecord);
         }
     }
 }
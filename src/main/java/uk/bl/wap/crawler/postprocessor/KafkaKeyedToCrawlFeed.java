@@ -7,21 +7,25 @@ import static org.archive.modules.CoreAttributeConstants.A_HERITABLE_KEYS;
 
 import java.io.UnsupportedEncodingException;
 import java.net.IDN;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.httpclient.URIException;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.deciderules.DecideRule;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
+import uk.bl.wap.crawler.frontier.CrawlRequest;
+import uk.bl.wap.crawler.frontier.CrawlRequestBinaryCodec;
 
 /**
  * 
@@ -87,6 +91,58 @@ public class KafkaKeyedToCrawlFeed extends KafkaKeyedCrawlLogFeed {
         this.discardedUriFeedEnabled = discardedUriFeedEnabled;
     }
 
+    /**
+     * The format to send crawl requests in, either "json" or "binary". All
+     * consumers must understand the binary format before it is enabled.
+     * 
+     * @see CrawlRequestBinaryCodec
+     */
+    private String messageFormat = "json";
+
+    public String getMessageFormat() {
+        return messageFormat;
+    }
+
+    public void setMessageFormat(String messageFormat) {
+        if (!"json".equals(messageFormat) && !"binary".equals(messageFormat)) {
+            throw new IllegalArgumentException(
+                    "Unknown message format: " + messageFormat);
+        }
+        this.messageFormat = messageFormat;
+    }
+
+    /**
+     * Whether to LZ4 compress larger binary messages.
+     */
+    private boolean compressMessages = false;
+
+    public boolean isCompressMessages() {
+        return compressMessages;
+    }
+
+    public void setCompressMessages(boolean compressMessages) {
+        this.compressMessages = compressMessages;
+    }
+
+    /**
+     * The most outlinks to send in each message. If more than one, the
+     * outlinks of each page are grouped by host (i.e. by message key) and sent
+     * as batches that only hold the details of the page once. All consumers
+     * must understand batches before this is enabled.
+     * 
+     * @see uk.bl.wap.crawler.frontier.CrawlRequestDecoder#decodeAll(byte[],
+     *      List)
+     */
+    private int outlinksPerMessage = 1;
+
+    public int getOutlinksPerMessage() {
+        return outlinksPerMessage;
+    }
+
+    public void setOutlinksPerMessage(int outlinksPerMessage) {
+        this.outlinksPerMessage = outlinksPerMessage;
+    }
+
     /**
      * Constructs the json to send.
      * 
@@ -129,7 +185,68 @@ public class KafkaKeyedToCrawlFeed extends KafkaKeyedCrawlLogFeed {
         return message;
     }
 
+    /**
+     * Constructs the crawl request to send in binary form, with the same
+     * content as {@link #buildJsonMessage(CrawlURI, CrawlURI)}.
+     * 
+     * @return the crawl request
+     */
+    protected CrawlRequest buildCrawlRequest(CrawlURI source, CrawlURI curi) {
+        CrawlRequest request = buildOutlinkRequest(curi);
+        request.inheritFrom(buildParentRequest(source));
+        return request;
+    }
+
+    /**
+     * The details of a URL to crawl, without those of its parent.
+     * 
+     * @return the crawl request
+     */
+    protected CrawlRequest buildOutlinkRequest(CrawlURI curi) {
+        CrawlRequest request = new CrawlRequest();
+        request.setUrl(curi.toString());
+        request.setSeed(curi.isSeed());
+        request.setForceFetch(curi.forceFetch());
+        request.setHop(curi.getLastHop());
+        request.setMethod("GET");
+        Object headers = curi.getData().get("customHttpRequestHeaders");
+        if (headers instanceof Map) {
+            for (Map.Entry<?, ?> header : ((Map<?, ?>) headers).entrySet()) {
+                request.addHeader(String.valueOf(header.getKey()),
+                        String.valueOf(header.getValue()));
+            }
+        }
+        return request;
+    }
+
+    /**
+     * The details of the parent URL that are shared by all its outlinks.
+     * 
+     * @return a crawl request holding only the parent's details
+     */
+    protected CrawlRequest buildParentRequest(CrawlURI source) {
+        CrawlRequest request = new CrawlRequest();
+        request.setMethod("GET");
+        request.setParentUrl(source.getURI());
+        request.setPathFromSeed(source.getPathFromSeed());
+        @SuppressWarnings("unchecked")
+        Set<String> heritableKeys = (Set<String>) source.getData()
+                .get(A_HERITABLE_KEYS);
+        if (heritableKeys != null) {
+            for (String key : heritableKeys) {
+                request.getHeritableData().put(key,
+                        source.getData().get(key));
+            }
+        }
+
+        return request;
+    }
+
     protected byte[] buildMessage(CrawlURI source, CrawlURI curi) {
+        if ("binary".equals(messageFormat)) {
+            return CrawlRequestBinaryCodec.encode(
+                    buildCrawlRequest(source, curi), compressMessages);
+        }
         try {
             return buildJsonMessage(source, curi).toString().getBytes("UTF-8");
         } catch (UnsupportedEncodingException e) {
@@ -138,19 +255,103 @@ public class KafkaKeyedToCrawlFeed extends KafkaKeyedCrawlLogFeed {
     }
 
     /**
-     * This cache is used to avoid too much duplication of discovered URLs.
-     * However, note that this will interfere with re-crawling dynamics over
-     * short times (sub-5-minutes)
+     * Constructs a message holding a batch of outlinks from the same parent.
+     * 
+     * @param parent
+     *            as built by {@link #buildParentRequest(CrawlURI)}
+     * @param candidates
+     * @return the message to send.
      */
-    private Cache<String, Boolean> recentlySentCache = CacheBuilder
-            .newBuilder().expireAfterWrite(5, TimeUnit.MINUTES).softValues()
-            .maximumSize(2000).build();
+    protected byte[] buildBatchMessage(CrawlRequest parent,
+            List<CrawlURI> candidates) {
+        if ("binary".equals(messageFormat)) {
+            List<CrawlRequest> requests = new ArrayList<CrawlRequest>(
+                    candidates.size());
+            for (CrawlURI candidate : candidates) {
+                requests.add(buildOutlinkRequest(candidate));
+            }
+            return CrawlRequestBinaryCodec.encodeBatch(parent, requests,
+                    compressMessages);
+        }
+        JSONObject message = new JSONObject();
+        message.put("method", parent.getMethod());
+        message.put("parentUrl", parent.getParentUrl());
+        HashMap<String, Object> metadata = new HashMap<String, Object>();
+        metadata.put("pathFromSeed", parent.getPathFromSeed());
+        metadata.put("heritableData", parent.getHeritableData());
+        message.put("parentUrlMetadata", metadata);
+        JSONArray urls = new JSONArray();
+        for (CrawlURI candidate : candidates) {
+            JSONObject url = new JSONObject().put("url", candidate.toString());
+            url.put("isSeed", candidate.isSeed());
+            url.put("forceFetch", candidate.forceFetch());
+            url.put("hop", candidate.getLastHop());
+            url.put("headers",
+                    candidate.getData().get("customHttpRequestHeaders"));
+            urls.put(url);
+        }
+        message.put("urls", urls);
+        try {
+            return message.toString().getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Send an outlink on now, or (if batches are given) add it to the batch
+     * for its host.
+     */
+    protected void emitOutlink(CrawlURI curi, CrawlURI candidate,
+            Map<String, List<CrawlURI>> batches) {
+        if (batches == null) {
+            sendToKafka(getTopic(), curi, candidate);
+        } else if (!recentlyEmitted(candidate.getURI())) {
+            String queueKey = getQueueKeyForCrawlURI(candidate);
+            List<CrawlURI> batch = batches.get(queueKey);
+            if (batch == null) {
+                batch = new ArrayList<CrawlURI>();
+                batches.put(queueKey, batch);
+            }
+            batch.add(candidate);
+        }
+    }
+
+    /**
+     * Send batches of outlinks, at most {@link #getOutlinksPerMessage()} per
+     * message.
+     * 
+     * @param topic
+     * @param curi
+     *            the page the outlinks came from
+     * @param batches
+     *            the outlinks, by queue key
+     */
+    protected void sendBatches(String topic, CrawlURI curi,
+            Map<String, List<CrawlURI>> batches) {
+        if (batches.isEmpty()) {
+            return;
+        }
+        CrawlRequest parent = buildParentRequest(curi);
+        for (Map.Entry<String, List<CrawlURI>> entry : batches.entrySet()) {
+            String key = hashKey(entry.getKey());
+            List<CrawlURI> candidates = entry.getValue();
+            for (int i = 0; i < candidates.size(); i += outlinksPerMessage) {
+                List<CrawlURI> batch = candidates.subList(i,
+                        Math.min(candidates.size(), i + outlinksPerMessage));
+                logger.finer("Sending a message wrapping " + batch.size()
+                        + " URIs from " + curi + " to topic " + topic);
+                send(new ProducerRecord<String, byte[]>(topic, key,
+                        buildBatchMessage(parent, batch)));
+            }
+        }
+    }
 
     public void sendToKafka(String topic, CrawlURI curi, CrawlURI candidate) {
-        // Check if this URL has been sent recently:
-        Boolean recentlySent = recentlySentCache
-                .getIfPresent(candidate.getURI());
-        if (recentlySent == null) {
+        // Check if this URL has been sent recently. Note that this will
+        // interfere with re-crawling dynamics over short times (less than the
+        // filter's expiry time):
+        if (!recentlyEmitted(candidate.getURI())) {
             // Make a suitable key:
             String key = this.getKeyForCrawlURI(candidate);
             // Send
@@ -159,8 +360,7 @@ public class KafkaKeyedToCrawlFeed extends KafkaKeyedCrawlLogFeed {
             byte[] message = buildMessage(curi, candidate);
             ProducerRecord<String, byte[]> producerRecord = new ProducerRecord<String, byte[]>(
                     topic, key, message);
-            kafkaProducer().send(producerRecord, stats);
-            recentlySentCache.put(candidate.getURI(), true);
+            send(producerRecord);
         }
     }
 
@@ -195,6 +395,11 @@ public class KafkaKeyedToCrawlFeed extends KafkaKeyedCrawlLogFeed {
             Collection<String> sentURIs = new LinkedHashSet<String>();
             // Record what's been sent so then can be removed:
             Collection<CrawlURI> toRemove = new LinkedHashSet<CrawlURI>();
+            // Collect the outlinks by host, if sending them in batches:
+            Map<String, List<CrawlURI>> batches = null;
+            if (outlinksPerMessage > 1) {
+                batches = new LinkedHashMap<String, List<CrawlURI>>();
+            }
 
             // Iterate through the outlinks:
             for (CrawlURI candidate : outLinks) {
@@ -214,7 +419,7 @@ public class KafkaKeyedToCrawlFeed extends KafkaKeyedCrawlLogFeed {
                             if (this.emitInScopeOnly) {
                                 if (this.getScope().accepts(candidate)) {
                                     // Pass to Kafka queue:
-                                    sendToKafka(getTopic(), curi, candidate);
+                                    emitOutlink(curi, candidate, batches);
                                 } else {
                                     // (optionally) log discarded URLs for
                                     // analysis:
@@ -226,7 +431,7 @@ public class KafkaKeyedToCrawlFeed extends KafkaKeyedCrawlLogFeed {
                             } else {
                                 // Ignore scope rules and emit all
                                 // non-prerequisites:
-                                sendToKafka(getTopic(), curi, candidate);
+                                emitOutlink(curi, candidate, batches);
                             }
 
                             // Record this diverted URL string so it will only
@@ -255,6 +460,10 @@ public class KafkaKeyedToCrawlFeed extends KafkaKeyedCrawlLogFeed {
                 }
             }
 
+            if (batches != null) {
+                sendBatches(getTopic(), curi, batches);
+            }
+
             // And remove re-routed candidates from the candidates list:
             for (CrawlURI candidate : toRemove) {
                 outLinks.remove(candidate);
@@ -0,0 +1,57 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.postprocessor;
+
+/**
+ * Remembers which URLs a feed has emitted recently, so that the same URLs
+ * (e.g. navigation links that appear on every page of a site) are not sent
+ * over and over again.
+ *
+ * Implementations must be thread-safe. They may forget URLs early, which
+ * only means they are sent again. Approximate implementations may also
+ * occasionally report a URL as recently emitted when it was not, in which
+ * case it is not sent, so should report their estimated false-positive rate.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public interface RecentlyEmittedFilter {
+
+    /**
+     * Check whether a URL has been emitted recently, and if not, remember
+     * that it is being emitted now.
+     *
+     * @param uri
+     * @return true if the URL was emitted recently, and should be skipped
+     */
+    public boolean checkAndMark(String uri);
+
+    /**
+     *
+     * @param uri
+     * @return true if the URL was emitted recently
+     */
+    public boolean contains(String uri);
+
+    /**
+     * Remember that a URL has been emitted, e.g. once the Kafka transaction
+     * it was sent in has been committed.
+     *
+     * @param uri
+     */
+    public void mark(String uri);
+
+    /**
+     * Forget all the URLs.
+     */
+    public void clear();
+
+    /**
+     *
+     * @return the estimated probability that a URL that has not been emitted
+     *         recently will be reported as if it had been.
+     */
+    public double getFalsePositiveRate();
+
+}
@@ -0,0 +1,301 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.postprocessor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+/**
+ * A {@link RecentlyEmittedFilter} made of a ring of Bloom filters, each
+ * covering a slice of time. URLs are added to the current filter, and checked
+ * against all of them. When the current slice ends, the oldest filter is
+ * emptied and becomes the current one, so URLs are forgotten after between
+ * (generations - 1) / generations of the expiry time and the full expiry
+ * time.
+ *
+ * The filters live in a fixed memory budget, and are updated without locks
+ * (except while rotating, which empties the oldest filter). As with any Bloom
+ * filter, a URL may be reported as recently emitted when it was not, and
+ * will then not be sent. The chance of this depends on how full the filters
+ * are, and is estimated by {@link #getFalsePositiveRate()}. As a guide, with
+ * 5 hash functions, each 2MB of a generation holds around 1.7 million URLs at
+ * a 1% false-positive rate. So the default 64MB over 4 generations allows
+ * over 10 million URLs per generation, although the rate for the whole ring
+ * is roughly the sum of the rates of the generations.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class RotatingBloomRecentlyEmittedFilter
+        implements RecentlyEmittedFilter {
+
+    private static final Logger LOGGER = Logger
+            .getLogger(RotatingBloomRecentlyEmittedFilter.class.getName());
+
+    private static final HashFunction HASH_FUNC = Hashing.murmur3_128();
+
+    // AtomicLongArray can hold at most 2^31 - 1 longs, so the largest
+    // power-of-two generation is 2^30 longs:
+    private static final long MAX_BITS = 1L << 36;
+
+    /**
+     * One Bloom filter in the ring.
+     */
+    private static final class Generation {
+        private final AtomicLongArray words;
+        private final long mask;
+        private final LongAdder bitsSet = new LongAdder();
+
+        private Generation(long bits) {
+            this.words = new AtomicLongArray((int) (bits >>> 6));
+            this.mask = bits - 1;
+        }
+
+        private boolean mightContain(long h1, long h2, int k) {
+            for (int i = 0; i < k; i++) {
+                long bit = (h1 + i * h2) & mask;
+                if ((words.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void put(long h1, long h2, int k) {
+            for (int i = 0; i < k; i++) {
+                long bit = (h1 + i * h2) & mask;
+                int word = (int) (bit >>> 6);
+                long bitMask = 1L << bit;
+                long old;
+                do {
+                    old = words.get(word);
+                    if ((old & bitMask) != 0) {
+                        break;
+                    }
+                } while (!words.compareAndSet(word, old, old | bitMask));
+                if ((old & bitMask) == 0) {
+                    bitsSet.increment();
+                }
+            }
+        }
+
+        private void clear() {
+            for (int i = 0; i < words.length(); i++) {
+                words.set(i, 0);
+            }
+            bitsSet.reset();
+        }
+
+        private double fill() {
+            return (double) bitsSet.sum() / (mask + 1);
+        }
+    }
+
+    private long memoryBudget = 64L * 1024 * 1024;
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * The memory to use for all the generations together, in bytes. This is
+     * rounded down so each generation is a power of two in size.
+     *
+     * @param memoryBudget
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    private int generations = 4;
+
+    public int getGenerations() {
+        return generations;
+    }
+
+    /**
+     * How many Bloom filters to divide the expiry time between. More
+     * generations means URLs expire closer to the expiry time, but each
+     * lookup has more filters to check.
+     *
+     * @param generations
+     */
+    public void setGenerations(int generations) {
+        this.generations = generations;
+    }
+
+    private int expiry = 3600;
+
+    public int getExpiry() {
+        return expiry;
+    }
+
+    /**
+     * How long to remember each URL for, in seconds.
+     *
+     * @param expiry
+     */
+    public void setExpiry(int expiry) {
+        this.expiry = expiry;
+    }
+
+    private int hashFunctions = 5;
+
+    public int getHashFunctions() {
+        return hashFunctions;
+    }
+
+    public void setHashFunctions(int hashFunctions) {
+        this.hashFunctions = hashFunctions;
+    }
+
+    private volatile Generation[] ring;
+
+    private volatile int current = 0;
+
+    private final AtomicLong nextRotation = new AtomicLong();
+
+    private long sliceMillis;
+
+    private Generation[] getRing() {
+        if (ring == null) {
+            synchronized (this) {
+                if (ring == null) {
+                    if (generations < 2) {
+                        throw new IllegalArgumentException(
+                                "At least two generations are needed, not "
+                                        + generations);
+                    }
+                    long bits = Long.highestOneBit(
+                            Math.min(memoryBudget * 8 / generations,
+                                    MAX_BITS));
+                    if (bits < 64) {
+                        throw new IllegalArgumentException(
+                                "Memory budget too small: " + memoryBudget);
+                    }
+                    Generation[] newRing = new Generation[generations];
+                    for (int i = 0; i < generations; i++) {
+                        newRing[i] = new Generation(bits);
+                    }
+                    sliceMillis = Math.max(1, expiry * 1000L / generations);
+                    nextRotation.set(currentTimeMillis() + sliceMillis);
+                    LOGGER.info("Using " + generations + " Bloom filters of "
+                            + (bits / 8) + " bytes, rotating every "
+                            + sliceMillis + "ms");
+                    ring = newRing;
+                }
+            }
+        }
+        return ring;
+    }
+
+    /**
+     * The clock used to decide when to rotate, which tests can override.
+     *
+     * @return the current time in milliseconds
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    // Move on to the next generation(s), if the current slice has ended:
+    private void maybeRotate(Generation[] gens) {
+        long now = currentTimeMillis();
+        long due = nextRotation.get();
+        if (now < due) {
+            return;
+        }
+        long slices = (now - due) / sliceMillis + 1;
+        // Only one thread gets to rotate:
+        if (nextRotation.compareAndSet(due, due + slices * sliceMillis)) {
+            for (int i = 0; i < Math.min(slices, gens.length); i++) {
+                int next = (current + 1) % gens.length;
+                // Empty the oldest before it becomes the current one:
+                gens[next].clear();
+                current = next;
+            }
+        }
+    }
+
+    @Override
+    public boolean checkAndMark(String uri) {
+        Generation[] gens = getRing();
+        maybeRotate(gens);
+        long[] h = hash(uri);
+        if (mightContain(gens, h)) {
+            return true;
+        }
+        gens[current].put(h[0], h[1], hashFunctions);
+        return false;
+    }
+
+    @Override
+    public boolean contains(String uri) {
+        Generation[] gens = getRing();
+        maybeRotate(gens);
+        return mightContain(gens, hash(uri));
+    }
+
+    @Override
+    public void mark(String uri) {
+        Generation[] gens = getRing();
+        maybeRotate(gens);
+        long[] h = hash(uri);
+        gens[current].put(h[0], h[1], hashFunctions);
+    }
+
+    private boolean mightContain(Generation[] gens, long[] h) {
+        for (Generation generation : gens) {
+            if (generation.mightContain(h[0], h[1], hashFunctions)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static long[] hash(String uri) {
+        byte[] hash = HASH_FUNC.hashUnencodedChars(uri).asBytes();
+        // The second is odd, so the probes do not repeat within a power of
+        // two:
+        return new long[] { toLong(hash, 0), toLong(hash, 8) | 1 };
+    }
+
+    private static long toLong(byte[] b, int offset) {
+        long l = 0;
+        for (int i = 7; i >= 0; i--) {
+            l = (l << 8) | (b[offset + i] & 0xff);
+        }
+        return l;
+    }
+
+    @Override
+    public void clear() {
+        for (Generation generation : getRing()) {
+            generation.clear();
+        }
+    }
+
+    /**
+     * The chance that a new URL matches at least one generation, given how
+     * full each is.
+     */
+    @Override
+    public double getFalsePositiveRate() {
+        Generation[] gens = ring;
+        if (gens == null) {
+            return 0;
+        }
+        double none = 1.0;
+        for (Generation generation : gens) {
+            none *= 1.0 - Math.pow(generation.fill(), hashFunctions);
+        }
+        return 1.0 - none;
+    }
+
+}
@@ -0,0 +1,64 @@
+/**
+ * 
+ */
+package uk.bl.wap.crawler.reporting;
+
+import java.io.PrintWriter;
+
+import org.archive.crawler.reporting.Report;
+import org.archive.crawler.reporting.StatisticsTracker;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import uk.bl.wap.modules.deciderules.AccountableDecideRuleSequence;
+
+/**
+ * Reports the per-rule timings and hit-rates of the scope, when profiling is
+ * enabled.
+ * 
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class DecideRuleProfileReport extends Report {
+
+    protected AccountableDecideRuleSequence scope;
+
+    public AccountableDecideRuleSequence getScope() {
+        return scope;
+    }
+
+    @Autowired(required = false)
+    public void setScope(AccountableDecideRuleSequence scope) {
+        this.scope = scope;
+    }
+
+    private boolean suggestOrder = true;
+
+    public boolean isSuggestOrder() {
+        return suggestOrder;
+    }
+
+    public void setSuggestOrder(boolean suggestOrder) {
+        this.suggestOrder = suggestOrder;
+    }
+
+    /* (non-Javadoc)
+     * @see org.archive.crawler.reporting.Report#write(java.io.PrintWriter, org.archive.crawler.reporting.StatisticsTracker)
+     */
+    @Override
+    public void write(PrintWriter writer, StatisticsTracker stats) {
+        if (this.scope == null) {
+            writer.println("No AccountableDecideRuleSequence configured.");
+            return;
+        }
+        this.scope.reportTo(writer, suggestOrder);
+    }
+
+    /* (non-Javadoc)
+     * @see org.archive.crawler.reporting.Report#getFilename()
+     */
+    @Override
+    public String getFilename() {
+        return "decide-rule-profile-report.txt";
+    }
+
+}
@@ -3,6 +3,9 @@
  */
 package uk.bl.wap.modules.deciderules;
 
+import java.io.PrintWriter;
+import java.util.List;
+
 import org.archive.modules.CrawlURI;
 import org.archive.modules.deciderules.DecideResult;
 import org.archive.modules.deciderules.DecideRule;
@@ -19,6 +22,22 @@ public class AccountableDecideRuleSequence extends DecideRuleSequence {
      */
     private static final long serialVersionUID = -2720785110902201372L;
 
+    /**
+     * The outcome of (part of) the sequence.
+     */
+    protected static class Decision {
+        protected final DecideResult result;
+        protected final int ruleNumber;
+
+        protected Decision(DecideResult result, int ruleNumber) {
+            this.result = result;
+            this.ruleNumber = ruleNumber;
+        }
+    }
+
+    protected static final Decision NO_DECISION = new Decision(
+            DecideResult.NONE, -1);
+
     private boolean recordDecidingRule = false;
 
     public boolean isRecordDecidingRule() {
@@ -29,12 +48,132 @@ public class AccountableDecideRuleSequence extends DecideRuleSequence {
         this.recordDecidingRule = recordDecidingRule;
     }
 
+    private boolean profile = false;
+
+    public boolean isProfile() {
+        return profile;
+    }
+
+    /**
+     * If true, record how long each rule takes, how often it is skipped, and
+     * how often it matches or makes the final decision.
+     * 
+     * @see DecideRuleProfile
+     * @param profile
+     */
+    public void setProfile(boolean profile) {
+        this.profile = profile;
+    }
+
+    private String profileName = "scope";
+
+    public String getProfileName() {
+        return profileName;
+    }
+
+    /**
+     * The name to use for this sequence in the profiling metrics.
+     * 
+     * @param profileName
+     */
+    public void setProfileName(String profileName) {
+        this.profileName = profileName;
+    }
+
+    private transient volatile DecideRuleProfile ruleProfile;
+
+    /**
+     * 
+     * @return the rule statistics, or null if profiling is not enabled.
+     */
+    public DecideRuleProfile getRuleProfile() {
+        if (profile && ruleProfile == null) {
+            synchronized (this) {
+                if (ruleProfile == null) {
+                    ruleProfile = new DecideRuleProfile(profileName);
+                }
+            }
+        }
+        return ruleProfile;
+    }
+
+    /**
+     * Write out the rule statistics, if profiling is enabled.
+     * 
+     * @param writer
+     * @param suggestOrder
+     *            whether to also suggest a cheaper ordering of the rules
+     */
+    public void reportTo(PrintWriter writer, boolean suggestOrder) {
+        DecideRuleProfile ruleProfile = getRuleProfile();
+        if (ruleProfile == null) {
+            writer.println("Decide rule profiling is not enabled for "
+                    + profileName + ".");
+            return;
+        }
+        writer.println("Decide rule profile for " + profileName + ":");
+        writer.println();
+        ruleProfile.reportTo(writer, getRules(), suggestOrder);
+    }
+
+    @Override
+    public DecideResult innerDecide(CrawlURI uri) {
+        if (!profile) {
+            return super.innerDecide(uri);
+        }
+        List<DecideRule> rules = getRules();
+        int max = (rules == null) ? 0 : rules.size();
+        Decision decision = evaluate(uri, rules, 0, max, NO_DECISION);
+        decisionMade(uri,
+                decision.ruleNumber < 0 ? null
+                        : rules.get(decision.ruleNumber),
+                decision.ruleNumber, decision.result);
+        return decision.result;
+    }
+
+    /**
+     * Run part of the sequence, starting from an earlier decision. This works
+     * the same way as DecideRuleSequence, skipping rules that cannot change
+     * the current decision.
+     */
+    protected Decision evaluate(CrawlURI uri, List<DecideRule> rules,
+            int from, int to, Decision decision) {
+        DecideRuleProfile ruleProfile = profile ? getRuleProfile() : null;
+        DecideResult result = decision.result;
+        int ruleNumber = decision.ruleNumber;
+        for (int i = from; i < to; i++) {
+            DecideRule rule = rules.get(i);
+            if (rule.onlyDecision(uri) != result) {
+                DecideResult r;
+                if (ruleProfile != null) {
+                    long start = System.nanoTime();
+                    r = rule.decisionFor(uri);
+                    ruleProfile.evaluated(i, rule, System.nanoTime() - start,
+                            r);
+                } else {
+                    r = rule.decisionFor(uri);
+                }
+                if (r != DecideResult.NONE) {
+                    result = r;
+                    ruleNumber = i;
+                }
+            } else if (ruleProfile != null) {
+                ruleProfile.skipped(i, rule);
+            }
+        }
+        return new Decision(result, ruleNumber);
+    }
+
     @Override
     protected void decisionMade(CrawlURI uri, DecideRule decisiveRule,
             int decisiveRuleNumber, DecideResult result) {
         // Do the usual logging:
         super.decisionMade(uri, decisiveRule, decisiveRuleNumber, result);
 
+        if (profile && decisiveRule != null) {
+            getRuleProfile().decisive(decisiveRuleNumber, decisiveRule);
+        }
+
         // Also add the decision to the extra info:
         if (recordDecidingRule) {
             uri.getExtraInfo().put("scopeDecision",
@@ -0,0 +1,262 @@
+/**
+ *
+ */
+package uk.bl.wap.modules.deciderules;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.archive.modules.deciderules.DecideResult;
+import org.archive.modules.deciderules.DecideRule;
+import org.archive.modules.deciderules.PredicatedDecideRule;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Histogram;
+
+/**
+ * Per-rule statistics for a decide rule sequence: how often each rule is
+ * evaluated or skipped, how long it takes, how often it returns a decision,
+ * and how often it makes the final decision.
+ *
+ * The totals are kept in {@link LongAdder}s, as rules are evaluated from all
+ * the ToeThreads at once, and the timings are also exported to Prometheus,
+ * labelled by sequence and rule.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class DecideRuleProfile {
+
+    // Rule evaluation buckets, in seconds, from 1 microsecond to 1 second:
+    private static final double[] LATENCY_BUCKETS = { 0.000001, 0.000005,
+            0.00001, 0.00005, 0.0001, 0.0005, 0.001, 0.005, 0.01, 0.05, 0.1,
+            0.5, 1 };
+
+    private static final Histogram ruleLatency = Histogram.build()
+            .name("heritrix3_decide_rule_seconds")
+            .labelNames("sequence", "rule").buckets(LATENCY_BUCKETS)
+            .help("Time taken to evaluate each decide rule.").register();
+
+    private static final Counter ruleOutcomes = Counter.build()
+            .name("heritrix3_decide_rule_outcomes_total")
+            .labelNames("sequence", "rule", "outcome")
+            .help("Decide rule outcomes (skipped, matched or decisive).")
+            .register();
+
+    /**
+     * The statistics for one rule.
+     */
+    protected static class RuleStats {
+        private final Class<?> ruleClass;
+        private final String label;
+        private final LongAdder invocations = new LongAdder();
+        private final LongAdder skipped = new LongAdder();
+        private final LongAdder matched = new LongAdder();
+        private final LongAdder decisive = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final Histogram.Child latency;
+        private final Counter.Child skippedCounter;
+        private final Counter.Child matchedCounter;
+        private final Counter.Child decisiveCounter;
+
+        private RuleStats(String sequence, int ruleNumber, DecideRule rule) {
+            this.ruleClass = rule.getClass();
+            String name = ruleClass.getSimpleName();
+            if (name.isEmpty()) {
+                name = ruleClass.getName();
+            }
+            this.label = String.format("%02d-%s", ruleNumber, name);
+            this.latency = ruleLatency.labels(sequence, label);
+            this.skippedCounter = ruleOutcomes.labels(sequence, label,
+                    "skipped");
+            this.matchedCounter = ruleOutcomes.labels(sequence, label,
+                    "matched");
+            this.decisiveCounter = ruleOutcomes.labels(sequence, label,
+                    "decisive");
+        }
+
+        private double meanNanos() {
+            long n = invocations.sum();
+            return n == 0 ? 0 : (double) nanos.sum() / n;
+        }
+
+        private double matchRate() {
+            long n = invocations.sum();
+            return n == 0 ? 0 : (double) matched.sum() / n;
+        }
+    }
+
+    private final String sequence;
+
+    private volatile RuleStats[] stats = new RuleStats[0];
+
+    public DecideRuleProfile(String sequence) {
+        this.sequence = sequence;
+    }
+
+    private RuleStats statsFor(int ruleNumber, DecideRule rule) {
+        RuleStats[] current = stats;
+        if (ruleNumber < current.length) {
+            RuleStats s = current[ruleNumber];
+            if (s != null && s.ruleClass == rule.getClass()) {
+                return s;
+            }
+        }
+        synchronized (this) {
+            current = stats;
+            if (ruleNumber >= current.length) {
+                RuleStats[] grown = new RuleStats[ruleNumber + 1];
+                System.arraycopy(current, 0, grown, 0, current.length);
+                current = grown;
+            }
+            RuleStats s = current[ruleNumber];
+            // The rules may have been changed, e.g. via the scripting console:
+            if (s == null || s.ruleClass != rule.getClass()) {
+                s = new RuleStats(sequence, ruleNumber, rule);
+                current[ruleNumber] = s;
+            }
+            stats = current;
+            return s;
+        }
+    }
+
+    /**
+     * Record that a rule was evaluated.
+     */
+    public void evaluated(int ruleNumber, DecideRule rule, long nanos,
+            DecideResult result) {
+        RuleStats s = statsFor(ruleNumber, rule);
+        s.invocations.increment();
+        s.nanos.add(nanos);
+        s.latency.observe(nanos / 1.0e9);
+        if (result != DecideResult.NONE) {
+            s.matched.increment();
+            s.matchedCounter.inc();
+        }
+    }
+
+    /**
+     * Record that a rule was skipped, as it could not change the decision.
+     */
+    public void skipped(int ruleNumber, DecideRule rule) {
+        RuleStats s = statsFor(ruleNumber, rule);
+        s.skipped.increment();
+        s.skippedCounter.inc();
+    }
+
+    /**
+     * Record that a rule made the final decision.
+     */
+    public void decisive(int ruleNumber, DecideRule rule) {
+        RuleStats s = statsFor(ruleNumber, rule);
+        s.decisive.increment();
+        s.decisiveCounter.inc();
+    }
+
+    // The only decision a rule can make, or null if not known:
+    private static DecideResult fixedDecision(DecideRule rule) {
+        if (rule instanceof PredicatedDecideRule) {
+            return ((PredicatedDecideRule) rule).getDecision();
+        }
+        return null;
+    }
+
+    /**
+     * Suggest a cheaper order for the rules. As the last decision wins, only
+     * neighbouring rules that make the same decision can be swapped without
+     * changing the outcome. Within each run of such rules, once one matches
+     * the rest are skipped, so the rules are sorted by the expected cost of
+     * finding a match (mean time divided by match rate). Rules that have not
+     * been profiled yet are put last in their run.
+     *
+     * @param rules
+     * @return the rule numbers, in the suggested order.
+     */
+    public List<Integer> suggestOrder(List<DecideRule> rules) {
+        List<Integer> order = new ArrayList<Integer>();
+        int i = 0;
+        while (i < rules.size()) {
+            DecideResult decision = fixedDecision(rules.get(i));
+            int j = i + 1;
+            if (decision != null) {
+                while (j < rules.size()
+                        && decision.equals(fixedDecision(rules.get(j)))) {
+                    j++;
+                }
+            }
+            List<Integer> run = new ArrayList<Integer>();
+            for (int k = i; k < j; k++) {
+                run.add(k);
+            }
+            final RuleStats[] current = stats;
+            Collections.sort(run, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Double.compare(expectedCost(current, a),
+                            expectedCost(current, b));
+                }
+            });
+            order.addAll(run);
+            i = j;
+        }
+        return order;
+    }
+
+    private static double expectedCost(RuleStats[] current, int ruleNumber) {
+        if (ruleNumber >= current.length || current[ruleNumber] == null
+                || current[ruleNumber].invocations.sum() == 0) {
+            // No data, so push it to the end of its run (keeping the order
+            // of any others without data, as the sort is stable):
+            return Double.MAX_VALUE;
+        }
+        RuleStats s = current[ruleNumber];
+        return s.meanNanos() / Math.max(s.matchRate(), 0.0001);
+    }
+
+    /**
+     * Write out the statistics for each rule, and optionally a suggested
+     * ordering.
+     *
+     * @param writer
+     * @param rules
+     * @param suggestOrder
+     */
+    public void reportTo(PrintWriter writer, List<DecideRule> rules,
+            boolean suggestOrder) {
+        RuleStats[] current = stats;
+        long totalNanos = 0;
+        for (RuleStats s : current) {
+            if (s != null) {
+                totalNanos += s.nanos.sum();
+            }
+        }
+        writer.println(String.format("%-40s %12s %12s %12s %12s %10s %7s",
+                "rule", "evaluated", "skipped", "matched", "decisive",
+                "mean(us)", "time%"));
+        for (int i = 0; i < rules.size(); i++) {
+            RuleStats s = statsFor(i, rules.get(i));
+            writer.println(String.format(
+                    "%-40s %12d %12d %12d %12d %10.2f %6.1f%%", s.label,
+                    s.invocations.sum(), s.skipped.sum(), s.matched.sum(),
+                    s.decisive.sum(), s.meanNanos() / 1000.0,
+                    totalNanos == 0 ? 0.0
+                            : 100.0 * s.nanos.sum() / totalNanos));
+        }
+        if (suggestOrder) {
+            List<Integer> order = suggestOrder(rules);
+            writer.println();
+            writer.println(
+                    "Suggested order (only swaps neighbouring rules with the same decision):");
+            for (int i = 0; i < order.size(); i++) {
+                int ruleNumber = order.get(i);
+                writer.println("  " + statsFor(ruleNumber, rules.get(ruleNumber)).label
+                        + (ruleNumber != i ? "  (moved)" : ""));
+            }
+        }
+    }
+
+}
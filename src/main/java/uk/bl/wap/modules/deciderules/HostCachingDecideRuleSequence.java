@@ -0,0 +1,253 @@
+/**
+ *
+ */
+package uk.bl.wap.modules.deciderules;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Logger;
+
+import org.apache.commons.httpclient.URIException;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.deciderules.DecideResult;
+import org.archive.modules.deciderules.DecideRule;
+import org.archive.modules.deciderules.surt.SurtPrefixedDecideRule;
+import org.archive.net.UURI;
+import org.springframework.context.ApplicationListener;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A decide rule sequence that remembers the outcome of the first
+ * hostRuleCount rules for each host, so only the remaining rules are evaluated
+ * for every URI.
+ *
+ * The rules in that leading part of the sequence must only depend on the
+ * scheme and authority of the URI (i.e. the SURT authority), and the sheets
+ * that apply to them must be associated with host (or broader) SURT prefixes.
+ * For example, a SurtPrefixedDecideRule only qualifies if all its prefixes
+ * are host-level prefixes. As the last decision wins, rules that can only
+ * ACCEPT can be moved ahead of other ACCEPT rules without changing the
+ * outcome. A SurtPrefixedDecideRule that has alsoCheckVia enabled for the URI
+ * (e.g. via a sheet) is detected, and the cache is bypassed.
+ *
+ * Cached decisions are dropped when a {@link ScopeChangedEvent} is published
+ * (just those for the affected hosts, if the event names them), and also
+ * expire after cacheExpiry seconds in case of changes made by other means
+ * (e.g. via the scripting console).
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class HostCachingDecideRuleSequence extends
+        AccountableDecideRuleSequence implements
+        ApplicationListener<ScopeChangedEvent> {
+
+    private static final long serialVersionUID = 3894309845094275810L;
+
+    private static final Logger LOGGER = Logger
+            .getLogger(HostCachingDecideRuleSequence.class.getName());
+
+    private int hostRuleCount = 0;
+
+    public int getHostRuleCount() {
+        return hostRuleCount;
+    }
+
+    /**
+     * The number of rules at the start of the sequence whose outcome only
+     * depends on the host. Zero (the default) disables the cache.
+     *
+     * @param hostRuleCount
+     */
+    public void setHostRuleCount(int hostRuleCount) {
+        this.hostRuleCount = hostRuleCount;
+    }
+
+    private long cacheSize = 100000;
+
+    public long getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * The maximum number of hosts to remember decisions for.
+     *
+     * @param cacheSize
+     */
+    public void setCacheSize(long cacheSize) {
+        this.cacheSize = cacheSize;
+    }
+
+    private int cacheExpiry = 600;
+
+    public int getCacheExpiry() {
+        return cacheExpiry;
+    }
+
+    /**
+     * How long to remember each decision for, in seconds.
+     *
+     * @param cacheExpiry
+     */
+    public void setCacheExpiry(int cacheExpiry) {
+        this.cacheExpiry = cacheExpiry;
+    }
+
+    private transient volatile Cache<String, Decision> cache;
+
+    private final LongAdder hits = new LongAdder();
+
+    private final LongAdder misses = new LongAdder();
+
+    // Bumped before cached decisions are dropped, so a decision made against
+    // the old scope is not kept:
+    private final AtomicLong generation = new AtomicLong();
+
+    private Cache<String, Decision> getCache() {
+        if (cache == null) {
+            synchronized (this) {
+                if (cache == null) {
+                    cache = CacheBuilder.newBuilder().maximumSize(cacheSize)
+                            .expireAfterWrite(cacheExpiry, TimeUnit.SECONDS)
+                            .concurrencyLevel(16).build();
+                }
+            }
+        }
+        return cache;
+    }
+
+    @Override
+    public DecideResult innerDecide(CrawlURI uri) {
+        List<DecideRule> rules = getRules();
+        int max = (rules == null) ? 0 : rules.size();
+        int prefix = Math.min(hostRuleCount, max);
+        String key = null;
+        if (prefix > 0 && isCacheable(uri, rules, prefix)) {
+            key = hostKey(uri);
+        }
+        if (key == null) {
+            return super.innerDecide(uri);
+        }
+
+        Decision hostDecision = getCache().getIfPresent(key);
+        if (hostDecision == null) {
+            long before = generation.get();
+            hostDecision = evaluate(uri, rules, 0, prefix, NO_DECISION);
+            getCache().put(key, hostDecision);
+            if (generation.get() != before) {
+                // The scope changed while deciding, so this may be stale:
+                getCache().invalidate(key);
+            }
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+
+        // Carry on with the rules that depend on the rest of the URI:
+        Decision decision = evaluate(uri, rules, prefix, max, hostDecision);
+        decisionMade(uri,
+                decision.ruleNumber < 0 ? null
+                        : rules.get(decision.ruleNumber),
+                decision.ruleNumber, decision.result);
+        return decision.result;
+    }
+
+    /**
+     * Checks for host-level rules that have been configured (e.g. by a sheet)
+     * to depend on more than the host.
+     */
+    protected boolean isCacheable(CrawlURI uri, List<DecideRule> rules,
+            int prefix) {
+        for (int i = 0; i < prefix; i++) {
+            DecideRule rule = rules.get(i);
+            if (rule instanceof SurtPrefixedDecideRule
+                    && ((SurtPrefixedDecideRule) rule).getAlsoCheckVia()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The cache key, i.e. the scheme and authority. This corresponds
+     * one-to-one with the SURT authority, but is cheaper to make.
+     *
+     * @param uri
+     * @return the key, or null if the URI has no authority (e.g. dns:)
+     */
+    protected static String hostKey(CrawlURI uri) {
+        UURI uuri = uri.getUURI();
+        try {
+            String authority = uuri.getAuthorityMinusUserinfo();
+            if (authority == null) {
+                return null;
+            }
+            return uuri.getScheme() + "://" + authority;
+        } catch (URIException e) {
+            return null;
+        }
+    }
+
+    /**
+     * The cache keys for the host of the given URI, over both http and https,
+     * as SURT prefixes treat them the same. For use in a
+     * {@link ScopeChangedEvent}.
+     *
+     * @param uuri
+     * @return the keys, or null if the URI has no authority (so any host
+     *         should be assumed)
+     */
+    public static List<String> hostKeys(UURI uuri) {
+        try {
+            String authority = uuri.getAuthorityMinusUserinfo();
+            if (authority == null) {
+                return null;
+            }
+            return Arrays.asList("http://" + authority,
+                    "https://" + authority);
+        } catch (URIException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Forget all the cached decisions.
+     */
+    public void invalidate() {
+        generation.incrementAndGet();
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    @Override
+    public void onApplicationEvent(ScopeChangedEvent event) {
+        if (event.getHostKeys() != null) {
+            LOGGER.fine("Scope changed (" + event.getReason()
+                    + "), clearing cached decisions for "
+                    + event.getHostKeys());
+            generation.incrementAndGet();
+            if (cache != null) {
+                cache.invalidateAll(event.getHostKeys());
+            }
+            return;
+        }
+        LOGGER.info("Scope changed (" + event.getReason()
+                + "), clearing cached host decisions.");
+        invalidate();
+    }
+
+    public long getCacheHits() {
+        return hits.sum();
+    }
+
+    public long getCacheMisses() {
+        return misses.sum();
+    }
+
+}
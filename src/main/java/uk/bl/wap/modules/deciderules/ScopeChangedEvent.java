@@ -0,0 +1,69 @@
+/**
+ *
+ */
+package uk.bl.wap.modules.deciderules;
+
+import java.util.Collection;
+
+import org.springframework.context.ApplicationEvent;
+
+/**
+ * ApplicationEvent published when something the scope depends on has changed,
+ * e.g. a SURT file has been reloaded or the sheets associated with a SURT
+ * prefix have been altered. Components that cache scope decisions (like the
+ * {@link HostCachingDecideRuleSequence}) should discard them. If the change
+ * only affects certain hosts, the event says which.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class ScopeChangedEvent extends ApplicationEvent {
+
+    private static final long serialVersionUID = -3287452049726412395L;
+
+    private final String reason;
+
+    private final Collection<String> hostKeys;
+
+    /**
+     *
+     * @param source
+     *            the component that made the change
+     * @param reason
+     *            a short description of the change, for logging
+     */
+    public ScopeChangedEvent(Object source, String reason) {
+        this(source, reason, null);
+    }
+
+    /**
+     *
+     * @param source
+     *            the component that made the change
+     * @param reason
+     *            a short description of the change, for logging
+     * @param hostKeys
+     *            the hosts affected, as made by
+     *            {@link HostCachingDecideRuleSequence#hostKeys(org.archive.net.UURI)},
+     *            or null if the change may affect any host
+     */
+    public ScopeChangedEvent(Object source, String reason,
+            Collection<String> hostKeys) {
+        super(source);
+        this.reason = reason;
+        this.hostKeys = hostKeys;
+    }
+
+    public String getReason() {
+        return reason;
+    }
+
+    /**
+     *
+     * @return the hosts affected, or null if any host may be
+     */
+    public Collection<String> getHostKeys() {
+        return hostKeys;
+    }
+
+}
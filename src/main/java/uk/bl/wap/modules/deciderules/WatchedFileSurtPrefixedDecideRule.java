@@ -17,20 +17,29 @@ import org.apache.commons.io.IOUtils;
 import org.archive.io.ReadSource;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.deciderules.surt.SurtPrefixedDecideRule;
+import org.archive.net.UURI;
 import org.archive.spring.ConfigFile;
 import org.archive.spring.ConfigPathConfigurer;
 import org.archive.util.SurtPrefixSet;
+import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.ApplicationContextAware;
 
+import uk.bl.wap.util.SurtPrefixTrie;
 import uk.bl.wap.util.WatchedFileSource;
 
 /**
+ * A SurtPrefixedDecideRule that reloads the SURT file when it changes, and
+ * matches URIs against an immutable {@link SurtPrefixTrie} of the prefixes,
+ * which is swapped into place on reload.
+ * 
  * @author Andrew Jackson <Andrew.Jackson@bl.uk>
  *
  */
 public class WatchedFileSurtPrefixedDecideRule extends SurtPrefixedDecideRule
-        implements InitializingBean {
+        implements InitializingBean, ApplicationContextAware {
 
     private static final Logger logger = Logger
             .getLogger(WatchedFileSurtPrefixedDecideRule.class.getName());
@@ -75,9 +84,13 @@ public class WatchedFileSurtPrefixedDecideRule extends SurtPrefixedDecideRule
                             "No SURTs found! Assuming this is in error - not modifying current SURTs");
                 } else {
                     // And swap into place:
-                    synchronized (surtPrefixes) {
+                    SurtPrefixTrie<String> newTrie = SurtPrefixTrie
+                            .ofPrefixes(newSurtPrefixes);
+                    synchronized (WatchedFileSurtPrefixedDecideRule.this) {
                         surtPrefixes = newSurtPrefixes;
+                        surtTrie = newTrie;
                     }
+                    scopeChanged("reloaded " + getSurtsSource());
                 }
                 // Log current surt prefixes (for debugging):
                 for (String s : surtPrefixes) {
@@ -88,8 +101,71 @@ public class WatchedFileSurtPrefixedDecideRule extends SurtPrefixedDecideRule
 
     }
 
+    private transient volatile SurtPrefixTrie<String> surtTrie;
+
     private WatchedSurtFile watchSurtFile;
     private ConfigPathConfigurer configPathConfigurer;
+    private transient ApplicationContext appCtx;
+
+    @Override
+    public void setApplicationContext(ApplicationContext appCtx)
+            throws BeansException {
+        this.appCtx = appCtx;
+    }
+
+    /**
+     * Let anything caching scope decisions know the SURTs have changed.
+     */
+    private void scopeChanged(String reason) {
+        if (appCtx != null) {
+            try {
+                appCtx.publishEvent(new ScopeChangedEvent(this, reason));
+            } catch (IllegalStateException e) {
+                // The context is still starting up, so nothing is cached yet.
+                logger.finest("Could not publish scope change: " + e);
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return the current trie of SURT prefixes
+     */
+    protected SurtPrefixTrie<String> getSurtTrie() {
+        SurtPrefixTrie<String> trie = surtTrie;
+        if (trie == null) {
+            synchronized (this) {
+                if (surtTrie == null) {
+                    surtTrie = SurtPrefixTrie.ofPrefixes(getPrefixes());
+                }
+                trie = surtTrie;
+            }
+        }
+        return trie;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see org.archive.modules.deciderules.surt.SurtPrefixedDecideRule#
+     * evaluate(org.archive.modules.CrawlURI)
+     */
+    @Override
+    protected boolean evaluate(CrawlURI uri) {
+        SurtPrefixTrie<String> trie = getSurtTrie();
+        if (getAlsoCheckVia() && matches(trie, uri.getVia())) {
+            return true;
+        }
+        return matches(trie, uri.getUURI());
+    }
+
+    private static boolean matches(SurtPrefixTrie<String> trie, UURI uuri) {
+        if (uuri == null) {
+            return false;
+        }
+        String candidateSurt = SurtPrefixSet.getCandidateSurt(uuri);
+        return candidateSurt != null && trie.containsPrefixOf(candidateSurt);
+    }
 
     public WatchedFileSurtPrefixedDecideRule() {
         this.watchSurtFile = new WatchedSurtFile();
@@ -156,9 +232,18 @@ public class WatchedFileSurtPrefixedDecideRule extends SurtPrefixedDecideRule
         // If enabled, add new seeds to the SURT scope:
         if(getSeedsAsSurtPrefixes()) {
             String prefix = prefixFrom(curi.getURI());
-            boolean added = surtPrefixes.add(prefix);
+            boolean added;
+            synchronized (this) {
+                added = surtPrefixes.add(prefix);
+                if (added) {
+                    surtTrie = getSurtTrie().with(prefix, prefix);
+                }
+            }
             // If this is new, append it to the surts file:
             if (added) {
+                // The prefix usually covers subdomains too (and may be below
+                // host level), so forget every cached decision:
+                scopeChanged("added seed prefix " + prefix);
                 // One thread at a time, please:
                 synchronized (this) {
                     // Append, using a FileLock to attempt to ensure
@@ -20,19 +20,19 @@
 package uk.bl.wap.scoper;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
@@ -43,23 +43,25 @@ import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.AuthorizationException;
+import org.apache.kafka.common.errors.OutOfOrderSequenceException;
+import org.apache.kafka.common.errors.ProducerFencedException;
 import org.apache.kafka.common.errors.WakeupException;
 import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.ByteArraySerializer;
 import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
 import org.archive.crawler.spring.SheetOverlaysManager;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.SchedulingConstants;
 import org.archive.modules.deciderules.DecideResult;
 import org.archive.modules.deciderules.DecideRuleSequence;
 import org.archive.modules.extractor.Hop;
-import org.archive.modules.extractor.LinkContext;
-import org.archive.net.UURI;
-import org.archive.net.UURIFactory;
 import org.archive.spring.KeyedProperties;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationContext;
@@ -67,10 +69,15 @@ import org.springframework.context.ApplicationContextAware;
 import org.springframework.context.Lifecycle;
 
 import io.prometheus.client.Counter;
-import io.prometheus.client.Gauge;
+import uk.bl.wap.crawler.frontier.CrawlRequest;
+import uk.bl.wap.crawler.frontier.CrawlRequestDecoder;
+import uk.bl.wap.crawler.frontier.KafkaIngestMetrics;
+import uk.bl.wap.crawler.frontier.PartitionAssignmentStrategy;
+import uk.bl.wap.crawler.frontier.RangePartitionAssignment;
+import uk.bl.wap.crawler.h3.spring.SurtTrieSheetOverlaysManager;
+import uk.bl.wap.crawler.postprocessor.KafkaKeyedCrawlLogFeed;
 import uk.bl.wap.crawler.postprocessor.KafkaKeyedDiscardedFeed;
 import uk.bl.wap.crawler.postprocessor.KafkaKeyedToCrawlFeed;
-import uk.bl.wap.modules.deciderules.RecentlySeenDecideRule;
 
 /**
  * Based on
@@ -200,6 +207,18 @@ public class KafkaStreamHandler
         this.consumerId = consumerId;
     }
 
+    // How the partitions are shared out among the consumers:
+    private PartitionAssignmentStrategy partitionAssignmentStrategy = new RangePartitionAssignment();
+
+    public PartitionAssignmentStrategy getPartitionAssignmentStrategy() {
+        return partitionAssignmentStrategy;
+    }
+
+    public void setPartitionAssignmentStrategy(
+            PartitionAssignmentStrategy partitionAssignmentStrategy) {
+        this.partitionAssignmentStrategy = partitionAssignmentStrategy;
+    }
+
     private boolean seekToBeginning = true;
 
     public boolean isSeekToBeginning() {
@@ -230,6 +249,63 @@ public class KafkaStreamHandler
         this.numMessageHandlerThreads = numMessageHandlerThreads;
     }
 
+    private int messageHandlerQueueSize = 1000;
+
+    public int getMessageHandlerQueueSize() {
+        return messageHandlerQueueSize;
+    }
+
+    /**
+     * The maximum number of crawl requests that can be waiting for a free
+     * message handler thread. When this is full, the consumer thread handles
+     * the request itself, which holds back further polling.
+     * 
+     * @param messageHandlerQueueSize
+     */
+    public void setMessageHandlerQueueSize(int messageHandlerQueueSize) {
+        this.messageHandlerQueueSize = messageHandlerQueueSize;
+    }
+
+    private int numConsumers = 1;
+
+    public int getNumConsumers() {
+        return numConsumers;
+    }
+
+    /**
+     * The number of Kafka consumers to run in this process. The partitions
+     * assigned to this consumerId are shared out between them, and they all
+     * feed the same pool of message handlers.
+     * 
+     * @param numConsumers
+     */
+    public void setNumConsumers(int numConsumers) {
+        this.numConsumers = numConsumers;
+    }
+
+    private boolean transactional = false;
+
+    public boolean isTransactional() {
+        return transactional;
+    }
+
+    /**
+     * If true, each batch of crawl requests is scoped inside a Kafka
+     * transaction. The in-scope and discarded URLs are sent via a
+     * transactional producer owned by each consumer, and the consumed offsets
+     * are committed as part of the same transaction, so after a crash or
+     * restart every request has been passed on exactly once. Downstream
+     * consumers should use isolation.level=read_committed.
+     * 
+     * The transactional.id is made from the groupId, consumerId and the
+     * number of the local consumer, so must stay the same across restarts.
+     * 
+     * @param transactional
+     */
+    public void setTransactional(boolean transactional) {
+        this.transactional = transactional;
+    }
+
     protected boolean isRunning = false; 
 
     @Override
@@ -241,27 +317,95 @@ public class KafkaStreamHandler
             .name("crawl_messages_total").labelNames("topic", "outcome")
             .help("Total crawl messages handled.").register();
 
-    // For reporting on last-known position on different partitions:
+    private static final Counter scopedCounter = Counter.build()
+            .name("kafka_scoper_messages_total")
+            .labelNames("topic", "outcome")
+            .help("Crawl messages scoped, by outcome (accepted, rejected, ignored or error).")
+            .register();
 
-    private static final Gauge partitionOffsets = Gauge.build()
-            .name("kafka_partition_offsets").labelNames("topic", "partition")
-            .help("Total crawl messages handled.").register();
+    private static final Counter transactionCounter = Counter.build()
+            .name("kafka_scoper_transactions_total")
+            .labelNames("topic", "outcome")
+            .help("Scoping transactions, by outcome (committed, aborted or fenced).")
+            .register();
+
+    // Totals, lag and latencies (including the partition offsets gauge, which
+    // is shared with the KafkaUrlReceiver):
+    private transient KafkaIngestMetrics ingestMetrics;
+
+    public KafkaIngestMetrics getIngestMetrics() {
+        return ingestMetrics;
+    }
 
     private Integer pollTimeout = 1000;
 
     private transient Lock lock = new ReentrantLock(true);
 
+    // How long to wait for a batch of messages to be handled:
+    private static final long BATCH_TIMEOUT_MS = 10 * 60 * 1000;
+
+    // Kafka transactions must outlast the batch (but by default brokers allow
+    // at most 15 minutes):
+    private static final long TRANSACTION_TIMEOUT_MS = BATCH_TIMEOUT_MS
+            + 60 * 1000;
+
+    // How long to wait for the consumers on shutdown, which must be longer
+    // than they wait for a batch, so they are not interrupted mid-batch:
+    private static final long CONSUMER_SHUTDOWN_TIMEOUT_MS = BATCH_TIMEOUT_MS
+            + 60 * 1000;
+
+    // How many local consumers have still to rewind, if seeking to the
+    // beginning:
+    private transient AtomicInteger rewindsPending;
+
+    /*
+     * Only seek to the beginning once in any job, but not until every local
+     * consumer has done so:
+     */
+    private void rewound() {
+        if (rewindsPending.decrementAndGet() == 0) {
+            seekToBeginning = false;
+        }
+    }
+
     public class KafkaConsumerRunner implements Runnable {
         private final AtomicBoolean closed = new AtomicBoolean(false);
         private final KafkaConsumer<String, byte[]> consumer;
 
-        public KafkaConsumerRunner(boolean seekToBeginning) {
-            logger.info("Setting up KafkaConsumerRunner...");
+        // Which of the local consumers this is (0 to numConsumers-1):
+        private final int index;
+
+        // Whether this consumer should rewind its partitions when it starts:
+        private final boolean rewind;
+
+        // The transactional producer, if in transactional mode:
+        private final KafkaProducer<String, byte[]> producer;
+
+        // The URLs emitted in the open transaction, if in transactional mode.
+        // A new one is used for each transaction, so that handlers left over
+        // from a batch that timed out cannot send as part of the next one:
+        private KafkaKeyedCrawlLogFeed.PendingEmitted pendingEmitted;
+
+        // Whether a transaction has been begun but not committed or aborted:
+        private volatile boolean transactionOpen = false;
+
+        public KafkaConsumerRunner(boolean seekToBeginning, int index) {
+            logger.info("Setting up KafkaConsumerRunner " + index + "...");
+            this.index = index;
+            this.rewind = seekToBeginning;
             Properties props = new Properties();
             props.put("bootstrap.servers", getBootstrapServers());
             props.put("group.id", getGroupId());
-            props.put("enable.auto.commit", "true");
-            props.put("auto.commit.interval.ms", "1000");
+            props.put("client.id", getGroupId() + "-" + getConsumerId() + "-"
+                    + index);
+            if (transactional) {
+                // Offsets are committed as part of each transaction:
+                props.put("enable.auto.commit", "false");
+                props.put("isolation.level", "read_committed");
+            } else {
+                props.put("enable.auto.commit", "true");
+                props.put("auto.commit.interval.ms", "1000");
+            }
             props.put("session.timeout.ms", "60000");
             props.put(ConsumerConfig.MAX_PARTITION_FETCH_BYTES_CONFIG,
                     256 * 1024); // Default is 50MB
@@ -271,6 +415,26 @@ public class KafkaStreamHandler
             props.put("value.deserializer",
                     ByteArrayDeserializer.class.getName());
             consumer = new KafkaConsumer<String, byte[]>(props);
+
+            if (transactional) {
+                Properties producerProps = new Properties();
+                producerProps.put("bootstrap.servers", getBootstrapServers());
+                producerProps.put("transactional.id", getGroupId() + "-"
+                        + getConsumerId() + "-" + index);
+                producerProps.put("enable.idempotence", "true");
+                producerProps.put("acks", "all");
+                // Must outlast the wait for the batch, or the coordinator
+                // will abort the transaction and fence this producer:
+                producerProps.put("transaction.timeout.ms",
+                        "" + TRANSACTION_TIMEOUT_MS);
+                producerProps.put("key.serializer",
+                        StringSerializer.class.getName());
+                producerProps.put("value.serializer",
+                        ByteArraySerializer.class.getName());
+                producer = new KafkaProducer<String, byte[]>(producerProps);
+            } else {
+                producer = null;
+            }
         }
 
         public void run() {
@@ -282,65 +446,133 @@ public class KafkaStreamHandler
 
             // Assign the partitions:
             int numPartitions = consumer.partitionsFor(getTopic()).size();
+            logger.info("Partition assignment (" + partitionAssignmentStrategy
+                    + ") of " + numPartitions + " partitions to "
+                    + getConsumerGroupSize() + " consumers: "
+                    + partitionAssignmentStrategy.getAssignments(
+                            numPartitions, getConsumerGroupSize()));
+            List<Integer> assignedPartitions = partitionAssignmentStrategy
+                    .assign(numPartitions, getConsumerId(),
+                            getConsumerGroupSize());
+            // Share them out between the local consumers:
             List<TopicPartition> parts = new ArrayList<TopicPartition>();
-            int range = numPartitions / getConsumerGroupSize();
-            int lo = (getConsumerId() - 1) * range;
-            int hi = getConsumerId() * range;
-            logger.info("Assigning partitions " + lo + "-" + (hi - 1) + "/"
-                    + numPartitions + " to consumer " + getConsumerId() + "/"
-                    + getConsumerGroupSize());
-            for (int p = lo; p < hi; p++) {
-                parts.add(new TopicPartition(getTopic(), p));
+            for (int i = index; i < assignedPartitions.size(); i += numConsumers) {
+                parts.add(new TopicPartition(getTopic(),
+                        assignedPartitions.get(i)));
+            }
+            logger.info("Assigning partitions " + parts + " of "
+                    + assignedPartitions + "/" + numPartitions
+                    + " to local consumer " + index + " of consumer "
+                    + getConsumerId() + "/" + getConsumerGroupSize());
+            if (parts.isEmpty()) {
+                logger.warning("No partitions left for local consumer " + index
+                        + ", so it will not run.");
+                consumer.close();
+                if (rewind) {
+                    rewound();
+                }
+                return;
             }
             consumer.assign(parts);
             // Rewind if requested:
-            if (seekToBeginning) {
+            if (rewind) {
                 logger.warning("Rewinding to the beginning of the " + getTopic()
                         + " URL queue.");
                 seekToBeginning();
+                rewound();
             } else {
                 logger.info("Resuming consumption of the " + getTopic()
                         + " URL queue.");
             }
 
             // Until the end...
+            ConsumerRecords<String, byte[]> records = null;
             try {
+                if (producer != null) {
+                    // Fences off any earlier instance, and completes or aborts
+                    // any transaction it left open:
+                    producer.initTransactions();
+                }
                 long count = 0;
                 // And now poll for records:
                 while (!closed.get()) {
                     try {
-                        ConsumerRecords<String, byte[]> records = consumer
-                                .poll(pollTimeout);
+                        records = consumer.poll(pollTimeout);
                         if (records.count() > 0) {
-                            // Threads for processing:
-                            ExecutorService messageHandlerPool = Executors
-                                    .newFixedThreadPool(
-                                            numMessageHandlerThreads);
+                            // Offsets are committed on the next poll (or with
+                            // the transaction), so the whole batch must be
+                            // handled before then:
+                            CountDownLatch batch = new CountDownLatch(
+                                    records.count());
+                            if (producer != null) {
+                                pendingEmitted = new KafkaKeyedCrawlLogFeed.PendingEmitted();
+                                producer.beginTransaction();
+                                transactionOpen = true;
+                            }
 
                             // Handle new records
                             for (ConsumerRecord<String, byte[]> record : records) {
+                                // A message may hold a batch of requests:
+                                List<CrawlRequest> requests = new ArrayList<CrawlRequest>(
+                                        1);
+                                AtomicInteger parts = null;
+                                int dispatched = 0;
                                 try {
-                                    String decodedBody = new String(
-                                            record.value(), "UTF-8");
-                                    logger.finer("Processing crawl request: "
-                                            + decodedBody);
-                                    JSONObject jo = new JSONObject(decodedBody);
-                                    // Send the in-scope URLs on to a Kafka
-                                    // topic...
-                                    messageHandlerPool.execute(
-                                            new CrawlMessageToKafkaTopic(jo));
+                                    long start = System.nanoTime();
+                                    decoder.decodeAll(record.value(),
+                                            requests);
+                                    ingestMetrics.observeDecode(
+                                            System.nanoTime() - start);
+                                    if (!requests.isEmpty()) {
+                                        parts = new AtomicInteger(
+                                                requests.size());
+                                        for (CrawlRequest request : requests) {
+                                            logger.finer(
+                                                    "Processing crawl request: "
+                                                            + request);
+                                            // Send the in-scope URLs on to a
+                                            // Kafka topic...
+                                            messageHandlerPool.execute(inBatch(
+                                                    new CrawlMessageToKafkaTopic(
+                                                            request),
+                                                    batch, parts));
+                                            dispatched++;
+                                        }
+                                    } else {
+                                        logger.info(
+                                                "ignoring message with no GET requests at offset "
+                                                        + record.offset()
+                                                        + " partition "
+                                                        + record.partition());
+                                        scopedCounter
+                                                .labels(getTopic(), "ignored")
+                                                .inc();
+                                    }
                                 } catch (Exception e) {
                                     logger.log(Level.SEVERE,
-                                            "problem creating JSON from String received via Kafka "
-                                                    + record.value(),
+                                            "problem decoding crawl request received via Kafka "
+                                                    + new String(record.value(),
+                                                            "UTF-8"),
                                             e);
+                                    scopedCounter.labels(getTopic(), "error")
+                                            .inc();
+                                    ingestMetrics.error();
+                                } finally {
+                                    if (parts == null) {
+                                        batch.countDown();
+                                    } else {
+                                        // Account for any that were not
+                                        // handed over:
+                                        for (int i = dispatched; i < requests
+                                                .size(); i++) {
+                                            partDone(parts, batch);
+                                        }
+                                    }
                                 }
                                 count += 1;
-                                partitionOffsets
-                                        .labels(getTopic(),
-                                                "" + record.partition())
-                                        .set(record.offset());
-                                if (count % 1000 == 0 || true) {
+                                ingestMetrics.recordOffset(record.partition(),
+                                        record.offset());
+                                if (count % 1000 == 0) {
                                     logger.info("Processed " + count
                                             + " messages so far. Last message offset="
                                             + record.offset() + " partition="
@@ -348,10 +580,24 @@ public class KafkaStreamHandler
                                             + ".");
                                 }
                             }
+                            ingestMetrics.setQueueDepth(
+                                    messageHandlerPool.getQueue().size());
+                            ingestMetrics.updateLag(consumer.metrics());
                             // Wait for this batch to finish:
-                            messageHandlerPool.shutdown();
-                            messageHandlerPool.awaitTermination(10,
-                                    TimeUnit.MINUTES);
+                            boolean finished = batch.await(BATCH_TIMEOUT_MS,
+                                    TimeUnit.MILLISECONDS);
+                            if (!finished) {
+                                logger.severe(
+                                        "Timed out waiting for a batch of crawl requests to be handled!");
+                            }
+                            if (producer != null) {
+                                completeTransaction(records, finished);
+                            } else if (!finished) {
+                                // The next poll auto-commits the offsets, so
+                                // go back and handle the batch again:
+                                rewindTo(records);
+                            }
+                            records = null;
                         }
                     } catch (WakeupException e) {
                         logger.info("Poll routine awoken for shutdown...");
@@ -359,9 +605,21 @@ public class KafkaStreamHandler
                         logger.log(Level.SEVERE,
                                 "Problem while awaiting processing of the batch!",
                                 e);
+                        if (producer == null && records != null) {
+                            // Closing auto-commits the offsets, which must not
+                            // run ahead of this unfinished batch:
+                            rewindTo(records);
+                        }
+                        Thread.currentThread().interrupt();
+                        break;
                     }
                 }
+            } catch (Exception e) {
+                logger.log(Level.SEVERE, "Unexpected exception in consumer "
+                        + index + "!", e);
             } finally {
+                // The transactional producer is closed once the handlers,
+                // which may still be sending through it, have finished:
                 logger.info("Closing consumer...");
                 consumer.close();
                 logger.info("Consumer closed.");
@@ -370,6 +628,108 @@ public class KafkaStreamHandler
             return;
         }
 
+        /*
+         * Each record counts down the batch once all of its requests have been
+         * handled.
+         */
+        private void partDone(AtomicInteger parts, CountDownLatch batch) {
+            if (parts.decrementAndGet() == 0) {
+                batch.countDown();
+            }
+        }
+
+        private Runnable inBatch(final Runnable handler,
+                final CountDownLatch batch, final AtomicInteger parts) {
+            // Bound to this batch's transaction, not whichever is open later:
+            final KafkaKeyedCrawlLogFeed.PendingEmitted pending = pendingEmitted;
+            return new Runnable() {
+                public void run() {
+                    // Make the feeds send within this consumer's transaction:
+                    if (producer != null) {
+                        KafkaKeyedCrawlLogFeed.setThreadProducer(producer);
+                        KafkaKeyedCrawlLogFeed.setThreadPendingEmitted(pending);
+                    }
+                    try {
+                        handler.run();
+                    } finally {
+                        if (producer != null) {
+                            KafkaKeyedCrawlLogFeed.clearThreadProducer();
+                        }
+                        partDone(parts, batch);
+                    }
+                }
+            };
+        }
+
+        /**
+         * Commit the messages sent while handling this batch along with the
+         * offsets after it, or abort the transaction and rewind so the batch
+         * is handled again.
+         * 
+         * @param records
+         * @param finished
+         *            false if some handlers did not finish in time
+         */
+        private void completeTransaction(
+                ConsumerRecords<String, byte[]> records, boolean finished) {
+            Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<TopicPartition, OffsetAndMetadata>();
+            for (TopicPartition tp : records.partitions()) {
+                List<ConsumerRecord<String, byte[]>> partitionRecords = records
+                        .records(tp);
+                offsets.put(tp, new OffsetAndMetadata(partitionRecords
+                        .get(partitionRecords.size() - 1).offset() + 1));
+            }
+            try {
+                if (finished) {
+                    producer.sendOffsetsToTransaction(offsets, getGroupId());
+                    producer.commitTransaction();
+                    transactionOpen = false;
+                    transactionCounter.labels(getTopic(), "committed").inc();
+                    pendingEmitted.commit();
+                    return;
+                }
+            } catch (ProducerFencedException | OutOfOrderSequenceException
+                    | AuthorizationException e) {
+                // Can't carry on, e.g. another instance has taken over:
+                logger.log(Level.SEVERE, "Fatal error committing transaction "
+                        + "for local consumer " + index + ", stopping.", e);
+                transactionCounter.labels(getTopic(), "fenced").inc();
+                pendingEmitted.abort();
+                transactionOpen = false;
+                closed.set(true);
+                return;
+            } catch (KafkaException e) {
+                logger.log(Level.WARNING,
+                        "Problem committing transaction, will abort and retry the batch.",
+                        e);
+            }
+            // Forget the aborted URLs, and stop any handlers that are still
+            // running from sending as part of this (or the next) transaction:
+            pendingEmitted.abort();
+            try {
+                producer.abortTransaction();
+            } catch (KafkaException e) {
+                logger.log(Level.SEVERE, "Could not abort transaction "
+                        + "for local consumer " + index + ", stopping.", e);
+                transactionCounter.labels(getTopic(), "fenced").inc();
+                transactionOpen = false;
+                closed.set(true);
+                return;
+            }
+            transactionOpen = false;
+            transactionCounter.labels(getTopic(), "aborted").inc();
+            rewindTo(records);
+        }
+
+        /*
+         * Rewind to the start of the batch:
+         */
+        private void rewindTo(ConsumerRecords<String, byte[]> records) {
+            for (TopicPartition tp : records.partitions()) {
+                consumer.seek(tp, records.records(tp).get(0).offset());
+            }
+        }
+
         /**
          * This can be used to seek to the start of the Kafka feed after
          * subscribing:
@@ -385,11 +745,34 @@ public class KafkaStreamHandler
                 logger.info("Now seek...");
                 consumer.seekToBeginning(consumer.assignment());
                 logger.info("Seek-to-beginning has finished.");
-                // Only seek to the beginning once in any job:
-                seekToBeginning = false;
             }
         }
 
+        /**
+         * Once the consumer has stopped and no handlers can be sending through
+         * it, abort any transaction left open and close the transactional
+         * producer.
+         */
+        void closeProducer() {
+            if (producer == null) {
+                return;
+            }
+            if (transactionOpen) {
+                logger.warning("Aborting the open transaction for "
+                        + "local consumer " + index + "...");
+                pendingEmitted.abort();
+                try {
+                    producer.abortTransaction();
+                    transactionCounter.labels(getTopic(), "aborted").inc();
+                } catch (KafkaException e) {
+                    logger.log(Level.SEVERE, "Could not abort transaction "
+                            + "for local consumer " + index + ".", e);
+                }
+                transactionOpen = false;
+            }
+            producer.close();
+        }
+
         // Shutdown hook which can be called from a separate thread
         public void shutdown() {
             closed.set(true);
@@ -403,24 +786,24 @@ public class KafkaStreamHandler
     /**
      * How we process crawl request messages, when handling locally:
      * 
-     * @param jo
+     * @param request
      */
     public class CrawlMessageToKafkaTopic implements Runnable {
 
-        private JSONObject jo;
+        private CrawlRequest request;
 
-        public CrawlMessageToKafkaTopic(JSONObject jo) {
-            this.jo = jo;
+        public CrawlMessageToKafkaTopic(CrawlRequest request) {
+            this.request = request;
         }
 
         @Override
         public void run() {
             // Process the messages:
-            if ("GET".equals(jo.getString("method"))) {
+            if (request.isGet()) {
                 try {
                     // Make the CrawlURI:
-                    CrawlURI curi = makeCrawlUri(jo);
-                    logger.info("Handling " + curi);
+                    CrawlURI curi = makeCrawlUri(request);
+                    logger.finer("Handling " + curi);
 
                     // Decide whether to accept this URI, allowing sheet
                     // overrides:
@@ -429,13 +812,18 @@ public class KafkaStreamHandler
                         KeyedProperties.loadOverridesFrom(curi);
 
                         // Try:
+                        long start = System.nanoTime();
                         DecideResult dr = scope.decisionFor(curi);
+                        ingestMetrics.observeScopeDecision(
+                                System.nanoTime() - start);
                         if (dr.equals(DecideResult.ACCEPT)) {
-                            System.out.println("YAY " + curi.getExtraInfo());
                             toCrawlFeed.process(curi);
+                            scopedCounter.labels(getTopic(), "accepted").inc();
+                            ingestMetrics.enqueued();
                         } else {
-                            System.out.println("BOO " + curi.getExtraInfo());
                             discardedUriFeed.doInnerProcess(curi);
+                            scopedCounter.labels(getTopic(), "rejected").inc();
+                            ingestMetrics.discarded();
                         }
                     } finally {
                         KeyedProperties.clearOverridesFrom(curi);
@@ -443,34 +831,39 @@ public class KafkaStreamHandler
                 
                     // Was successfully enqueued:
                     messageCounter.labels(getTopic(), "enqueued").inc();
+                    ingestMetrics.processed();
                 } catch (URIException e) {
                     logger.log(Level.WARNING,
-                            "problem creating CrawlURI from json received via Kafka "
-                                    + jo,
-                            e);
-                } catch (JSONException e) {
-                    logger.log(Level.SEVERE,
-                            "problem creating CrawlURI from json received via Kafka "
-                                    + jo,
+                            "problem creating CrawlURI from crawl request received via Kafka "
+                                    + request,
                             e);
+                    scopedCounter.labels(getTopic(), "error").inc();
+                    ingestMetrics.error();
                 } catch (Exception e) {
                     logger.log(Level.SEVERE,
-                            "Unanticipated problem creating CrawlURI from json received via Kafka "
-                                    + jo,
+                            "Unanticipated problem creating CrawlURI from crawl request received via Kafka "
+                                    + request,
                             e);
+                    scopedCounter.labels(getTopic(), "error").inc();
+                    ingestMetrics.error();
                 }
             } else {
-                logger.info("ignoring url with method other than GET - " + jo);
+                logger.info(
+                        "ignoring url with method other than GET - " + request);
+                scopedCounter.labels(getTopic(), "ignored").inc();
             }
         }
 
     }
 
-    // Thread for the Kafka client:
-    transient private KafkaConsumerRunner kafkaConsumer;
+    // Threads for the Kafka clients:
+    transient private List<KafkaConsumerRunner> kafkaConsumers;
     transient private ThreadGroup kafkaProducerThreads;
     transient private ExecutorService executorService;
 
+    // Long-lived pool of message handlers, shared by all the consumers:
+    transient private ThreadPoolExecutor messageHandlerPool;
+
     @Override
     public void start() {
         this.startup();
@@ -494,11 +887,41 @@ public class KafkaStreamHandler
                         return new Thread(kafkaProducerThreads, r);
                     }
                 };
-                executorService = Executors.newFixedThreadPool(1,
+                executorService = Executors.newFixedThreadPool(numConsumers,
                         threadFactory);
-                logger.info("Requesting launch of the KafkaURLReceiver...");
-                kafkaConsumer = new KafkaConsumerRunner(seekToBeginning);
-                executorService.execute(kafkaConsumer);
+
+                // Threads for processing, which live as long as this handler.
+                // When the queue is full, the consumer thread runs the handler
+                // itself, which holds back polling until the pool catches up:
+                final AtomicInteger threadNumber = new AtomicInteger(1);
+                ThreadFactory handlerThreadFactory = new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        return new Thread(kafkaProducerThreads, r,
+                                "KafkaStreamHandler-handler-"
+                                        + threadNumber.getAndIncrement());
+                    }
+                };
+                messageHandlerPool = new ThreadPoolExecutor(
+                        numMessageHandlerThreads, numMessageHandlerThreads, 0L,
+                        TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(
+                                messageHandlerQueueSize),
+                        handlerThreadFactory,
+                        new ThreadPoolExecutor.CallerRunsPolicy());
+
+                logger.info("Requesting launch of " + numConsumers
+                        + " KafkaURLReceiver consumers...");
+                if (ingestMetrics == null) {
+                    ingestMetrics = new KafkaIngestMetrics(getTopic());
+                }
+                kafkaConsumers = new ArrayList<KafkaConsumerRunner>();
+                rewindsPending = new AtomicInteger(numConsumers);
+                for (int i = 0; i < numConsumers; i++) {
+                    KafkaConsumerRunner runner = new KafkaConsumerRunner(
+                            seekToBeginning, i);
+                    kafkaConsumers.add(runner);
+                    executorService.execute(runner);
+                }
                 this.isRunning = true;
 
             }
@@ -507,22 +930,56 @@ public class KafkaStreamHandler
         }
     }
 
+    /**
+     * Stops the consumers, lets them finish the batches they are working on,
+     * and then flushes the crawl request feeds, so everything that was read
+     * (and will have its offset committed) has been passed on. In
+     * transactional mode, any transaction left open is aborted once the
+     * handlers have drained, before the producers are closed.
+     */
     private void shutdown() {
         lock.lock();
         try {
             if (isRunning) {
                 logger.info("Requesting shutdown of the KafkaURLReceiver...");
-                this.kafkaConsumer.shutdown();
+                for (KafkaConsumerRunner runner : kafkaConsumers) {
+                    runner.shutdown();
+                }
+                this.executorService.shutdown();
                 try {
                     logger.info(
-                            "Awaiting termination of the ExecutorService...");
-                    this.executorService.awaitTermination(4, TimeUnit.SECONDS);
+                            "Awaiting termination of the consumers...");
+                    if (!this.executorService.awaitTermination(
+                            CONSUMER_SHUTDOWN_TIMEOUT_MS,
+                            TimeUnit.MILLISECONDS)) {
+                        logger.warning("Forcing shutdown of the consumers...");
+                        this.executorService.shutdownNow();
+                    }
+                    // The consumers no longer hand over work, so let the
+                    // handlers drain. They are not interrupted, as they may be
+                    // sending within a transaction, which will have been
+                    // aborted by the broker if they take longer than this:
+                    logger.info("Draining the message handlers...");
+                    messageHandlerPool.shutdown();
+                    if (!messageHandlerPool.awaitTermination(
+                            TRANSACTION_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                        logger.warning(
+                                "Message handlers did not finish in time!");
+                    }
                 } catch (InterruptedException e) {
                     logger.log(Level.SEVERE,
-                            "Exception while terminating Kafka thread...", e);
+                            "Exception while terminating Kafka threads...", e);
+                    this.executorService.shutdownNow();
+                    Thread.currentThread().interrupt();
+                }
+                for (KafkaConsumerRunner runner : kafkaConsumers) {
+                    runner.closeProducer();
+                }
+                logger.info("Flushing the crawl request feeds...");
+                toCrawlFeed.flush();
+                if (discardedUriFeed != null) {
+                    discardedUriFeed.flush();
                 }
-                logger.info("Forcing shutdown of the KafkaURLReceiver...");
-                this.executorService.shutdownNow();
                 isRunning = false;
                 logger.info("Shutdown of the KafkaURLReceiver complete.");
             }
@@ -531,73 +988,17 @@ public class KafkaStreamHandler
         }
     }
 
-    protected static final Set<String> REQUEST_HEADER_BLACKLIST = new HashSet<String>(Arrays.asList(
-            "accept-encoding", "upgrade-insecure-requests", "host", "connection"));
-
-
-    // {
-    // "headers": {
-    // "Referer": "https://archive.org/",
-    // "User-Agent": "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML,
-    // like Gecko) Ubuntu Chromium/32.0.1700.102 Chrome/32.0.1700.102
-    // Safari/537.36",
-    // "Accept": "image/webp,*/*;q=0.8"
-    // },
-    // "url":
-    // "https://analytics.archive.org/0.gif?server_ms=256&server_name=www19.us.archive.org&service=ao&loadtime=358&timediff=-8&locale=en-US&referrer=-&version=2&count=9",
-    // "method": "GET"
-    // }
-    protected CrawlURI makeCrawlUri(JSONObject jo)
-            throws URIException, JSONException {
-
-        UURI uuri = UURIFactory.getInstance(jo.getString("url"));
-        String viaStr = jo.getString("parentUrl");
-        // Cope if we are passed an empty value by copying the URL:
-        if (viaStr == null || "".equals(viaStr))
-            viaStr = uuri.getURI();
-        UURI via = UURIFactory.getInstance(viaStr);
-
-        JSONObject parentUrlMetadata = jo.getJSONObject("parentUrlMetadata");
-        String parentHopPath = parentUrlMetadata.getString("pathFromSeed");
-        String hop = jo.optString("hop", "");
-        String hopPath = parentHopPath + hop;
-
-        CrawlURI curi = new CrawlURI(uuri, hopPath, via,
-                LinkContext.INFERRED_MISC);
-
-        populateHeritableMetadata(curi, parentUrlMetadata);
-
-        // set the http headers from the Kafka message:
-        if (jo.has("headers")) {
-            JSONObject joHeaders = jo.getJSONObject("headers");
-            Map<String, String> customHttpRequestHeaders = new HashMap<String, String>();
-            for (Object key : joHeaders.keySet()) {
-                String k = key.toString();
-                if (!k.startsWith(":")
-                        && !REQUEST_HEADER_BLACKLIST.contains(k)) {
-                    customHttpRequestHeaders.put(k,
-                            joHeaders.getString(key.toString()));
-                }
-            }
-            curi.getData().put("customHttpRequestHeaders",
-                    customHttpRequestHeaders);
-        }
+    // Decodes the JSON crawl requests:
+    private final CrawlRequestDecoder decoder = new CrawlRequestDecoder();
 
-        // Set up sheet associations, if specified:
-        if (jo.has("sheets")) {
-            List<String> sheetNames = new LinkedList<String>();
-            JSONArray jsn = jo.getJSONArray("sheets");
-            for (int i = 0; i < jsn.length(); i++) {
-                sheetNames.add(jsn.getString(i));
-            }
-            this.setSheetAssociations(curi, sheetNames);
-        }
+    protected CrawlURI makeCrawlUri(CrawlRequest request)
+            throws URIException {
 
-        // Set up recrawl interval, if specified:
-        if (jo.has("recrawlInterval")) {
-            int recrawlInterval = jo.getInt("recrawlInterval");
-            curi.getData().put(RecentlySeenDecideRule.RECRAWL_INTERVAL,
-                    recrawlInterval);
+        CrawlURI curi = request.toCrawlURI();
+
+        // Set up sheet associations, if specified:
+        if (request.getSheets() != null) {
+            this.setSheetAssociations(curi, request.getSheets());
         }
 
         /*
@@ -612,9 +1013,6 @@ public class KafkaStreamHandler
             curi.setPrecedence(1);
         }
 
-        curi.setForceFetch(jo.optBoolean("forceFetch"));
-        curi.setSeed(jo.optBoolean("isSeed"));
-
         return curi;
     }
 
@@ -627,47 +1025,9 @@ public class KafkaStreamHandler
         // Get the SURT prefix to use:
         String prefix = curi.getUURI().getSurtForm(); // c.f.
         // org.archive.crawler.frontier.SurtAuthorityQueueAssignmentPolicy
-        // Get the list of all known sheets:
-        Set<String> allSheetNames = getSheetOverlaysManager().getSheetsByName()
-                .keySet();
-        // Make a list of the valid proposed sheet names:
-        List<String> sheetNames = new LinkedList<String>();
-        for (String sheetName : sheets) {
-            if (allSheetNames.contains(sheetName)) {
-                sheetNames.add(sheetName);
-            } else {
-                logger.severe("Unknown sheet name: " + sheetName);
-            }
-        }
-        // Set the association for this prefix:
-        logger.info("Setting sheets for " + prefix + " to " + sheetNames);
-        getSheetOverlaysManager().getSheetsNamesBySurt().put(prefix,
-                sheetNames);
-    }
-
-    // set the heritable data from the parent url, passed back to us via Kafka
-    // XXX brittle, only goes one level deep, and only handles strings and
-    // arrays, the latter of which it converts to a Set.
-    // 'heritableData': {'source': 'https://facebook.com/whitehouse/',
-    // 'heritable': ['source', 'heritable']}
-    @SuppressWarnings("unchecked")
-    protected void populateHeritableMetadata(CrawlURI curi,
-            JSONObject parentUrlMetadata) {
-        JSONObject heritableData = parentUrlMetadata
-                .getJSONObject("heritableData");
-        for (String key : (Set<String>) heritableData.keySet()) {
-            Object value = heritableData.get(key);
-            if (value instanceof JSONArray) {
-                Set<String> valueSet = new HashSet<String>();
-                JSONArray arr = ((JSONArray) value);
-                for (int i = 0; i < arr.length(); i++) {
-                    valueSet.add(arr.getString(i));
-                }
-                curi.getData().put(key, valueSet);
-            } else {
-                curi.getData().put(key, heritableData.get(key));
-            }
-        }
+        SurtTrieSheetOverlaysManager.setSheetAssociations(
+                getSheetOverlaysManager(), prefix, sheets, curi.getUURI(),
+                appCtx);
     }
 
 }
@@ -3,7 +3,6 @@
  */
 package uk.bl.wap.scoper;
 
-import java.io.UnsupportedEncodingException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -26,8 +25,6 @@ import org.archive.crawler.frontier.BdbFrontier;
 import org.archive.modules.CrawlURI;
 import org.archive.modules.Processor;
 import org.archive.modules.net.ServerCache;
-import org.archive.modules.postprocessor.CrawlLogJsonBuilder;
-import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.Lifecycle;
 
@@ -35,6 +32,7 @@ import com.google.common.hash.HashCode;
 import com.google.common.hash.HashFunction;
 import com.google.common.hash.Hashing;
 
+import uk.bl.wap.crawler.postprocessor.CrawlLogJsonWriter;
 import uk.bl.wap.crawler.postprocessor.KafkaKeyedCrawlLogFeed;
 
 /**
@@ -116,13 +114,8 @@ public class KafkaStreamProducer extends Processor implements Lifecycle {
     }
 
     protected byte[] buildMessage(CrawlURI curi) {
-        JSONObject jo = CrawlLogJsonBuilder.buildJson(curi, getExtraFields(),
+        return CrawlLogJsonWriter.buildMessage(curi, getExtraFields(),
                 getServerCache());
-        try {
-            return jo.toString().getBytes("UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
     }
 
     @Override
@@ -4,10 +4,16 @@
 package uk.bl.wap.scoper;
 
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import org.springframework.context.support.AbstractApplicationContext;
 import org.springframework.context.support.FileSystemXmlApplicationContext;
 
+import io.prometheus.client.exporter.HTTPServer;
+import io.prometheus.client.hotspot.DefaultExports;
+
 /**
  * This class takes a Heritrix3 scope configuration file and runs it as a
  * standalone application. This allows scope processing to be handled outside of
@@ -60,23 +66,74 @@ import org.springframework.context.support.FileSystemXmlApplicationContext;
  */
 public class StreamScoper {
 
+    private static final Logger LOGGER = Logger
+            .getLogger(StreamScoper.class.getName());
+
     /**
+     * Runs the scoper until the process is terminated. On shutdown, the Spring
+     * context is stopped, which lets the Kafka consumers finish and flushes
+     * the output feeds, before the context is closed.
+     * 
+     * The configuration file defaults to scope.xml, and the port of the
+     * Prometheus metrics endpoint can be set using the SCOPER_METRICS_PORT
+     * environment variable (default 9118, or 0 to disable it).
+     * 
      * @param args
+     *            optionally, the path to the Spring configuration file
      * @throws IOException
      * @throws InterruptedException
      */
     public static void main(String[] args)
             throws IOException, InterruptedException {
+        String config = args.length > 0 ? args[0] : "scope.xml";
+
+        // Make the metrics available:
+        int metricsPort = Integer
+                .parseInt(getEnv("SCOPER_METRICS_PORT", "9118"));
+        HTTPServer metricsServer = null;
+        if (metricsPort > 0) {
+            DefaultExports.initialize();
+            metricsServer = new HTTPServer(metricsPort, true);
+            LOGGER.info("Metrics available on port " + metricsPort);
+        }
 
         // Start up the application, as per the Spring configuration:
-        AbstractApplicationContext springContext = new FileSystemXmlApplicationContext(
-                "scope.xml");
+        final AbstractApplicationContext springContext = new FileSystemXmlApplicationContext(
+                config);
         springContext.start();
 
-        while (true) {
+        // Wait until we are asked to stop, then shut down cleanly:
+        final CountDownLatch finished = new CountDownLatch(1);
+        final HTTPServer server = metricsServer;
+        Runtime.getRuntime().addShutdownHook(new Thread("StreamScoper-shutdown") {
+            public void run() {
+                LOGGER.info("Shutting down...");
+                try {
+                    // Stopping the producers closes them, which waits for
+                    // any messages still being sent:
+                    springContext.stop();
+                    springContext.close();
+                } catch (Exception e) {
+                    LOGGER.log(Level.SEVERE, "Problem during shutdown.", e);
+                } finally {
+                    if (server != null) {
+                        server.stop();
+                    }
+                    finished.countDown();
+                    LOGGER.info("Shutdown complete.");
+                }
+            }
+        });
 
-        }
+        finished.await();
+    }
 
+    private static String getEnv(String name, String defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        return value.trim();
     }
 
 }
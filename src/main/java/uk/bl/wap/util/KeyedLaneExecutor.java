@@ -0,0 +1,133 @@
+/**
+ *
+ */
+package uk.bl.wap.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks on a fixed set of single-threaded 'lanes', choosing the lane from
+ * a key. All tasks with the same key run on the same thread, in the order they
+ * were submitted, so tasks for the same key never run concurrently.
+ *
+ * Each lane has a bounded queue, and tasks are rejected (with a
+ * {@link RejectedExecutionException}) when their lane is full.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class KeyedLaneExecutor {
+
+    private final ThreadPoolExecutor[] lanes;
+
+    /**
+     *
+     * @param name
+     *            used to name the lane threads
+     * @param numLanes
+     * @param laneQueueSize
+     *            maximum number of tasks waiting in each lane
+     */
+    public KeyedLaneExecutor(final String name, int numLanes,
+            int laneQueueSize) {
+        lanes = new ThreadPoolExecutor[numLanes];
+        for (int i = 0; i < numLanes; i++) {
+            final String threadName = name + "-lane-" + i;
+            lanes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(laneQueueSize),
+                    new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            return new Thread(r, threadName);
+                        }
+                    });
+        }
+    }
+
+    public int getNumLanes() {
+        return lanes.length;
+    }
+
+    /**
+     *
+     * @param key
+     * @return the lane that tasks with this key are run on.
+     */
+    public int laneFor(String key) {
+        if (key == null) {
+            return 0;
+        }
+        return (key.hashCode() & Integer.MAX_VALUE) % lanes.length;
+    }
+
+    /**
+     * Run the task on the lane for the given key.
+     *
+     * @param key
+     * @param task
+     * @throws RejectedExecutionException
+     *             if the lane's queue is full, or the executor has been shut
+     *             down.
+     */
+    public void execute(String key, Runnable task) {
+        lanes[laneFor(key)].execute(task);
+    }
+
+    /**
+     *
+     * @param lane
+     * @return the number of tasks waiting to run on this lane.
+     */
+    public int getQueueDepth(int lane) {
+        return lanes[lane].getQueue().size();
+    }
+
+    /**
+     *
+     * @return the number of tasks waiting to run on all lanes.
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor lane : lanes) {
+            depth += lane.getQueue().size();
+        }
+        return depth;
+    }
+
+    public void shutdown() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdown();
+        }
+    }
+
+    public void shutdownNow() {
+        for (ThreadPoolExecutor lane : lanes) {
+            lane.shutdownNow();
+        }
+    }
+
+    /**
+     * Wait for all lanes to finish, after a shutdown request.
+     *
+     * @param timeout
+     * @param unit
+     * @return true if all lanes terminated in time.
+     * @throws InterruptedException
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for (ThreadPoolExecutor lane : lanes) {
+            long remaining = deadline - System.nanoTime();
+            if (!lane.awaitTermination(Math.max(0, remaining),
+                    TimeUnit.NANOSECONDS)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+}
@@ -0,0 +1,129 @@
+/**
+ *
+ */
+package uk.bl.wap.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Keeps track of items that are handed out in order (e.g. Kafka offsets within
+ * a partition) but may be finished out of order (e.g. by a pool of handler
+ * threads).
+ *
+ * For each key, the 'safe position' is the lowest position that has been
+ * registered but not yet completed, or one past the highest registered
+ * position if everything is complete. Everything before the safe position has
+ * been completed, so it is safe to acknowledge/commit up to that point.
+ *
+ * Positions for a given key must be registered in ascending order, from a
+ * single thread. They may be completed from any thread.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class OrderedCompletionTracker<K> {
+
+    private class Sequence {
+        private final ConcurrentSkipListSet<Long> pending = new ConcurrentSkipListSet<Long>();
+        private volatile long highest = -1;
+    }
+
+    private final ConcurrentMap<K, Sequence> sequences = new ConcurrentHashMap<K, Sequence>();
+
+    /**
+     * Record that the item at this position is in-flight.
+     *
+     * @param key
+     * @param position
+     */
+    public void register(K key, long position) {
+        Sequence seq = sequences.get(key);
+        if (seq == null) {
+            seq = new Sequence();
+            Sequence existing = sequences.putIfAbsent(key, seq);
+            if (existing != null) {
+                seq = existing;
+            }
+        }
+        // Must be added to the pending set before the highest position is
+        // updated, so readers never see a position as done too early:
+        seq.pending.add(position);
+        if (position > seq.highest) {
+            seq.highest = position;
+        }
+    }
+
+    /**
+     * Record that the item at this position has been finished.
+     *
+     * @param key
+     * @param position
+     */
+    public void complete(K key, long position) {
+        Sequence seq = sequences.get(key);
+        if (seq != null) {
+            seq.pending.remove(position);
+        }
+    }
+
+    /**
+     *
+     * @param key
+     * @return the position before which everything has been completed, or -1
+     *         if nothing has been registered for this key.
+     */
+    public long getSafePosition(K key) {
+        Sequence seq = sequences.get(key);
+        if (seq == null) {
+            return -1;
+        }
+        // Read the highest position first, see register():
+        long next = seq.highest + 1;
+        if (!seq.pending.isEmpty()) {
+            try {
+                next = Math.min(next, seq.pending.first());
+            } catch (java.util.NoSuchElementException e) {
+                // Completed in the meantime.
+            }
+        }
+        return next;
+    }
+
+    /**
+     *
+     * @return the safe positions for all known keys.
+     */
+    public Map<K, Long> getSafePositions() {
+        Map<K, Long> positions = new HashMap<K, Long>();
+        for (K key : sequences.keySet()) {
+            positions.put(key, getSafePosition(key));
+        }
+        return positions;
+    }
+
+    /**
+     *
+     * @return the number of registered items that have not been completed.
+     */
+    public int getPendingCount() {
+        int pending = 0;
+        for (Sequence seq : sequences.values()) {
+            pending += seq.pending.size();
+        }
+        return pending;
+    }
+
+    /**
+     * Forget everything about this key (e.g. after seeking elsewhere).
+     *
+     * @param key
+     */
+    public void reset(K key) {
+        sequences.remove(key);
+    }
+
+}
@@ -0,0 +1,474 @@
+/**
+ *
+ */
+package uk.bl.wap.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of records, held in a directory of fixed-size,
+ * memory-mapped segment files. Records are read back in the order they were
+ * appended, and are marked as consumed once they have been dealt with, so
+ * that a journal re-opened after a restart only returns the records that were
+ * still outstanding.
+ *
+ * Each record is stored as a length, a CRC32 of the contents, and then the
+ * contents. The length is negated when the record is consumed, and a zero
+ * length marks the end of a segment. When re-opened, any record that fails
+ * its CRC check (e.g. a partial write before a crash) ends the segment.
+ *
+ * Once every record in a segment has been consumed, the file is kept as a
+ * spare to be re-used, up to a limit, or deleted. The total size of the
+ * segments is capped, and appends fail once it is reached.
+ *
+ * Writes to the mapped files survive the JVM crashing, but only reach the
+ * disk when the OS flushes them, or {@link #force()} is called.
+ *
+ * Instances are thread-safe.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class SpillJournal implements Closeable {
+
+    private static final Logger LOGGER = Logger
+            .getLogger(SpillJournal.class.getName());
+
+    private static final String SEGMENT_PREFIX = "segment-";
+
+    private static final String SPARE_PREFIX = "spare-";
+
+    private static final String SUFFIX = ".spill";
+
+    // Record length plus CRC32:
+    private static final int HEADER_SIZE = 8;
+
+    /**
+     * One mapped segment file.
+     */
+    private static final class Segment {
+        private final long sequence;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        // Where the next record will be appended:
+        private int writePosition = 0;
+        // Where the first unconsumed record starts:
+        private int readPosition = 0;
+
+        private Segment(long sequence, File file, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        private boolean isExhausted() {
+            return readPosition >= writePosition;
+        }
+    }
+
+    private final File dir;
+
+    private final int segmentSize;
+
+    private final long maxBytes;
+
+    private final int maxSpareSegments;
+
+    // Oldest first, and the last one is being appended to:
+    private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+
+    private final ArrayDeque<Segment> spares = new ArrayDeque<Segment>();
+
+    private long nextSequence = 0;
+
+    private volatile long pendingRecords = 0;
+
+    private volatile long pendingBytes = 0;
+
+    private boolean dirty = false;
+
+    private boolean closed = false;
+
+    /**
+     * Open a journal, creating the directory if needed, and recovering any
+     * records that were not consumed before it was last closed.
+     *
+     * @param dir
+     * @param segmentSize
+     *            the size of each segment file, which limits the size of a
+     *            record
+     * @param maxBytes
+     *            the most space all the segments (excluding spares) may use
+     * @param maxSpareSegments
+     *            how many consumed segments to keep for re-use
+     * @throws IOException
+     */
+    public SpillJournal(File dir, int segmentSize, long maxBytes,
+            int maxSpareSegments) throws IOException {
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException(
+                    "Segment size too small: " + segmentSize);
+        }
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.maxSpareSegments = maxSpareSegments;
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create directory " + dir);
+        }
+        recover();
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File f) {
+                return f.isFile() && f.getName().endsWith(SUFFIX);
+            }
+        });
+        // Sort by sequence number:
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                return Long.compare(sequenceOf(a), sequenceOf(b));
+            }
+        });
+        for (File file : files) {
+            long sequence = sequenceOf(file);
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            if (file.length() != segmentSize) {
+                // Left over from a different configuration:
+                LOGGER.warning("Ignoring " + file + " as it is "
+                        + file.length() + " bytes, not " + segmentSize);
+                continue;
+            }
+            if (file.getName().startsWith(SPARE_PREFIX)) {
+                if (spares.size() < maxSpareSegments) {
+                    spares.add(new Segment(sequence, file, map(file)));
+                } else if (!file.delete()) {
+                    LOGGER.warning("Could not delete " + file);
+                }
+            } else if (file.getName().startsWith(SEGMENT_PREFIX)) {
+                Segment segment = new Segment(sequence, file, map(file));
+                scan(segment);
+                segments.add(segment);
+            }
+        }
+        // Drop any segments that have been consumed:
+        head();
+        LOGGER.info("Opened spill journal " + dir + " with " + pendingRecords
+                + " pending records in " + segments.size() + " segments.");
+    }
+
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        String number = name.substring(name.indexOf('-') + 1,
+                name.length() - SUFFIX.length());
+        try {
+            return Long.parseLong(number);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Find the records in a segment from a previous run:
+    private void scan(Segment segment) {
+        MappedByteBuffer buffer = segment.buffer;
+        int pos = 0;
+        boolean consumed = true;
+        while (pos + HEADER_SIZE <= segmentSize) {
+            int length = buffer.getInt(pos);
+            if (length == 0 || Math.abs((long) length) > segmentSize - pos
+                    - HEADER_SIZE) {
+                break;
+            }
+            if (length > 0) {
+                if (checksum(buffer, pos + HEADER_SIZE, length) != buffer
+                        .getInt(pos + 4)) {
+                    LOGGER.warning("Truncating " + segment.file
+                            + " at a corrupt record at offset " + pos);
+                    break;
+                }
+                if (consumed) {
+                    segment.readPosition = pos;
+                    consumed = false;
+                }
+                pendingRecords++;
+                pendingBytes += length;
+            }
+            pos += HEADER_SIZE + Math.abs(length);
+        }
+        segment.writePosition = pos;
+        if (consumed) {
+            segment.readPosition = pos;
+        }
+        terminate(buffer, pos);
+    }
+
+    private static int checksum(MappedByteBuffer buffer, int offset,
+            int length) {
+        CRC32 crc = new CRC32();
+        crc.update(slice(buffer, offset, length));
+        return (int) crc.getValue();
+    }
+
+    // A view of part of a buffer, leaving the buffer's own position alone:
+    private static ByteBuffer slice(MappedByteBuffer buffer, int offset,
+            int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.limit(offset + length);
+        view.position(offset);
+        return view;
+    }
+
+    private static int checksum(byte[] record) {
+        CRC32 crc = new CRC32();
+        crc.update(record, 0, record.length);
+        return (int) crc.getValue();
+    }
+
+    // Mark the end of the records, if there is room:
+    private void terminate(MappedByteBuffer buffer, int pos) {
+        if (pos + 4 <= segmentSize) {
+            buffer.putInt(pos, 0);
+        }
+    }
+
+    private MappedByteBuffer map(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(segmentSize);
+            // The mapping remains valid once the file is closed:
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    segmentSize);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private File segmentFile(String prefix, long sequence) {
+        return new File(dir, String.format("%s%016d%s", prefix, sequence,
+                SUFFIX));
+    }
+
+    private Segment newSegment() throws IOException {
+        long sequence = nextSequence++;
+        File file = segmentFile(SEGMENT_PREFIX, sequence);
+        Segment spare = spares.poll();
+        MappedByteBuffer buffer;
+        if (spare != null && spare.file.renameTo(file)) {
+            buffer = spare.buffer;
+        } else {
+            buffer = map(file);
+        }
+        buffer.putInt(0, 0);
+        Segment segment = new Segment(sequence, file, buffer);
+        segments.add(segment);
+        return segment;
+    }
+
+    // Recycle or delete a segment whose records have all been consumed:
+    private void retire(Segment segment) {
+        if (spares.size() < maxSpareSegments) {
+            File file = segmentFile(SPARE_PREFIX, segment.sequence);
+            if (segment.file.renameTo(file)) {
+                segment.buffer.putInt(0, 0);
+                spares.add(new Segment(segment.sequence, file,
+                        segment.buffer));
+                return;
+            }
+        }
+        // (The mapping itself is released when the buffer is collected.)
+        if (!segment.file.delete()) {
+            LOGGER.warning("Could not delete " + segment.file);
+        }
+    }
+
+    // Drops consumed segments, returning the oldest with records, or null:
+    private Segment head() {
+        while (!segments.isEmpty()) {
+            Segment first = segments.peekFirst();
+            if (!first.isExhausted()) {
+                return first;
+            }
+            if (segments.size() == 1) {
+                // Start the last segment again, rather than replacing it:
+                first.readPosition = 0;
+                first.writePosition = 0;
+                first.buffer.putInt(0, 0);
+                return null;
+            }
+            retire(segments.removeFirst());
+        }
+        return null;
+    }
+
+    /**
+     * Add a record to the end of the journal.
+     *
+     * @param record
+     * @return true if the record was added, or false if the journal is full
+     * @throws IOException
+     *             if a new segment could not be created
+     */
+    public synchronized boolean append(byte[] record) throws IOException {
+        checkOpen();
+        int needed = HEADER_SIZE + record.length;
+        if (needed > segmentSize) {
+            throw new IllegalArgumentException("Record of " + record.length
+                    + " bytes is too large for segments of " + segmentSize);
+        }
+        Segment segment = segments.peekLast();
+        if (segment == null || segment.writePosition + needed > segmentSize) {
+            if ((segments.size() + 1L) * segmentSize > maxBytes) {
+                return false;
+            }
+            segment = newSegment();
+        }
+        MappedByteBuffer buffer = segment.buffer;
+        int pos = segment.writePosition;
+        slice(buffer, pos + HEADER_SIZE, record.length).put(record);
+        buffer.putInt(pos + 4, checksum(record));
+        terminate(buffer, pos + needed);
+        // Written last, so the record only appears once it is complete:
+        buffer.putInt(pos, record.length);
+        segment.writePosition = pos + needed;
+        pendingRecords++;
+        pendingBytes += record.length;
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * Read the oldest records that have not been consumed, without consuming
+     * them.
+     *
+     * @param max
+     *            the most records to return
+     * @return the records, oldest first
+     */
+    public synchronized List<byte[]> peek(int max) {
+        checkOpen();
+        List<byte[]> records = new ArrayList<byte[]>();
+        Iterator<Segment> it = segments.iterator();
+        while (records.size() < max && it.hasNext()) {
+            Segment segment = it.next();
+            int pos = segment.readPosition;
+            while (records.size() < max && pos < segment.writePosition) {
+                int length = segment.buffer.getInt(pos);
+                if (length > 0) {
+                    byte[] record = new byte[length];
+                    slice(segment.buffer, pos + HEADER_SIZE, length)
+                            .get(record);
+                    records.add(record);
+                }
+                pos += HEADER_SIZE + Math.abs(length);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Mark the oldest records as consumed, so they are not returned again.
+     *
+     * @param count
+     *            the number of records to consume, as returned by
+     *            {@link #peek(int)}
+     */
+    public synchronized void commit(int count) {
+        checkOpen();
+        for (int i = 0; i < count; i++) {
+            Segment segment = head();
+            if (segment == null) {
+                break;
+            }
+            int pos = segment.readPosition;
+            int length = segment.buffer.getInt(pos);
+            if (length > 0) {
+                segment.buffer.putInt(pos, -length);
+                pendingRecords--;
+                pendingBytes -= length;
+            } else {
+                // Already consumed, so does not count:
+                i--;
+            }
+            segment.readPosition = pos + HEADER_SIZE + Math.abs(length);
+            dirty = true;
+        }
+        head();
+    }
+
+    /**
+     * Write any changes to the segments out to disk.
+     */
+    public synchronized void force() {
+        if (closed || !dirty) {
+            return;
+        }
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+        dirty = false;
+    }
+
+    /**
+     *
+     * @return the number of records that have not been consumed
+     */
+    public long getPendingRecords() {
+        return pendingRecords;
+    }
+
+    /**
+     *
+     * @return the total size of the records that have not been consumed
+     */
+    public long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public synchronized int getSpareSegmentCount() {
+        return spares.size();
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Journal " + dir + " is closed.");
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        force();
+        closed = true;
+        segments.clear();
+        spares.clear();
+    }
+
+}
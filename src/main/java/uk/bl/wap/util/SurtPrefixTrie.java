@@ -0,0 +1,410 @@
+/**
+ *
+ */
+package uk.bl.wap.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An immutable radix trie of SURT prefixes, each mapped to a value.
+ *
+ * Lookups walk the trie once, so take time proportional to the length of the
+ * SURT rather than the number of prefixes, and do not allocate anything.
+ * Updates copy only the nodes along the path to the changed prefix, returning
+ * a new trie, so readers can carry on using the old one. Holders are expected
+ * to keep the current trie in a volatile field and swap in the new one.
+ *
+ * (Keys are handled as chars rather than bytes, as SURTs are ASCII once the
+ * URI has been escaped, and this avoids re-encoding each candidate SURT.)
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public final class SurtPrefixTrie<V> {
+
+    private static final char[] NO_KEYS = new char[0];
+
+    private static final Node[] NO_CHILDREN = new Node[0];
+
+    private static final class Node {
+        // The chars along the edge leading to this node:
+        private final String label;
+        // The first char of each child's label, sorted:
+        private final char[] keys;
+        private final Node[] children;
+        // Non-null if a prefix ends here:
+        private final Object value;
+
+        private Node(String label, char[] keys, Node[] children,
+                Object value) {
+            this.label = label;
+            this.keys = keys;
+            this.children = children;
+            this.value = value;
+        }
+
+        private Node withValue(Object newValue) {
+            return new Node(label, keys, children, newValue);
+        }
+
+        private Node withLabel(String newLabel) {
+            return new Node(newLabel, keys, children, value);
+        }
+
+        private Node withChild(int i, Node child) {
+            Node[] newChildren = children.clone();
+            newChildren[i] = child;
+            return new Node(label, keys, newChildren, value);
+        }
+
+        private Node insertChild(int i, Node child) {
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, i);
+            System.arraycopy(children, 0, newChildren, 0, i);
+            newKeys[i] = child.label.charAt(0);
+            newChildren[i] = child;
+            System.arraycopy(keys, i, newKeys, i + 1, keys.length - i);
+            System.arraycopy(children, i, newChildren, i + 1,
+                    children.length - i);
+            return new Node(label, newKeys, newChildren, value);
+        }
+
+        private Node removeChild(int i) {
+            char[] newKeys = new char[keys.length - 1];
+            Node[] newChildren = new Node[children.length - 1];
+            System.arraycopy(keys, 0, newKeys, 0, i);
+            System.arraycopy(children, 0, newChildren, 0, i);
+            System.arraycopy(keys, i + 1, newKeys, i, keys.length - i - 1);
+            System.arraycopy(children, i + 1, newChildren, i,
+                    children.length - i - 1);
+            return new Node(label, newKeys, newChildren, value);
+        }
+    }
+
+    private static final SurtPrefixTrie<Object> EMPTY = new SurtPrefixTrie<Object>(
+            new Node("", NO_KEYS, NO_CHILDREN, null), 0);
+
+    private final Node root;
+
+    private final int size;
+
+    private SurtPrefixTrie(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    /**
+     *
+     * @return the empty trie
+     */
+    @SuppressWarnings("unchecked")
+    public static <V> SurtPrefixTrie<V> empty() {
+        return (SurtPrefixTrie<V>) EMPTY;
+    }
+
+    /**
+     * Build a trie from a map of prefixes to values, in one pass.
+     *
+     * @param map
+     * @return the new trie
+     */
+    public static <V> SurtPrefixTrie<V> of(Map<String, ? extends V> map) {
+        SortedMap<String, ? extends V> sorted;
+        if (map instanceof SortedMap
+                && ((SortedMap<String, ? extends V>) map)
+                        .comparator() == null) {
+            sorted = (SortedMap<String, ? extends V>) map;
+        } else {
+            sorted = new TreeMap<String, V>(map);
+        }
+        String[] keys = new String[sorted.size()];
+        Object[] values = new Object[sorted.size()];
+        int n = 0;
+        for (Map.Entry<String, ? extends V> entry : sorted.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                continue;
+            }
+            keys[n] = entry.getKey();
+            values[n] = entry.getValue();
+            n++;
+        }
+        if (n == 0) {
+            return empty();
+        }
+        int lo = 0;
+        Object rootValue = null;
+        if (keys[0].isEmpty()) {
+            rootValue = values[0];
+            lo = 1;
+        }
+        Node root = new Node("", NO_KEYS, NO_CHILDREN, rootValue);
+        root = buildChildren(root, keys, values, lo, n, 0);
+        return new SurtPrefixTrie<V>(root, n);
+    }
+
+    /**
+     * Build a trie from a set of prefixes, where each prefix maps to itself.
+     *
+     * @param prefixes
+     * @return the new trie
+     */
+    public static SurtPrefixTrie<String> ofPrefixes(
+            Iterable<String> prefixes) {
+        SortedMap<String, String> map = new TreeMap<String, String>();
+        for (String prefix : prefixes) {
+            map.put(prefix, prefix);
+        }
+        return of(map);
+    }
+
+    // Adds the nodes for the sorted keys[lo,hi), which all match up to pos:
+    private static Node buildChildren(Node parent, String[] keys,
+            Object[] values, int lo, int hi, int pos) {
+        int groups = 0;
+        for (int i = lo; i < hi; i++) {
+            if (i == lo || keys[i].charAt(pos) != keys[i - 1].charAt(pos)) {
+                groups++;
+            }
+        }
+        char[] childKeys = new char[groups];
+        Node[] children = new Node[groups];
+        int g = 0;
+        int start = lo;
+        for (int i = lo + 1; i <= hi; i++) {
+            if (i == hi || keys[i].charAt(pos) != keys[start].charAt(pos)) {
+                childKeys[g] = keys[start].charAt(pos);
+                children[g] = buildNode(keys, values, start, i, pos);
+                g++;
+                start = i;
+            }
+        }
+        return new Node(parent.label, childKeys, children, parent.value);
+    }
+
+    private static Node buildNode(String[] keys, Object[] values, int lo,
+            int hi, int pos) {
+        // As the keys are sorted, the first and last share the least:
+        int end = pos + commonLength(keys[lo], pos, keys[hi - 1], pos);
+        Object value = null;
+        if (keys[lo].length() == end) {
+            value = values[lo];
+            lo++;
+        }
+        Node node = new Node(keys[hi - 1].substring(pos, end), NO_KEYS,
+                NO_CHILDREN, value);
+        if (lo < hi) {
+            node = buildChildren(node, keys, values, lo, hi, end);
+        }
+        return node;
+    }
+
+    private static int commonLength(String a, int aFrom, String b,
+            int bFrom) {
+        int max = Math.min(a.length() - aFrom, b.length() - bFrom);
+        int i = 0;
+        while (i < max && a.charAt(aFrom + i) == b.charAt(bFrom + i)) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     *
+     * @return the number of prefixes in the trie
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Find the value of the longest prefix of the given SURT.
+     *
+     * @param surt
+     * @return the value, or null if no prefix matches
+     */
+    @SuppressWarnings("unchecked")
+    public V longestPrefixValue(String surt) {
+        Node node = root;
+        Object found = node.value;
+        int pos = 0;
+        while (pos < surt.length()) {
+            int i = Arrays.binarySearch(node.keys, surt.charAt(pos));
+            if (i < 0) {
+                break;
+            }
+            node = node.children[i];
+            String label = node.label;
+            if (!surt.regionMatches(pos, label, 0, label.length())) {
+                break;
+            }
+            pos += label.length();
+            if (node.value != null) {
+                found = node.value;
+            }
+        }
+        return (V) found;
+    }
+
+    /**
+     *
+     * @param surt
+     * @return true if any prefix in the trie is a prefix of the given SURT
+     */
+    public boolean containsPrefixOf(String surt) {
+        return longestPrefixValue(surt) != null;
+    }
+
+    /**
+     * Add the values of every prefix of the given SURT to a collection,
+     * shortest prefix first.
+     *
+     * @param surt
+     * @param values
+     * @return the number of values added
+     */
+    @SuppressWarnings("unchecked")
+    public int collectPrefixValues(String surt,
+            Collection<? super V> values) {
+        int count = 0;
+        Node node = root;
+        if (node.value != null) {
+            values.add((V) node.value);
+            count++;
+        }
+        int pos = 0;
+        while (pos < surt.length()) {
+            int i = Arrays.binarySearch(node.keys, surt.charAt(pos));
+            if (i < 0) {
+                break;
+            }
+            node = node.children[i];
+            String label = node.label;
+            if (!surt.regionMatches(pos, label, 0, label.length())) {
+                break;
+            }
+            pos += label.length();
+            if (node.value != null) {
+                values.add((V) node.value);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     *
+     * @param prefix
+     * @return the value for exactly this prefix, or null
+     */
+    @SuppressWarnings("unchecked")
+    public V get(String prefix) {
+        Node node = root;
+        int pos = 0;
+        while (pos < prefix.length()) {
+            int i = Arrays.binarySearch(node.keys, prefix.charAt(pos));
+            if (i < 0) {
+                return null;
+            }
+            node = node.children[i];
+            String label = node.label;
+            if (!prefix.regionMatches(pos, label, 0, label.length())) {
+                return null;
+            }
+            pos += label.length();
+        }
+        return (V) node.value;
+    }
+
+    /**
+     *
+     * @param prefix
+     * @param value
+     *            the value, which must not be null
+     * @return a trie with the given prefix mapped to the given value
+     */
+    public SurtPrefixTrie<V> with(String prefix, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException(
+                    "Null values are not supported, use without() instead.");
+        }
+        boolean added = get(prefix) == null;
+        return new SurtPrefixTrie<V>(put(root, prefix, 0, value),
+                added ? size + 1 : size);
+    }
+
+    /**
+     *
+     * @param prefix
+     * @return a trie without the given prefix (or this trie if the prefix is
+     *         not present)
+     */
+    public SurtPrefixTrie<V> without(String prefix) {
+        if (get(prefix) == null) {
+            return this;
+        }
+        return new SurtPrefixTrie<V>(remove(root, prefix, 0, true),
+                size - 1);
+    }
+
+    // Returns a copy of node with key mapped to value, where the node has
+    // matched key up to pos:
+    private static Node put(Node node, String key, int pos, Object value) {
+        if (pos == key.length()) {
+            return node.withValue(value);
+        }
+        int i = Arrays.binarySearch(node.keys, key.charAt(pos));
+        if (i < 0) {
+            return node.insertChild(-(i + 1), new Node(key.substring(pos),
+                    NO_KEYS, NO_CHILDREN, value));
+        }
+        Node child = node.children[i];
+        String label = child.label;
+        int common = commonLength(key, pos, label, 0);
+        if (common == label.length()) {
+            return node.withChild(i, put(child, key, pos + common, value));
+        }
+        // Split the edge where the key diverges from it:
+        Node tail = child.withLabel(label.substring(common));
+        Node middle = new Node(label.substring(0, common),
+                new char[] { tail.label.charAt(0) }, new Node[] { tail },
+                null);
+        return node.withChild(i, put(middle, key, pos + common, value));
+    }
+
+    // Returns a copy of node without key, or null if the node is now unused:
+    private static Node remove(Node node, String key, int pos,
+            boolean isRoot) {
+        Node updated;
+        if (pos == key.length()) {
+            updated = node.withValue(null);
+        } else {
+            int i = Arrays.binarySearch(node.keys, key.charAt(pos));
+            Node child = node.children[i];
+            Node newChild = remove(child, key, pos + child.label.length(),
+                    false);
+            if (newChild == null) {
+                updated = node.removeChild(i);
+            } else {
+                updated = node.withChild(i, newChild);
+            }
+        }
+        // Keep the root, but tidy up any other nodes that are now redundant:
+        if (isRoot || updated.value != null) {
+            return updated;
+        }
+        if (updated.children.length == 0) {
+            return null;
+        }
+        if (updated.children.length == 1) {
+            Node only = updated.children[0];
+            return only.withLabel(updated.label + only.label);
+        }
+        return updated;
+    }
+
+}
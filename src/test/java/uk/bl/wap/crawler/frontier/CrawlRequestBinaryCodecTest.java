@@ -0,0 +1,145 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.frontier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class CrawlRequestBinaryCodecTest {
+
+    private CrawlRequest exampleRequest() throws IOException {
+        CrawlRequest request = new CrawlRequest();
+        new CrawlRequestDecoder().decode(
+                CrawlRequestDecoderTest.EXAMPLE.getBytes("UTF-8"), request);
+        request.getHeritableData().put("count", 12);
+        request.setResetQuotas(Boolean.TRUE);
+        return request;
+    }
+
+    private void roundTrip(boolean compress) throws IOException {
+        CrawlRequest request = exampleRequest();
+        byte[] data = CrawlRequestBinaryCodec.encode(request, compress);
+        assertTrue(CrawlRequestBinaryCodec.isBinary(data));
+
+        // The usual decoder should detect the binary format:
+        CrawlRequest decoded = new CrawlRequest();
+        assertTrue(new CrawlRequestDecoder().decode(data, decoded));
+        assertEquals(request.toString(), decoded.toString());
+        assertEquals(request.getHeaders(), decoded.getHeaders());
+        assertEquals(request.getHeritableData(), decoded.getHeritableData());
+        assertEquals(Boolean.TRUE, decoded.getResetQuotas());
+        assertEquals(new HashSet<String>(Arrays.asList("source", "heritable")),
+                decoded.getHeritableData().get("heritable"));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        roundTrip(false);
+    }
+
+    @Test
+    public void testCompressedRoundTrip() throws IOException {
+        roundTrip(true);
+    }
+
+    @Test
+    public void testSmallerThanJson() throws IOException {
+        byte[] data = CrawlRequestBinaryCodec.encode(exampleRequest(), false);
+        assertTrue(data.length < CrawlRequestDecoderTest.EXAMPLE
+                .getBytes("UTF-8").length);
+    }
+
+    @Test
+    public void testNonGet() throws IOException {
+        CrawlRequest request = exampleRequest();
+        request.setMethod("POST");
+        byte[] data = CrawlRequestBinaryCodec.encode(request, false);
+        assertFalse(CrawlRequestBinaryCodec.decode(data, new CrawlRequest()));
+    }
+
+    @Test
+    public void testBatchRoundTrip() throws IOException {
+        CrawlRequest parent = new CrawlRequest();
+        parent.setMethod("GET");
+        parent.setParentUrl("https://archive.org/");
+        parent.setPathFromSeed("L");
+        parent.getHeritableData().put("source", "https://archive.org/");
+        List<CrawlRequest> batch = new ArrayList<CrawlRequest>();
+        for (int i = 0; i < 100; i++) {
+            CrawlRequest request = new CrawlRequest();
+            request.setUrl("https://archive.org/details/" + i);
+            request.setHop(i % 2 == 0 ? "L" : "E");
+            request.setForceFetch(i == 3);
+            batch.add(request);
+        }
+        byte[] data = CrawlRequestBinaryCodec.encodeBatch(parent, batch, true);
+        assertTrue(CrawlRequestBinaryCodec.isBatch(data));
+
+        List<CrawlRequest> decoded = new ArrayList<CrawlRequest>();
+        assertEquals(100, new CrawlRequestDecoder().decodeAll(data, decoded));
+        for (int i = 0; i < 100; i++) {
+            CrawlRequest request = batch.get(i);
+            request.inheritFrom(parent);
+            assertEquals(request.toString(), decoded.get(i).toString());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testBatchIsNotASingleRequest() throws IOException {
+        CrawlRequest parent = new CrawlRequest();
+        parent.setMethod("GET");
+        byte[] data = CrawlRequestBinaryCodec.encodeBatch(parent,
+                Arrays.asList(exampleRequest()), false);
+        CrawlRequestBinaryCodec.decode(data, new CrawlRequest());
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncated() throws IOException {
+        byte[] data = CrawlRequestBinaryCodec.encode(exampleRequest(), false);
+        CrawlRequestBinaryCodec.decode(Arrays.copyOf(data, data.length - 4),
+                new CrawlRequest());
+    }
+
+    @Test(expected = IOException.class)
+    public void testImplausibleBodyLength() throws IOException {
+        // Claims a 2GB body, compressed into a couple of bytes:
+        byte[] data = { CrawlRequestBinaryCodec.MAGIC,
+                CrawlRequestBinaryCodec.VERSION, 1, (byte) 0xFF, (byte) 0xFF,
+                (byte) 0xFF, (byte) 0xFF, 0x07, 0, 0 };
+        CrawlRequestBinaryCodec.decode(data, new CrawlRequest());
+    }
+
+    @Test(expected = IOException.class)
+    public void testImplausibleCount() throws IOException {
+        CrawlRequest request = new CrawlRequest();
+        request.setUrl("http://www.bl.uk/");
+        request.setMethod("GET");
+        byte[] data = CrawlRequestBinaryCodec.encode(request, false);
+        // Ends with the (empty) dictionary and heritable data sizes. Claim a
+        // dictionary of 2^31 - 1 entries instead:
+        byte[] corrupt = Arrays.copyOf(data, data.length + 4);
+        int i = data.length - 2;
+        corrupt[i++] = (byte) 0xFF;
+        corrupt[i++] = (byte) 0xFF;
+        corrupt[i++] = (byte) 0xFF;
+        corrupt[i++] = (byte) 0xFF;
+        corrupt[i++] = 0x07;
+        corrupt[i] = 0;
+        CrawlRequestBinaryCodec.decode(corrupt, new CrawlRequest());
+    }
+
+}
@@ -0,0 +1,102 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.frontier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class CrawlRequestCoalescerTest {
+
+    private CrawlRequest request(String url, String pathFromSeed,
+            boolean forceFetch, boolean seed) {
+        CrawlRequest request = new CrawlRequest();
+        request.setUrl(url);
+        request.setMethod("GET");
+        request.setPathFromSeed(pathFromSeed);
+        request.setHop("E");
+        request.setForceFetch(forceFetch);
+        request.setSeed(seed);
+        return request;
+    }
+
+    @Test
+    public void testBatchCoalescing() {
+        CrawlRequestCoalescer<Integer> c = new CrawlRequestCoalescer<Integer>(
+                true, 0, 0);
+        assertTrue(c.add(request("http://a/", "LLL", false, false), 1));
+        assertTrue(c.add(request("http://b/", "L", false, false), 2));
+        assertFalse(c.add(request("http://a/#top", "L", false, false), 3));
+        assertFalse(c.add(request("http://a/", "LLLL", true, false), 4));
+        assertFalse(c.add(request("http://a/", "", false, true), 5));
+
+        List<CrawlRequestCoalescer.Entry<Integer>> batch = c.drain();
+        assertEquals(2, batch.size());
+        CrawlRequestCoalescer.Entry<Integer> a = batch.get(0);
+        assertEquals(Arrays.asList(1, 3, 4, 5), a.getSources());
+        // The forced fetch is the strongest, but picks up the seed flag:
+        assertEquals("LLLL", a.getRequest().getPathFromSeed());
+        assertTrue(a.getRequest().isForceFetch());
+        assertTrue(a.getRequest().isSeed());
+        assertEquals("http://b/", batch.get(1).getRequest().getUrl());
+        assertEquals(3, c.getBatchDuplicates());
+
+        assertTrue(c.drain().isEmpty());
+    }
+
+    @Test
+    public void testCanonicalKey() {
+        assertEquals(CrawlRequestCoalescer.canonicalKey("http://a/"),
+                CrawlRequestCoalescer.canonicalKey("HTTP://A:80/#top"));
+    }
+
+    @Test
+    public void testNearestSeedIsKept() {
+        CrawlRequestCoalescer<Integer> c = new CrawlRequestCoalescer<Integer>(
+                true, 0, 0);
+        c.add(request("http://a/", "LLL", false, false), 1);
+        c.add(request("http://a/", "L", false, false), 2);
+        assertEquals("L", c.drain().get(0).getRequest().getPathFromSeed());
+    }
+
+    @Test
+    public void testWindow() {
+        CrawlRequestCoalescer<Integer> c = new CrawlRequestCoalescer<Integer>(
+                true, 60000, 100);
+        c.add(request("http://a/", "L", false, false), 1);
+        assertFalse(c.drain().get(0).isSuppressed());
+
+        // Repeats are suppressed, unless they are stronger:
+        c.add(request("http://a/", "L", false, false), 2);
+        c.add(request("http://b/", "L", true, false), 3);
+        List<CrawlRequestCoalescer.Entry<Integer>> batch = c.drain();
+        assertTrue(batch.get(0).isSuppressed());
+        assertFalse(batch.get(1).isSuppressed());
+
+        c.add(request("http://a/", "L", true, false), 4);
+        assertFalse(c.drain().get(0).isSuppressed());
+        assertEquals(1, c.getWindowDuplicates());
+    }
+
+    @Test
+    public void testDisabled() {
+        CrawlRequestCoalescer<Integer> c = new CrawlRequestCoalescer<Integer>(
+                false, 60000, 100);
+        c.add(request("http://a/", "L", false, false), 1);
+        c.add(request("http://a/", "L", false, false), 2);
+        assertEquals(2, c.drain().size());
+        c.add(request("http://a/", "L", false, false), 3);
+        assertFalse(c.drain().get(0).isSuppressed());
+    }
+
+}
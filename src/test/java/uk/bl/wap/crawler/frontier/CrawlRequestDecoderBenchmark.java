@@ -0,0 +1,137 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.frontier;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the streaming {@link CrawlRequestDecoder} with the previous
+ * String/org.json decoding of crawl requests.
+ *
+ * This is not run as part of the unit tests. Run the main method from the
+ * test classpath, e.g. after {@code mvn test-compile}. Add
+ * {@code -prof gc} (via {@code .addProfiler("gc")}) to compare allocation
+ * rates as well as throughput.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CrawlRequestDecoderBenchmark {
+
+    private byte[] message;
+
+    private CrawlRequestDecoder decoder;
+
+    private CrawlRequest request;
+
+    @Setup
+    public void setup() throws IOException {
+        message = CrawlRequestDecoderTest.EXAMPLE.getBytes("UTF-8");
+        decoder = new CrawlRequestDecoder();
+        request = new CrawlRequest();
+    }
+
+    @Benchmark
+    public void streamingDecoder(Blackhole bh) throws IOException {
+        bh.consume(decoder.decode(message, request));
+        bh.consume(request.getHeritableData());
+    }
+
+    /**
+     * The previous approach: decode to a String, parse to a JSONObject, then
+     * walk it to pull out the headers, sheets and heritable data.
+     */
+    @Benchmark
+    public void orgJson(Blackhole bh) throws IOException {
+        JSONObject jo = new JSONObject(new String(message, "UTF-8"));
+        if (!"GET".equals(jo.getString("method"))) {
+            return;
+        }
+        bh.consume(jo.getString("url"));
+        bh.consume(jo.getString("parentUrl"));
+        bh.consume(jo.optString("hop", ""));
+        JSONObject parentUrlMetadata = jo.getJSONObject("parentUrlMetadata");
+        bh.consume(parentUrlMetadata.getString("pathFromSeed"));
+
+        Map<String, Object> data = new HashMap<String, Object>();
+        JSONObject heritableData = parentUrlMetadata
+                .getJSONObject("heritableData");
+        for (Object key : heritableData.keySet()) {
+            Object value = heritableData.get(key.toString());
+            if (value instanceof JSONArray) {
+                Set<String> valueSet = new HashSet<String>();
+                JSONArray arr = ((JSONArray) value);
+                for (int i = 0; i < arr.length(); i++) {
+                    valueSet.add(arr.getString(i));
+                }
+                data.put(key.toString(), valueSet);
+            } else {
+                data.put(key.toString(), value);
+            }
+        }
+        bh.consume(data);
+
+        if (jo.has("headers")) {
+            JSONObject joHeaders = jo.getJSONObject("headers");
+            Map<String, String> headers = new HashMap<String, String>();
+            for (Object key : joHeaders.keySet()) {
+                headers.put(key.toString(),
+                        joHeaders.getString(key.toString()));
+            }
+            bh.consume(headers);
+        }
+        if (jo.has("sheets")) {
+            List<String> sheetNames = new LinkedList<String>();
+            JSONArray jsn = jo.getJSONArray("sheets");
+            for (int i = 0; i < jsn.length(); i++) {
+                sheetNames.add(jsn.getString(i));
+            }
+            bh.consume(sheetNames);
+        }
+        if (jo.has("recrawlInterval")) {
+            bh.consume(jo.getInt("recrawlInterval"));
+        }
+        bh.consume(jo.optBoolean("forceFetch"));
+        bh.consume(jo.optBoolean("isSeed"));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(CrawlRequestDecoderBenchmark.class.getSimpleName())
+                .build();
+        new Runner(opt).run();
+    }
+
+}
@@ -0,0 +1,149 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.frontier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.archive.modules.CrawlURI;
+import org.junit.Test;
+
+import uk.bl.wap.modules.deciderules.RecentlySeenDecideRule;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class CrawlRequestDecoderTest {
+
+    static final String EXAMPLE = "{\"headers\": {\"Referer\": \"https://archive.org/\", "
+            + "\"Host\": \"archive.org\", \"host\": \"archive.org\", "
+            + "\"Accept\": \"image/webp,*/*;q=0.8\"}, "
+            + "\"url\": \"https://archive.org/details/etree\", "
+            + "\"method\": \"GET\", \"hop\": \"L\", \"isSeed\": true, "
+            + "\"forceFetch\": \"true\", \"recrawlInterval\": \"3600\", "
+            + "\"sheets\": [\"higherLimit\"], \"unknown\": {\"a\": [1, 2]}, "
+            + "\"parentUrl\": \"https://archive.org/\", "
+            + "\"parentUrlMetadata\": {\"pathFromSeed\": \"\", "
+            + "\"heritableData\": {\"source\": \"https://archive.org/\", "
+            + "\"heritable\": [\"source\", \"heritable\"]}}}";
+
+    private CrawlRequestDecoder decoder = new CrawlRequestDecoder();
+
+    @Test
+    public void testDecode() throws IOException {
+        CrawlRequest request = new CrawlRequest();
+        assertTrue(decoder.decode(EXAMPLE.getBytes("UTF-8"), request));
+        assertEquals("https://archive.org/details/etree", request.getUrl());
+        assertEquals("https://archive.org/", request.getParentUrl());
+        assertEquals("", request.getPathFromSeed());
+        assertEquals("L", request.getHop());
+        assertTrue(request.isSeed());
+        assertTrue(request.isForceFetch());
+        assertEquals(3600, request.getRecrawlInterval().intValue());
+        assertEquals(Arrays.asList("higherLimit"), request.getSheets());
+        assertEquals("https://archive.org/",
+                request.getHeritableData().get("source"));
+        assertEquals(
+                new HashSet<String>(Arrays.asList("source", "heritable")),
+                request.getHeritableData().get("heritable"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testToCrawlURI() throws IOException {
+        CrawlRequest request = new CrawlRequest();
+        decoder.decode(EXAMPLE.getBytes("UTF-8"), request);
+        CrawlURI curi = request.toCrawlURI();
+        assertEquals("https://archive.org/details/etree", curi.getURI());
+        assertEquals("L", curi.getPathFromSeed());
+        assertTrue(curi.isSeed());
+        assertTrue(curi.forceFetch());
+        assertEquals(3600, curi.getData()
+                .get(RecentlySeenDecideRule.RECRAWL_INTERVAL));
+        Map<String, String> headers = (Map<String, String>) curi.getData()
+                .get("customHttpRequestHeaders");
+        assertEquals("https://archive.org/", headers.get("Referer"));
+        assertFalse(headers.containsKey("host"));
+    }
+
+    @Test
+    public void testNonGetAndReuse() throws IOException {
+        CrawlRequest request = new CrawlRequest();
+        assertFalse(decoder.decode(
+                "{\"method\": \"POST\", \"url\": \"http://example.com/\"}"
+                        .getBytes("UTF-8"),
+                request));
+        // Parsing stopped at the method:
+        assertNull(request.getUrl());
+
+        // Re-using the request clears out the previous values:
+        decoder.decode(EXAMPLE.getBytes("UTF-8"), request);
+        assertTrue(decoder.decode(
+                "{\"url\": \"http://example.com/\", \"method\": \"GET\"}"
+                        .getBytes("UTF-8"),
+                request));
+        assertNull(request.getSheets());
+        assertNull(request.getRecrawlInterval());
+        assertTrue(request.getHeritableData().isEmpty());
+    }
+
+    @Test
+    public void testDecodeBatch() throws IOException {
+        String batch = "{\"method\": \"GET\", "
+                + "\"parentUrl\": \"https://archive.org/\", "
+                + "\"parentUrlMetadata\": {\"pathFromSeed\": \"L\", "
+                + "\"heritableData\": {\"source\": \"https://archive.org/\"}}, "
+                + "\"urls\": [{\"url\": \"https://archive.org/a\", \"hop\": \"L\"}, "
+                + "\"ignored\", "
+                + "{\"url\": \"https://archive.org/b.css\", \"hop\": \"E\", "
+                + "\"forceFetch\": true, \"headers\": {\"Referer\": \"x\"}}]}";
+        List<CrawlRequest> requests = new ArrayList<CrawlRequest>();
+        assertEquals(2, decoder.decodeAll(batch.getBytes("UTF-8"), requests));
+        CrawlRequest first = requests.get(0);
+        assertEquals("https://archive.org/a", first.getUrl());
+        assertEquals("https://archive.org/", first.getParentUrl());
+        assertEquals("L", first.getPathFromSeed());
+        assertEquals("L", first.getHop());
+        assertTrue(first.isGet());
+        assertFalse(first.isForceFetch());
+        assertEquals("https://archive.org/",
+                first.getHeritableData().get("source"));
+        CrawlRequest second = requests.get(1);
+        assertEquals("E", second.getHop());
+        assertTrue(second.isForceFetch());
+        assertEquals("x", second.getHeaders().get("Referer"));
+        assertEquals("https://archive.org/",
+                second.getHeritableData().get("source"));
+    }
+
+    @Test
+    public void testDecodeAllSingle() throws IOException {
+        List<CrawlRequest> requests = new ArrayList<CrawlRequest>();
+        assertEquals(1,
+                decoder.decodeAll(EXAMPLE.getBytes("UTF-8"), requests));
+        CrawlRequest request = new CrawlRequest();
+        decoder.decode(EXAMPLE.getBytes("UTF-8"), request);
+        assertEquals(request.toString(), requests.get(0).toString());
+
+        String post = EXAMPLE.replace("\"GET\"", "\"POST\"");
+        assertEquals(0, decoder.decodeAll(post.getBytes("UTF-8"), requests));
+        assertEquals(1, requests.size());
+    }
+
+    @Test(expected = IOException.class)
+    public void testInvalid() throws IOException {
+        decoder.decode("[\"GET\"]".getBytes("UTF-8"), new CrawlRequest());
+    }
+
+}
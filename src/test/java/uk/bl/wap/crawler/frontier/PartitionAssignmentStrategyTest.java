@@ -0,0 +1,66 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.frontier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class PartitionAssignmentStrategyTest {
+
+    private void assertCoversAllPartitions(
+            PartitionAssignmentStrategy strategy, int numPartitions,
+            int consumerGroupSize) {
+        Set<Integer> seen = new HashSet<Integer>();
+        for (List<Integer> parts : strategy
+                .getAssignments(numPartitions, consumerGroupSize).values()) {
+            for (Integer p : parts) {
+                assertTrue("Partition " + p + " assigned twice", seen.add(p));
+            }
+        }
+        assertEquals(numPartitions, seen.size());
+    }
+
+    @Test
+    public void testRangeIncludesRemainder() {
+        RangePartitionAssignment range = new RangePartitionAssignment();
+        // The same ranges as before, plus the left-over partition:
+        assertEquals(Arrays.asList(0, 1, 2, 9), range.assign(10, 1, 3));
+        assertEquals(Arrays.asList(3, 4, 5), range.assign(10, 2, 3));
+        assertEquals(Arrays.asList(6, 7, 8), range.assign(10, 3, 3));
+        for (int consumers = 1; consumers <= 12; consumers++) {
+            assertCoversAllPartitions(range, 10, consumers);
+        }
+    }
+
+    @Test
+    public void testRendezvousOnlyMovesToNewConsumer() {
+        RendezvousPartitionAssignment rendezvous = new RendezvousPartitionAssignment();
+        for (int consumers = 1; consumers <= 12; consumers++) {
+            assertCoversAllPartitions(rendezvous, 64, consumers);
+        }
+        // Growing from 3 to 4 consumers only moves partitions to consumer 4:
+        for (int p = 0; p < 64; p++) {
+            int before = rendezvous.ownerOf(p, 3);
+            int after = rendezvous.ownerOf(p, 4);
+            assertTrue(after == before || after == 4);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBadConsumerId() {
+        new RangePartitionAssignment().assign(10, 4, 3);
+    }
+
+}
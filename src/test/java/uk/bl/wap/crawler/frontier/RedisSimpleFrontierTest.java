@@ -0,0 +1,324 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.frontier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.archive.modules.CrawlURI;
+import org.archive.net.UURIFactory;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.lambdaworks.redis.RedisClient;
+import com.lambdaworks.redis.RedisConnection;
+import com.lambdaworks.redis.RedisException;
+import com.lambdaworks.redis.RedisURI;
+
+import uk.bl.wap.crawler.frontier.RedisSimpleFrontier.NothingScheduledException;
+
+/**
+ * Runs the frontier scripts against a real Redis (3.0.2 or later, as
+ * RESCHEDULE and RELEASE use ZADD CH), which can be set via the
+ * redis.test.endpoint system property or the REDIS_TEST_ENDPOINT environment
+ * variable. The tests use DB 15, which is flushed before and after each one,
+ * and are skipped if no Redis can be reached.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class RedisSimpleFrontierTest {
+
+    private static final int DB = 15;
+
+    private static final String Q = "uk,bl,www,";
+
+    private static final String QUEUE_KEY = "q:" + Q + ":urls";
+
+    private static final String A = "http://www.bl.uk/a";
+
+    private static final String B = "http://www.bl.uk/b";
+
+    private String endpoint;
+
+    private RedisClient client;
+
+    private RedisConnection<String, String> redis;
+
+    private RedisSimpleFrontier frontier;
+
+    @Before
+    public void setUp() {
+        endpoint = System.getProperty("redis.test.endpoint",
+                System.getenv("REDIS_TEST_ENDPOINT"));
+        if (endpoint == null) {
+            endpoint = "redis://localhost:6379";
+        }
+        RedisURI uri = RedisURI.create(endpoint);
+        uri.setDatabase(DB);
+        client = RedisClient.create(uri);
+        try {
+            redis = client.connect();
+        } catch (RedisException e) {
+            client.shutdown();
+            client = null;
+            Assume.assumeNoException("No test Redis at " + endpoint, e);
+        }
+        redis.flushdb();
+
+        frontier = new RedisSimpleFrontier();
+        frontier.setRedisEndpoint(endpoint);
+        frontier.setDB(DB);
+        frontier.setMaxWaitMs(100);
+        frontier.start();
+    }
+
+    @After
+    public void tearDown() {
+        if (frontier != null) {
+            frontier.stop();
+        }
+        if (redis != null) {
+            redis.flushdb();
+            redis.close();
+        }
+        if (client != null) {
+            client.shutdown();
+        }
+    }
+
+    private static CrawlURI crawlURI(String url) throws Exception {
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance(url));
+        curi.setClassKey(Q);
+        return curi;
+    }
+
+    private static String objectKey(String uri) {
+        return "u:object:" + uri;
+    }
+
+    @Test
+    public void testEnqueue() throws Exception {
+        assertTrue(frontier.enqueue(crawlURI(A)));
+        assertFalse("Already queued", frontier.enqueue(crawlURI(A)));
+        assertTrue(frontier.enqueue(crawlURI(B)));
+
+        assertEquals(Long.valueOf(2), redis.zcard(QUEUE_KEY));
+        assertNotNull(redis.get(objectKey(A)));
+        assertNotNull(redis.get(objectKey(B)));
+        assertNotNull(redis.zscore("qs:scheduled", Q));
+        assertNull(redis.zscore("qs:active", Q));
+        assertEquals(0, frontier.checkConsistency(false));
+    }
+
+    @Test
+    public void testDue() throws Exception {
+        frontier.enqueue(crawlURI(A));
+
+        CrawlURI curi = frontier.due();
+        assertNotNull(curi);
+        assertEquals(A, curi.getURI());
+        assertEquals(Q, curi.getClassKey());
+        assertNull(redis.zscore("qs:scheduled", Q));
+        assertNotNull(redis.zscore("qs:active", Q));
+
+        // The only queue is active, so wait rather than give up:
+        assertNull(frontier.due());
+    }
+
+    @Test(expected = NothingScheduledException.class)
+    public void testDueNothingScheduled() throws Exception {
+        frontier.due();
+    }
+
+    @Test
+    public void testDueNotYet() throws Exception {
+        frontier.enqueue(crawlURI(A));
+        frontier.releaseQueue(Q, System.currentTimeMillis() + 60000);
+
+        assertNull(frontier.due());
+        assertNotNull(redis.zscore("qs:scheduled", Q));
+    }
+
+    @Test
+    public void testDueRetiresEmptyQueue() throws Exception {
+        frontier.enqueue(crawlURI(A));
+        CrawlURI other = new CrawlURI(
+                UURIFactory.getInstance("http://www.example.com/"));
+        other.setClassKey("com,example,www,");
+        frontier.enqueue(other);
+        redis.zrem(QUEUE_KEY, A);
+        redis.del(objectKey(A));
+        // Make sure the empty queue is looked at first:
+        redis.zadd("qs:scheduled", 0, Q);
+
+        // The empty queue is retired, and the other one handed out:
+        CrawlURI curi = frontier.due();
+        assertNotNull(curi);
+        assertEquals("http://www.example.com/", curi.getURI());
+        assertNull(redis.zscore("qs:scheduled", Q));
+        assertEquals(Q, redis.get("qs:retired"));
+    }
+
+    @Test
+    public void testDueSkipsMissingCrawlURI() throws Exception {
+        frontier.enqueue(crawlURI(A));
+        frontier.enqueue(crawlURI(B));
+        redis.del(objectKey(A));
+
+        CrawlURI curi = frontier.due();
+        assertNotNull(curi);
+        assertEquals(B, curi.getURI());
+        assertNull(redis.zscore(QUEUE_KEY, A));
+    }
+
+    @Test
+    public void testDueDropsUnreadableCrawlURI() throws Exception {
+        frontier.enqueue(crawlURI(A));
+        frontier.enqueue(crawlURI(B));
+        redis.set(objectKey(A), "not a CrawlURI");
+
+        CrawlURI curi = frontier.due();
+        assertNotNull(curi);
+        assertEquals(B, curi.getURI());
+        assertNull(redis.zscore(QUEUE_KEY, A));
+        assertNull(redis.get(objectKey(A)));
+    }
+
+    @Test
+    public void testReschedule() throws Exception {
+        frontier.enqueue(crawlURI(A));
+        CrawlURI curi = frontier.due();
+        long fetchTime = System.currentTimeMillis() + 60000;
+        curi.incrementFetchAttempts();
+        frontier.reschedule(curi, fetchTime);
+
+        assertNull(redis.zscore("qs:active", Q));
+        assertEquals(Double.valueOf(fetchTime),
+                redis.zscore("qs:scheduled", Q));
+        assertNull("Not due yet", frontier.due());
+
+        // Bring it forward, and the updated CrawlURI is handed out:
+        frontier.releaseQueue(Q, System.currentTimeMillis());
+        curi = frontier.due();
+        assertNotNull(curi);
+        assertEquals(A, curi.getURI());
+        assertEquals(1, curi.getFetchAttempts());
+    }
+
+    @Test
+    public void testDequeueAndRelease() throws Exception {
+        frontier.enqueue(crawlURI(A));
+        frontier.due();
+        frontier.dequeue(Q, A);
+
+        assertEquals(Long.valueOf(0), redis.zcard(QUEUE_KEY));
+        assertNull(redis.get(objectKey(A)));
+
+        frontier.releaseQueue(Q, System.currentTimeMillis());
+        assertNull(redis.zscore("qs:active", Q));
+        assertNotNull(redis.zscore("qs:scheduled", Q));
+
+        // The queue is now empty, so gets retired, and nothing is left:
+        try {
+            frontier.due();
+            fail("Expected nothing to be scheduled");
+        } catch (NothingScheduledException e) {
+            assertEquals(Q, redis.get("qs:retired"));
+        }
+    }
+
+    @Test
+    public void testRetire() throws Exception {
+        frontier.enqueue(crawlURI(A));
+        frontier.due();
+        frontier.retireQueue(Q);
+
+        assertNull(redis.zscore("qs:active", Q));
+        assertNull(redis.zscore("qs:scheduled", Q));
+        assertEquals(Q, redis.get("qs:retired"));
+    }
+
+    @Test
+    public void testCheckMissingCrawlURI() throws Exception {
+        frontier.enqueue(crawlURI(A));
+        frontier.enqueue(crawlURI(B));
+        redis.del(objectKey(A));
+
+        assertEquals(1, frontier.checkConsistency(false));
+        assertNotNull("Not repaired", redis.zscore(QUEUE_KEY, A));
+
+        assertEquals(1, frontier.checkConsistency(true));
+        assertNull(redis.zscore(QUEUE_KEY, A));
+        assertNotNull(redis.zscore(QUEUE_KEY, B));
+        assertEquals(0, frontier.checkConsistency(false));
+    }
+
+    @Test
+    public void testCheckOrphanedCrawlURI() throws Exception {
+        frontier.enqueue(crawlURI(A));
+        frontier.enqueue(crawlURI(B));
+        redis.zrem(QUEUE_KEY, A);
+
+        assertEquals(1, frontier.checkConsistency(false));
+        assertNotNull("Not repaired", redis.get(objectKey(A)));
+
+        assertEquals(1, frontier.checkConsistency(true));
+        assertNull(redis.get(objectKey(A)));
+        assertNotNull(redis.get(objectKey(B)));
+        assertEquals(0, frontier.checkConsistency(false));
+    }
+
+    @Test
+    public void testCheckUnreadableCrawlURI() throws Exception {
+        frontier.enqueue(crawlURI(B));
+        redis.set(objectKey(A), "not a CrawlURI");
+
+        assertEquals(1, frontier.checkConsistency(false));
+        assertNotNull("Not repaired", redis.get(objectKey(A)));
+
+        assertEquals(1, frontier.checkConsistency(true));
+        assertNull(redis.get(objectKey(A)));
+        assertEquals(0, frontier.checkConsistency(false));
+    }
+
+    @Test
+    public void testCheckUnscheduledQueue() throws Exception {
+        frontier.enqueue(crawlURI(A));
+        redis.zrem("qs:scheduled", Q);
+
+        assertEquals(1, frontier.checkConsistency(false));
+        assertNull("Not repaired", redis.zscore("qs:scheduled", Q));
+
+        assertEquals(1, frontier.checkConsistency(true));
+        assertNotNull(redis.zscore("qs:scheduled", Q));
+        assertEquals(0, frontier.checkConsistency(false));
+
+        assertEquals(A, frontier.due().getURI());
+    }
+
+    @Test
+    public void testCheckActiveQueue() throws Exception {
+        frontier.enqueue(crawlURI(A));
+        frontier.due();
+
+        // Active queues are being crawled, so are not unscheduled:
+        assertEquals(0, frontier.checkConsistency(false));
+    }
+
+    @Test
+    public void testScriptsReloaded() throws Exception {
+        frontier.enqueue(crawlURI(A));
+        redis.scriptFlush();
+
+        assertTrue(frontier.enqueue(crawlURI(B)));
+        assertEquals(A, frontier.due().getURI());
+    }
+}
@@ -1,11 +1,18 @@
 package uk.bl.wap.crawler.postprocessor;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
+import org.archive.modules.CrawlURI;
+import org.archive.modules.fetcher.DefaultServerCache;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -16,22 +23,71 @@ import uk.bl.wap.crawler.postprocessor.AMQPIndexableCrawlLogFeed;
 
 public class AMQPIndexableCrawlLogFeedTest {
 
+    private AMQPIndexableCrawlLogFeed clf;
+
+    private CrawlURI curi;
+
     @Before
     public void setUp() throws Exception {
+        clf = new AMQPIndexableCrawlLogFeed();
+        clf.setServerCache(new DefaultServerCache());
+        clf.setCeleryMessageFormat(true);
+        curi = CrawlLogJsonWriterTest.createTestUri("http://www.bl.uk/");
+    }
+
+    private JSONObject buildMessage() throws Exception {
+        return new JSONObject(
+                new String(clf.buildMessage(curi), "UTF-8"));
     }
 
     @Test
-    public void test() {
-        AMQPIndexableCrawlLogFeed clf = new AMQPIndexableCrawlLogFeed();
-        JSONObject jo = new JSONObject();
-        jo.put("url", "http://www.bl.uk");
-        // And wrap:
-        jo = clf.wrapForCelery(jo);
-        jo.put("id", "83de0f10-48e0-4ff9-8985-45f38f97b865");
+    public void test() throws Exception {
+        JSONObject jo = buildMessage();
+        assertNotNull(jo.getString("id"));
+        assertEquals("crawl.tasks.index_uri", jo.getString("task"));
+        assertEquals(0, jo.getJSONArray("args").length());
+        assertEquals("http://www.bl.uk/",
+                jo.getJSONObject("kwargs").getString("url"));
 
+        // And check the overall shape, with a known id:
+        jo.put("id", "83de0f10-48e0-4ff9-8985-45f38f97b865");
+        JSONObject kwargs = jo.getJSONObject("kwargs");
         JSONObject expected = new JSONObject(
-                "{\"id\":\"83de0f10-48e0-4ff9-8985-45f38f97b865\",\"task\":\"crawl.tasks.index_uri\",\"args\":[],\"kwargs\":{\"url\":\"http://www.bl.uk\"}}");
-        areEqual(expected, jo);
+                "{\"id\":\"83de0f10-48e0-4ff9-8985-45f38f97b865\",\"task\":\"crawl.tasks.index_uri\",\"args\":[]}");
+        expected.put("kwargs", kwargs);
+        assertTrue(expected + " != " + jo, areEqual(expected, jo));
+    }
+
+    @Test
+    public void testNoTask() throws Exception {
+        clf.setTargetCeleryTask(null);
+        JSONObject jo = buildMessage();
+        assertFalse(jo.has("task"));
+        assertNotNull(jo.getString("id"));
+        assertEquals("http://www.bl.uk/",
+                jo.getJSONObject("kwargs").getString("url"));
+    }
+
+    @Test
+    public void testNotWrapped() throws Exception {
+        clf.setCeleryMessageFormat(false);
+        JSONObject jo = buildMessage();
+        assertFalse(jo.has("kwargs"));
+        assertEquals("http://www.bl.uk/", jo.getString("url"));
+    }
+
+    @Test
+    public void testRedirectOverridesExtraField() throws Exception {
+        Map<String, String> extraFields = new HashMap<String, String>();
+        extraFields.put("redirecturl", "http://example.com/");
+        clf.setExtraFields(extraFields);
+        // Kept if there is no redirect:
+        assertEquals("http://example.com/", buildMessage()
+                .getJSONObject("kwargs").getString("redirecturl"));
+        // Replaced (rather than duplicated) if there is:
+        curi.putHttpResponseHeader("Location", "/about");
+        assertEquals("http://www.bl.uk/about", buildMessage()
+                .getJSONObject("kwargs").getString("redirecturl"));
     }
 
     /*
@@ -0,0 +1,88 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.postprocessor;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.archive.modules.CrawlURI;
+import org.archive.modules.fetcher.DefaultServerCache;
+import org.archive.modules.net.ServerCache;
+import org.archive.modules.postprocessor.CrawlLogJsonBuilder;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the streaming {@link CrawlLogJsonWriter} with building the crawl
+ * log via CrawlLogJsonBuilder, toString() and getBytes().
+ *
+ * This is not run as part of the unit tests. Run the main method from the
+ * test classpath, e.g. after {@code mvn test-compile}. The gc profiler is
+ * enabled, so compare the gc.alloc.rate.norm figures (bytes allocated per
+ * message) as well as the throughput.
+ *
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CrawlLogJsonWriterBenchmark {
+
+    private CrawlURI curi;
+
+    private Map<String, String> extraFields;
+
+    private ServerCache serverCache;
+
+    @Setup
+    public void setup() throws IOException {
+        curi = CrawlLogJsonWriterTest
+                .createTestUri("http://www.bl.uk/collection-items/a-b-c");
+        extraFields = CrawlLogJsonWriterTest.extraFields();
+        serverCache = new DefaultServerCache();
+    }
+
+    @Benchmark
+    public byte[] streamingWriter() {
+        return CrawlLogJsonWriter.buildMessage(curi, extraFields,
+                serverCache);
+    }
+
+    /**
+     * The previous approach: build a JSONObject, then turn it into a String,
+     * then encode it.
+     */
+    @Benchmark
+    public byte[] orgJson() throws IOException {
+        JSONObject jo = CrawlLogJsonBuilder.buildJson(curi, extraFields,
+                serverCache);
+        return jo.toString().getBytes("UTF-8");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(CrawlLogJsonWriterBenchmark.class.getSimpleName())
+                .addProfiler("gc").build();
+        new Runner(opt).run();
+    }
+
+}
@@ -0,0 +1,97 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.postprocessor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.httpclient.URIException;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.extractor.LinkContext;
+import org.archive.modules.fetcher.DefaultServerCache;
+import org.archive.modules.net.ServerCache;
+import org.archive.modules.postprocessor.CrawlLogJsonBuilder;
+import org.archive.net.UURIFactory;
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class CrawlLogJsonWriterTest {
+
+    private final ServerCache serverCache = new DefaultServerCache();
+
+    static CrawlURI createTestUri(String urlStr) throws URIException {
+        CrawlURI curi = new CrawlURI(UURIFactory.getInstance(urlStr), "LE",
+                UURIFactory.getInstance("http://www.bl.uk/"),
+                LinkContext.NAVLINK_MISC);
+        curi.setFetchStatus(200);
+        curi.setContentType("text/html; charset=UTF-8");
+        curi.setThreadNumber(7);
+        curi.getAnnotations().add("duplicate:digest");
+        curi.getAnnotations().add("ip:\"1.2.3.4\"");
+        curi.getExtraInfo().put("contentSize", 1234);
+        curi.getExtraInfo().put("warcFilename", "BL-20190101.warc.gz");
+        curi.getExtraInfo().put("warcFileOffset", 5678L);
+        curi.getExtraInfo().put("scopeDecision", "ACCEPT by rule #3 </x>");
+        return curi;
+    }
+
+    static Map<String, String> extraFields() {
+        Map<String, String> extraFields = new HashMap<String, String>();
+        extraFields.put("crawl_name", "frequent");
+        return extraFields;
+    }
+
+    private void assertSameAsBuilder(CrawlURI curi) throws Exception {
+        JSONObject expected = CrawlLogJsonBuilder.buildJson(curi,
+                extraFields(), serverCache);
+        JSONObject actual = new JSONObject(new String(CrawlLogJsonWriter
+                .buildMessage(curi, extraFields(), serverCache), "UTF-8"));
+        // This is the only field that may differ:
+        expected.remove("timestamp");
+        actual.remove("timestamp");
+        assertTrue(expected + " != " + actual,
+                AMQPIndexableCrawlLogFeedTest.areEqual(expected, actual));
+    }
+
+    @Test
+    public void testMatchesBuilder() throws Exception {
+        assertSameAsBuilder(createTestUri("http://www.bl.uk/a/b"));
+    }
+
+    @Test
+    public void testEscaping() throws Exception {
+        CrawlURI curi = createTestUri("http://example.com/a?q=%22%3C/b%3E%22");
+        curi.getAnnotations()
+                .add("note:caf\u00e9 \u4e2d \u2028 \u0085 \ud83d\ude00 </a>\t");
+        curi.getExtraInfo().put("title", "\"caf\u00e9\"\n\u0001");
+        assertSameAsBuilder(curi);
+    }
+
+    @Test
+    public void testExtraTimestamp() throws Exception {
+        // As with the builder, an extra timestamp replaces the crawl log's:
+        Map<String, String> extraFields = extraFields();
+        extraFields.put("timestamp", "2019-01-01T00:00:00.000Z");
+        JSONObject actual = new JSONObject(new String(CrawlLogJsonWriter
+                .buildMessage(createTestUri("http://www.bl.uk/"), extraFields,
+                        serverCache),
+                "UTF-8"));
+        assertEquals("2019-01-01T00:00:00.000Z", actual.getString("timestamp"));
+    }
+
+    @Test
+    public void testEmptyExtraInfo() throws Exception {
+        CrawlURI curi = new CrawlURI(
+                UURIFactory.getInstance("dns:www.bl.uk"));
+        assertSameAsBuilder(curi);
+    }
+
+}
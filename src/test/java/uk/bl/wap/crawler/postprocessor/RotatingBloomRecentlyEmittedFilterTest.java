@@ -0,0 +1,83 @@
+/**
+ *
+ */
+package uk.bl.wap.crawler.postprocessor;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class RotatingBloomRecentlyEmittedFilterTest {
+
+    private long now = 1000000L;
+
+    private RotatingBloomRecentlyEmittedFilter createFilter(int expiry) {
+        RotatingBloomRecentlyEmittedFilter filter = new RotatingBloomRecentlyEmittedFilter() {
+            @Override
+            protected long currentTimeMillis() {
+                return now;
+            }
+        };
+        filter.setMemoryBudget(1024 * 1024);
+        filter.setExpiry(expiry);
+        return filter;
+    }
+
+    @Test
+    public void testCheckAndMark() {
+        RotatingBloomRecentlyEmittedFilter filter = createFilter(3600);
+        assertFalse(filter.checkAndMark("http://www.bl.uk/"));
+        assertTrue(filter.checkAndMark("http://www.bl.uk/"));
+        assertFalse(filter.checkAndMark("http://www.bl.uk/about"));
+
+        filter.clear();
+        assertFalse(filter.checkAndMark("http://www.bl.uk/"));
+    }
+
+    @Test
+    public void testContainsAndMark() {
+        RotatingBloomRecentlyEmittedFilter filter = createFilter(3600);
+        assertFalse(filter.contains("http://www.bl.uk/"));
+        // Checking does not mark:
+        assertFalse(filter.contains("http://www.bl.uk/"));
+        filter.mark("http://www.bl.uk/");
+        assertTrue(filter.contains("http://www.bl.uk/"));
+        assertTrue(filter.checkAndMark("http://www.bl.uk/"));
+    }
+
+    @Test
+    public void testFalsePositiveRate() {
+        RotatingBloomRecentlyEmittedFilter filter = createFilter(3600);
+        for (int i = 0; i < 100000; i++) {
+            filter.checkAndMark("http://www.bl.uk/page/" + i);
+        }
+        // (Note that misses are added too, so the filter keeps filling up.)
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            if (filter.checkAndMark("http://example.com/page/" + i)) {
+                falsePositives++;
+            }
+        }
+        assertTrue("Too many false positives: " + falsePositives,
+                falsePositives < 1000);
+        assertTrue(filter.getFalsePositiveRate() < 0.01);
+    }
+
+    @Test
+    public void testExpiry() {
+        RotatingBloomRecentlyEmittedFilter filter = createFilter(1);
+        assertFalse(filter.checkAndMark("http://www.bl.uk/"));
+        assertTrue(filter.checkAndMark("http://www.bl.uk/"));
+        // Still remembered before the expiry time:
+        now += 500;
+        assertTrue(filter.checkAndMark("http://www.bl.uk/"));
+        now += 1100;
+        assertFalse(filter.checkAndMark("http://www.bl.uk/"));
+    }
+
+}
@@ -0,0 +1,53 @@
+/**
+ * 
+ */
+package uk.bl.wap.modules.deciderules;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.archive.modules.deciderules.DecideResult;
+import org.archive.modules.deciderules.DecideRule;
+import org.archive.modules.deciderules.MatchesRegexDecideRule;
+import org.archive.modules.deciderules.RejectDecideRule;
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class DecideRuleProfileTest {
+
+    private static MatchesRegexDecideRule rule(DecideResult decision) {
+        MatchesRegexDecideRule rule = new MatchesRegexDecideRule();
+        rule.setDecision(decision);
+        rule.setRegex(Pattern.compile(".*"));
+        return rule;
+    }
+
+    @Test
+    public void testSuggestOrderOnlySwapsSameDecision() {
+        List<DecideRule> rules = new ArrayList<DecideRule>();
+        rules.add(new RejectDecideRule());
+        rules.add(rule(DecideResult.ACCEPT)); // slow, rarely matches
+        rules.add(rule(DecideResult.ACCEPT)); // fast, often matches
+        rules.add(rule(DecideResult.REJECT)); // fast, but must stay last
+
+        DecideRuleProfile profile = new DecideRuleProfile("test");
+        for (int i = 0; i < 100; i++) {
+            profile.evaluated(0, rules.get(0), 100, DecideResult.REJECT);
+            profile.evaluated(1, rules.get(1), 10000,
+                    i < 5 ? DecideResult.ACCEPT : DecideResult.NONE);
+            profile.evaluated(2, rules.get(2), 100,
+                    i < 50 ? DecideResult.ACCEPT : DecideResult.NONE);
+            profile.evaluated(3, rules.get(3), 10, DecideResult.NONE);
+        }
+
+        assertEquals(Arrays.asList(0, 2, 1, 3), profile.suggestOrder(rules));
+    }
+
+}
@@ -0,0 +1,143 @@
+/**
+ *
+ */
+package uk.bl.wap.modules.deciderules;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.apache.commons.httpclient.URIException;
+import org.archive.modules.CrawlURI;
+import org.archive.modules.deciderules.DecideResult;
+import org.archive.modules.deciderules.DecideRule;
+import org.archive.modules.deciderules.MatchesRegexDecideRule;
+import org.archive.modules.deciderules.PredicatedDecideRule;
+import org.archive.modules.deciderules.RejectDecideRule;
+import org.archive.modules.extractor.LinkContext;
+import org.archive.net.UURIFactory;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class HostCachingDecideRuleSequenceTest {
+
+    /**
+     * ACCEPTs the bl.uk hosts, counting how often it is asked.
+     */
+    private static class CountingHostRule extends PredicatedDecideRule {
+        private static final long serialVersionUID = 1L;
+
+        private int calls = 0;
+
+        // Run (once) while deciding, if set:
+        private Runnable during;
+
+        @Override
+        protected boolean evaluate(CrawlURI uri) {
+            calls++;
+            if (during != null) {
+                Runnable r = during;
+                during = null;
+                r.run();
+            }
+            return uri.getURI().startsWith("http://www.bl.uk/");
+        }
+    }
+
+    private CountingHostRule hostRule;
+
+    private HostCachingDecideRuleSequence scope;
+
+    @Before
+    public void setUp() {
+        hostRule = new CountingHostRule();
+        hostRule.setDecision(DecideResult.ACCEPT);
+        MatchesRegexDecideRule privateReject = new MatchesRegexDecideRule();
+        privateReject.setDecision(DecideResult.REJECT);
+        privateReject.setRegex(Pattern.compile(".*/private/.*"));
+
+        List<DecideRule> rules = new ArrayList<DecideRule>();
+        rules.add(new RejectDecideRule());
+        rules.add(hostRule);
+        rules.add(privateReject);
+
+        scope = new HostCachingDecideRuleSequence();
+        scope.setRules(rules);
+        scope.setHostRuleCount(2);
+    }
+
+    private CrawlURI createTestUri(String urlStr) throws URIException {
+        return new CrawlURI(UURIFactory.getInstance(urlStr), null, null,
+                LinkContext.NAVLINK_MISC);
+    }
+
+    @Test
+    public void testHostDecisionIsCached() throws URIException {
+        assertEquals(DecideResult.ACCEPT,
+                scope.decisionFor(createTestUri("http://www.bl.uk/")));
+        assertEquals(DecideResult.ACCEPT,
+                scope.decisionFor(createTestUri("http://www.bl.uk/a/b")));
+        // The rest of the sequence still applies to each URI:
+        assertEquals(DecideResult.REJECT, scope
+                .decisionFor(createTestUri("http://www.bl.uk/private/x")));
+        assertEquals(DecideResult.REJECT,
+                scope.decisionFor(createTestUri("http://example.com/")));
+        assertEquals(2, hostRule.calls);
+        assertEquals(2, scope.getCacheMisses());
+        assertEquals(2, scope.getCacheHits());
+    }
+
+    @Test
+    public void testScopeChangeInvalidates() throws URIException {
+        scope.decisionFor(createTestUri("http://www.bl.uk/"));
+        scope.onApplicationEvent(new ScopeChangedEvent(this, "test"));
+        scope.decisionFor(createTestUri("http://www.bl.uk/"));
+        assertEquals(2, hostRule.calls);
+    }
+
+    @Test
+    public void testHostScopeChangeInvalidatesHost() throws URIException {
+        scope.decisionFor(createTestUri("http://www.bl.uk/"));
+        scope.decisionFor(createTestUri("http://example.com/"));
+        scope.onApplicationEvent(new ScopeChangedEvent(this, "test",
+                HostCachingDecideRuleSequence.hostKeys(
+                        UURIFactory.getInstance("https://www.bl.uk/a"))));
+        // Only the decision for the named host is dropped:
+        scope.decisionFor(createTestUri("http://www.bl.uk/"));
+        scope.decisionFor(createTestUri("http://example.com/"));
+        assertEquals(3, hostRule.calls);
+    }
+
+    @Test
+    public void testScopeChangeWhileDecidingIsNotCached()
+            throws URIException {
+        hostRule.during = new Runnable() {
+            public void run() {
+                scope.onApplicationEvent(new ScopeChangedEvent(this, "test"));
+            }
+        };
+        scope.decisionFor(createTestUri("http://www.bl.uk/"));
+        // The decision made against the old scope was not kept:
+        scope.decisionFor(createTestUri("http://www.bl.uk/"));
+        assertEquals(2, hostRule.calls);
+        // But the one made after the change is:
+        scope.decisionFor(createTestUri("http://www.bl.uk/"));
+        assertEquals(2, hostRule.calls);
+    }
+
+    @Test
+    public void testDisabledByDefault() throws URIException {
+        scope.setHostRuleCount(0);
+        scope.decisionFor(createTestUri("http://www.bl.uk/"));
+        scope.decisionFor(createTestUri("http://www.bl.uk/"));
+        assertEquals(2, hostRule.calls);
+        assertEquals(0, scope.getCacheHits());
+    }
+
+}
@@ -0,0 +1,50 @@
+/**
+ *
+ */
+package uk.bl.wap.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class KeyedLaneExecutorTest {
+
+    @Test
+    public void testSameKeyRunsInOrderOnOneThread() throws InterruptedException {
+        KeyedLaneExecutor lanes = new KeyedLaneExecutor("test", 4, 1000);
+        final List<Integer> seen = Collections
+                .synchronizedList(new ArrayList<Integer>());
+        final List<String> threads = Collections
+                .synchronizedList(new ArrayList<String>());
+        for (int i = 0; i < 100; i++) {
+            final int n = i;
+            lanes.execute("example.com", new Runnable() {
+                public void run() {
+                    seen.add(n);
+                    threads.add(Thread.currentThread().getName());
+                }
+            });
+        }
+        lanes.shutdown();
+        assertTrue(lanes.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(100, seen.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, seen.get(i).intValue());
+            assertEquals(threads.get(0), threads.get(i));
+        }
+        assertEquals("test-lane-" + lanes.laneFor("example.com"),
+                threads.get(0));
+    }
+
+}
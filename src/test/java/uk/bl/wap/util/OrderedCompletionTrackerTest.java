@@ -0,0 +1,57 @@
+/**
+ *
+ */
+package uk.bl.wap.util;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class OrderedCompletionTrackerTest {
+
+    @Test
+    public void testOutOfOrderCompletion() {
+        OrderedCompletionTracker<Integer> t = new OrderedCompletionTracker<Integer>();
+        assertEquals(-1, t.getSafePosition(0));
+
+        for (long i = 10; i < 15; i++) {
+            t.register(0, i);
+        }
+        assertEquals(10, t.getSafePosition(0));
+        assertEquals(5, t.getPendingCount());
+
+        // Completing later items does not move the safe position:
+        t.complete(0, 12);
+        t.complete(0, 11);
+        assertEquals(10, t.getSafePosition(0));
+
+        // Completing the first one moves it up to the next gap:
+        t.complete(0, 10);
+        assertEquals(13, t.getSafePosition(0));
+
+        // And once all done, it is one past the highest:
+        t.complete(0, 14);
+        t.complete(0, 13);
+        assertEquals(15, t.getSafePosition(0));
+        assertEquals(0, t.getPendingCount());
+    }
+
+    @Test
+    public void testKeysAreIndependent() {
+        OrderedCompletionTracker<Integer> t = new OrderedCompletionTracker<Integer>();
+        t.register(0, 1);
+        t.register(1, 100);
+        t.complete(1, 100);
+        assertEquals(1, t.getSafePosition(0));
+        assertEquals(101, t.getSafePosition(1));
+        assertEquals(2, t.getSafePositions().size());
+
+        t.reset(1);
+        assertEquals(-1, t.getSafePosition(1));
+    }
+
+}
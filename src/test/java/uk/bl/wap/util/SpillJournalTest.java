@@ -0,0 +1,148 @@
+/**
+ *
+ */
+package uk.bl.wap.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class SpillJournalTest {
+
+    private static final int SEGMENT_SIZE = 1024;
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = File.createTempFile("spill", ".tmp", new File("./"));
+        dir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static byte[] record(int i) {
+        return ("record-" + i).getBytes();
+    }
+
+    @Test
+    public void testAppendPeekCommit() throws IOException {
+        SpillJournal journal = new SpillJournal(dir, SEGMENT_SIZE, 1024 * 1024,
+                1);
+        for (int i = 0; i < 200; i++) {
+            assertTrue(journal.append(record(i)));
+        }
+        assertEquals(200, journal.getPendingRecords());
+        assertTrue(journal.getSegmentCount() > 1);
+
+        // Records come back in order, across segments:
+        List<byte[]> records = journal.peek(150);
+        assertEquals(150, records.size());
+        for (int i = 0; i < 150; i++) {
+            assertArrayEquals(record(i), records.get(i));
+        }
+        journal.commit(150);
+        assertEquals(50, journal.getPendingRecords());
+        assertArrayEquals(record(150), journal.peek(1).get(0));
+        // Consumed segments are kept as spares, up to the limit:
+        assertEquals(1, journal.getSpareSegmentCount());
+
+        journal.commit(50);
+        assertEquals(0, journal.getPendingRecords());
+        assertEquals(0, journal.getPendingBytes());
+        assertTrue(journal.peek(10).isEmpty());
+        assertEquals(1, journal.getSegmentCount());
+        journal.close();
+    }
+
+    @Test
+    public void testSizeLimit() throws IOException {
+        SpillJournal journal = new SpillJournal(dir, SEGMENT_SIZE,
+                2 * SEGMENT_SIZE, 1);
+        int appended = 0;
+        while (journal.append(record(appended))) {
+            appended++;
+        }
+        assertEquals(appended, journal.getPendingRecords());
+        assertEquals(2, journal.getSegmentCount());
+
+        // Consuming the first segment makes room for another:
+        journal.commit((int) journal.getPendingRecords() / 2 + 1);
+        assertTrue(journal.append(record(appended)));
+        journal.close();
+    }
+
+    @Test
+    public void testRecovery() throws IOException {
+        SpillJournal journal = new SpillJournal(dir, SEGMENT_SIZE, 1024 * 1024,
+                1);
+        for (int i = 0; i < 100; i++) {
+            journal.append(record(i));
+        }
+        journal.commit(60);
+        journal.close();
+
+        journal = new SpillJournal(dir, SEGMENT_SIZE, 1024 * 1024, 1);
+        assertEquals(40, journal.getPendingRecords());
+        List<byte[]> records = journal.peek(100);
+        assertEquals(40, records.size());
+        assertArrayEquals(record(60), records.get(0));
+        assertArrayEquals(record(99), records.get(39));
+
+        // Appends carry on after the recovered records:
+        journal.append(record(100));
+        records = journal.peek(100);
+        assertArrayEquals(record(100), records.get(40));
+        journal.close();
+    }
+
+    @Test
+    public void testCorruptRecordIsDropped() throws IOException {
+        SpillJournal journal = new SpillJournal(dir, SEGMENT_SIZE, 1024 * 1024,
+                1);
+        journal.append(record(0));
+        journal.append(record(1));
+        journal.close();
+
+        // Damage the contents of the second record:
+        File segment = dir.listFiles()[0];
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        try {
+            raf.seek(8 + record(0).length + 8);
+            raf.write('X');
+        } finally {
+            raf.close();
+        }
+
+        journal = new SpillJournal(dir, SEGMENT_SIZE, 1024 * 1024, 1);
+        List<byte[]> records = journal.peek(10);
+        assertEquals(1, records.size());
+        assertArrayEquals(record(0), records.get(0));
+        assertFalse(journal.getPendingRecords() > 1);
+        journal.close();
+    }
+
+}
@@ -0,0 +1,90 @@
+/**
+ *
+ */
+package uk.bl.wap.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeMap;
+
+import org.junit.Test;
+
+/**
+ * @author Andrew Jackson <Andrew.Jackson@bl.uk>
+ *
+ */
+public class SurtPrefixTrieTest {
+
+    private static final List<String> PREFIXES = Arrays.asList(
+            "http://(uk,", "http://(uk,co,", "http://(uk,co,bbc,",
+            "http://(uk,co,bbc,www,)/news", "http://(uk,gov,",
+            "http://(com,example,");
+
+    @Test
+    public void testLongestPrefix() {
+        SurtPrefixTrie<String> trie = SurtPrefixTrie.ofPrefixes(PREFIXES);
+        assertEquals(PREFIXES.size(), trie.size());
+        assertEquals("http://(uk,co,bbc,www,)/news",
+                trie.longestPrefixValue("http://(uk,co,bbc,www,)/news/a"));
+        assertEquals("http://(uk,co,bbc,",
+                trie.longestPrefixValue("http://(uk,co,bbc,www,)/sport"));
+        assertEquals("http://(uk,",
+                trie.longestPrefixValue("http://(uk,ac,bl,www,)/"));
+        assertNull(trie.longestPrefixValue("http://(org,example,)/"));
+        assertFalse(trie.containsPrefixOf("http://(u"));
+        assertTrue(trie.containsPrefixOf("http://(com,example,www,)/"));
+    }
+
+    @Test
+    public void testCollectPrefixValues() {
+        SurtPrefixTrie<String> trie = SurtPrefixTrie.ofPrefixes(PREFIXES);
+        List<String> found = new ArrayList<String>();
+        assertEquals(3, trie.collectPrefixValues(
+                "http://(uk,co,bbc,www,)/sport", found));
+        assertEquals(Arrays.asList("http://(uk,", "http://(uk,co,",
+                "http://(uk,co,bbc,"), found);
+    }
+
+    @Test
+    public void testCopyOnWrite() {
+        SurtPrefixTrie<String> trie = SurtPrefixTrie.ofPrefixes(PREFIXES);
+        SurtPrefixTrie<String> added = trie.with("http://(uk,co,b", "b");
+        assertEquals("b", added.longestPrefixValue("http://(uk,co,bl,"));
+        assertEquals("http://(uk,co,",
+                trie.longestPrefixValue("http://(uk,co,bl,"));
+
+        SurtPrefixTrie<String> removed = added.without("http://(uk,co,");
+        assertEquals(PREFIXES.size(), removed.size());
+        assertEquals("http://(uk,",
+                removed.longestPrefixValue("http://(uk,co,x,"));
+        assertEquals("http://(uk,co,bbc,",
+                removed.longestPrefixValue("http://(uk,co,bbc,"));
+        assertSame(removed, removed.without("http://(fr,"));
+    }
+
+    @Test
+    public void testIncrementalMatchesBulk() {
+        TreeMap<String, String> map = new TreeMap<String, String>();
+        SurtPrefixTrie<String> trie = SurtPrefixTrie.empty();
+        for (String prefix : PREFIXES) {
+            map.put(prefix, prefix);
+            trie = trie.with(prefix, prefix);
+        }
+        SurtPrefixTrie<String> bulk = SurtPrefixTrie.of(map);
+        for (String prefix : PREFIXES) {
+            for (String suffix : Arrays.asList("", "x", ")/a")) {
+                assertEquals(bulk.longestPrefixValue(prefix + suffix),
+                        trie.longestPrefixValue(prefix + suffix));
+            }
+            assertEquals(prefix, trie.get(prefix));
+        }
+    }
+
+}